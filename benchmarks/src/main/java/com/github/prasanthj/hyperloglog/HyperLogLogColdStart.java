@@ -0,0 +1,82 @@
+/*
+ * Copyright 2017 Prasanth Jayachandran
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.prasanthj.hyperloglog;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.github.prasanthj.hll.HyperLogLog;
+
+/**
+ * Time from a fresh JVM to the first count(), which includes class loading
+ * and initialization of the hyperloglog classes and loading the bias table
+ * of p (as in short-lived command line runs). Every measurement is a single
+ * invocation in a new fork.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1, batchSize = 1)
+@Fork(30)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class HyperLogLogColdStart {
+
+  @Param({"SPARSE", "DENSE"})
+  public HyperLogLog.EncodingType encoding;
+
+  @Benchmark
+  public long testFirstCount() {
+    final HyperLogLog hll = HyperLogLog
+      .builder()
+      .setNumRegisterIndexBits(14)
+      .setEncoding(encoding)
+      .build();
+    // DENSE estimate of 20000 items (< 5 * m) is bias corrected using the table of p = 14
+    for (int i = 0; i < 20000; i++) {
+      hll.addInt(i);
+    }
+    return hll.count();
+  }
+
+  /*
+   * ============================== HOW TO RUN THIS TEST: ====================================
+   *
+   * You can run this test:
+   *
+   * a) Via the command line:
+   *    $ mvn clean install
+   *    $ java -jar target/benchmarks.jar HyperLogLogColdStart
+   *    $ java -jar target/benchmarks.jar HyperLogLogColdStart -p encoding=DENSE -f 100
+   */
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+      .include(HyperLogLogColdStart.class.getSimpleName())
+      .build();
+
+    new Runner(opt).run();
+  }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2017 Prasanth Jayachandran
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.prasanthj.hyperloglog;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.github.prasanthj.hll.HyperLogLog;
+import com.github.prasanthj.hll.HyperLogLogIngestPipeline;
+
+/**
+ * Adds/us of HyperLogLogIngestPipeline with 1 to 32 workers compared to
+ * single threaded HyperLogLog.add() on a p=16 DENSE hyperloglog. Run with
+ * -t (number of producer threads) to measure scaling with producers.
+ */
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class HyperLogLogIngest {
+
+  private static final int P = 16;
+  private static final int BATCH_SIZE = 4096;
+
+  @State(Scope.Thread)
+  public static class Batch {
+    long[] hashcodes = new long[BATCH_SIZE];
+    Random random = new Random(Thread.currentThread().getId());
+
+    @Setup(Level.Invocation)
+    public void next() {
+      for (int i = 0; i < hashcodes.length; i++) {
+        hashcodes[i] = random.nextLong();
+      }
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class SingleThreaded {
+    HyperLogLog hll;
+
+    @Setup(Level.Trial)
+    public void setup() {
+      hll = HyperLogLog.builder().setNumRegisterIndexBits(P)
+        .setEncoding(HyperLogLog.EncodingType.DENSE).build();
+    }
+  }
+
+  @State(Scope.Benchmark)
+  public static class Pipeline {
+    @Param({ "1", "2", "4", "8", "16", "32" })
+    public int numWorkers;
+
+    HyperLogLogIngestPipeline pipeline;
+
+    @Setup(Level.Trial)
+    public void setup() {
+      pipeline = new HyperLogLogIngestPipeline(P, numWorkers);
+    }
+
+    @TearDown(Level.Iteration)
+    public void flush() throws InterruptedException {
+      pipeline.flush();
+    }
+
+    @TearDown(Level.Trial)
+    public void close() {
+      pipeline.close();
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH_SIZE)
+  public HyperLogLog testSingleThreadedAdd(SingleThreaded state, Batch batch) {
+    final HyperLogLog hll = state.hll;
+    for (long hashcode : batch.hashcodes) {
+      hll.add(hashcode);
+    }
+    return hll;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH_SIZE)
+  public void testPipelineSubmit(Pipeline state, Batch batch) throws InterruptedException {
+    // queues are bounded, so steady state submit rate is the ingest rate
+    state.pipeline.submit(batch.hashcodes);
+  }
+
+  /*
+   * ============================== HOW TO RUN THIS TEST: ====================================
+   *
+   * You can run this test:
+   *
+   * a) Via the command line:
+   *    $ mvn clean install
+   *    $ java -jar target/benchmarks.jar HyperLogLogIngest -t 1 -f 1
+   *    $ java -jar target/benchmarks.jar HyperLogLogIngest.testPipelineSubmit -t 8 -f 1
+   */
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+      .include(HyperLogLogIngest.class.getSimpleName())
+      .build();
+
+    new Runner(opt).run();
+  }
+}
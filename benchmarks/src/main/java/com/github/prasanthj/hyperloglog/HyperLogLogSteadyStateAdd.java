@@ -0,0 +1,116 @@
+/*
+ * Copyright 2017 Prasanth Jayachandran
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.prasanthj.hyperloglog;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.github.prasanthj.hll.HyperLogLog;
+
+/**
+ * ns/add of long lived hyperloglogs that stay in the same encoding (as opposed
+ * to HyperLogLogAdd which builds a new hyperloglog per invocation).
+ */
+@State(Scope.Thread)
+@Warmup(iterations = 10, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class HyperLogLogSteadyStateAdd {
+
+  private static final int NUM_HASHCODES = 1024;
+
+  @Param({ "SPARSE", "DENSE" })
+  public HyperLogLog.EncodingType encoding;
+
+  @Param({ "14" })
+  public int p;
+
+  private long[] hashcodes;
+  private HyperLogLog hll;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    Random random = new Random(123);
+    hll = HyperLogLog.builder().setNumRegisterIndexBits(p).build();
+    if (encoding == HyperLogLog.EncodingType.DENSE) {
+      // promote to DENSE and keep adding new random hashcodes
+      while (hll.getEncoding() == HyperLogLog.EncodingType.SPARSE) {
+        hll.add(random.nextLong());
+      }
+      hashcodes = new long[NUM_HASHCODES];
+      for (int i = 0; i < hashcodes.length; i++) {
+        hashcodes[i] = random.nextLong();
+      }
+    } else {
+      // small set of hashcodes that are added repeatedly, so that the
+      // hyperloglog never exceeds the SPARSE threshold
+      long[] distinct = new long[100];
+      for (int i = 0; i < distinct.length; i++) {
+        distinct[i] = random.nextLong();
+      }
+      hashcodes = new long[NUM_HASHCODES];
+      for (int i = 0; i < hashcodes.length; i++) {
+        hashcodes[i] = distinct[i % distinct.length];
+      }
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(NUM_HASHCODES)
+  public void testSteadyStateAdd(Blackhole blackhole) {
+    final HyperLogLog hll = this.hll;
+    for (long hashcode : hashcodes) {
+      hll.add(hashcode);
+    }
+    blackhole.consume(hll);
+  }
+
+  /*
+   * ============================== HOW TO RUN THIS TEST: ====================================
+   *
+   * You can run this test:
+   *
+   * a) Via the command line:
+   *    $ mvn clean install
+   *    $ java -jar target/benchmarks.jar HyperLogLogSteadyStateAdd -f 1
+   *    $ java -jar target/benchmarks.jar HyperLogLogSteadyStateAdd -p encoding=DENSE -prof perfasm -f 1 (Linux)
+   */
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+      .include(HyperLogLogSteadyStateAdd.class.getSimpleName())
+      .build();
+
+    new Runner(opt).run();
+  }
+}
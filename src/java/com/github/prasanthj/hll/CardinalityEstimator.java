@@ -0,0 +1,58 @@
+/**
+ * Copyright 2017 Prasanth Jayachandran
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.prasanthj.hll;
+
+/**
+ * Estimates cardinality of DENSE hyperloglog registers. SPARSE registers always
+ * use linear counting with pPrime register index bits.
+ */
+public interface CardinalityEstimator {
+
+  /**
+   * Estimate cardinality from the histogram of register values.
+   * @param p
+   *          - number of register index bits
+   * @param registerHistogram
+   *          - number of registers for each register value. Length of the
+   *          histogram is HLLConstants.NUM_REGISTER_VALUES and register values
+   *          beyond that are counted in the last entry.
+   * @return estimated cardinality
+   */
+  public long estimate(int p, int[] registerHistogram);
+
+  /**
+   * Estimate cardinality of many DENSE registers with the same p.
+   * Implementations can evaluate the histograms in a batch and share state
+   * that depends only on p (like bias tables) across the histograms.
+   * @param p
+   *          - number of register index bits
+   * @param registerHistograms
+   *          - histograms of register values (see estimate())
+   * @param from
+   *          - index of first histogram to estimate (inclusive)
+   * @param to
+   *          - index of last histogram to estimate (exclusive)
+   * @param out
+   *          - output array, out[i] is the estimated cardinality of
+   *          registerHistograms[i]
+   */
+  default void estimateAll(int p, int[][] registerHistograms, int from, int to, long[] out) {
+    for (int i = from; i < to; i++) {
+      out[i] = estimate(p, registerHistograms[i]);
+    }
+  }
+}
@@ -0,0 +1,83 @@
+/**
+ * Copyright 2017 Prasanth Jayachandran
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.prasanthj.hll;
+
+import java.util.zip.Checksum;
+
+/**
+ * CRC32C (Castagnoli polynomial) checksum using slicing-by-8 lookup tables.
+ * java.util.zip.CRC32C is available only from Java 9.
+ */
+final class Crc32c implements Checksum {
+
+  // reversed Castagnoli polynomial
+  private static final int POLY = 0x82F63B78;
+  private static final int[][] TABLES = new int[8][256];
+
+  static {
+    for (int i = 0; i < 256; i++) {
+      int crc = i;
+      for (int j = 0; j < 8; j++) {
+        crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLY : crc >>> 1;
+      }
+      TABLES[0][i] = crc;
+    }
+    for (int i = 0; i < 256; i++) {
+      for (int t = 1; t < 8; t++) {
+        TABLES[t][i] = (TABLES[t - 1][i] >>> 8) ^ TABLES[0][TABLES[t - 1][i] & 0xff];
+      }
+    }
+  }
+
+  private int crc = 0xffffffff;
+
+  @Override
+  public void update(int b) {
+    crc = (crc >>> 8) ^ TABLES[0][(crc ^ b) & 0xff];
+  }
+
+  @Override
+  public void update(byte[] b, int off, int len) {
+    int c = crc;
+    int[] t0 = TABLES[0], t1 = TABLES[1], t2 = TABLES[2], t3 = TABLES[3];
+    int[] t4 = TABLES[4], t5 = TABLES[5], t6 = TABLES[6], t7 = TABLES[7];
+    int end = off + len;
+    // 8 bytes per step
+    while (end - off >= 8) {
+      int lo = c ^ ((b[off] & 0xff) | (b[off + 1] & 0xff) << 8 | (b[off + 2] & 0xff) << 16
+          | (b[off + 3] & 0xff) << 24);
+      c = t7[lo & 0xff] ^ t6[(lo >>> 8) & 0xff] ^ t5[(lo >>> 16) & 0xff] ^ t4[lo >>> 24]
+          ^ t3[b[off + 4] & 0xff] ^ t2[b[off + 5] & 0xff] ^ t1[b[off + 6] & 0xff]
+          ^ t0[b[off + 7] & 0xff];
+      off += 8;
+    }
+    while (off < end) {
+      c = (c >>> 8) ^ t0[(c ^ b[off++]) & 0xff];
+    }
+    crc = c;
+  }
+
+  @Override
+  public long getValue() {
+    return (~crc) & 0xffffffffL;
+  }
+
+  @Override
+  public void reset() {
+    crc = 0xffffffff;
+  }
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright 2017 Prasanth Jayachandran
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.prasanthj.hll;
+
+/**
+ * <pre>
+ * Improved raw estimator from Otmar Ertl's "New cardinality estimation
+ * algorithms for HyperLogLog sketches" (Algorithm 6)
+ * https://arxiv.org/abs/1702.01284
+ *
+ * The estimator corrects the harmonic mean for the small range (zero
+ * registers) and the large range (saturated registers) using only the
+ * histogram of register values. Unlike HLL++ bias correction, it does not
+ * need empirical bias tables or thresholds to switch to linear counting and
+ * hence the estimation error is smooth across the whole range.
+ * </pre>
+ */
+public class ErtlImprovedEstimator implements CardinalityEstimator {
+
+  // alpha for m -> infinity
+  private static final double ALPHA_INF = 1.0 / (2.0 * Math.log(2.0));
+
+  @Override
+  public long estimate(int p, int[] registerHistogram) {
+    final int m = 1 << p;
+    final int q = 64 - p;
+
+    // register values > q are counted as q + 1
+    int saturated = 0;
+    for (int k = q + 1; k < registerHistogram.length; k++) {
+      saturated += registerHistogram[k];
+    }
+
+    if (registerHistogram[0] == m) {
+      return 0;
+    }
+
+    double z = m * tau(1.0 - (double) saturated / m);
+    for (int k = Math.min(q, registerHistogram.length - 1); k >= 1; k--) {
+      z = 0.5 * (z + registerHistogram[k]);
+    }
+    z += m * sigma((double) registerHistogram[0] / m);
+    return Math.round(ALPHA_INF * m * m / z);
+  }
+
+  // sigma(x) = x + sum_{k>=1} x^(2^k) * 2^(k-1)
+  private static double sigma(double x) {
+    if (x == 1.0) {
+      return Double.POSITIVE_INFINITY;
+    }
+    double y = 1.0;
+    double z = x;
+    double prev;
+    do {
+      x *= x;
+      prev = z;
+      z += x * y;
+      y += y;
+    } while (z != prev);
+    return z;
+  }
+
+  // tau(x) = (1 - x - sum_{k>=1} (1 - x^(2^-k))^2 * 2^-k) / 3
+  private static double tau(double x) {
+    if (x == 0.0 || x == 1.0) {
+      return 0.0;
+    }
+    double y = 1.0;
+    double z = 1.0 - x;
+    double prev;
+    do {
+      x = Math.sqrt(x);
+      prev = z;
+      y *= 0.5;
+      z -= (1.0 - x) * (1.0 - x) * y;
+    } while (z != prev);
+    return z / 3.0;
+  }
+}
@@ -0,0 +1,232 @@
+/**
+ * Copyright 2017 Prasanth Jayachandran
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.prasanthj.hll;
+
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+/**
+ * Set of 64 bit hashcodes used by EXACT encoding. Hashcodes are stored in an
+ * open addressed long[] with linear probing which is doubled when more than
+ * half full. 0 marks empty slots, so hashcode 0 is tracked separately.
+ */
+public class HLLExactSet {
+
+  private static final int MIN_CAPACITY = 4;
+
+  private long[] table;
+
+  // number of non-zero hashcodes in table
+  private int numEntries;
+  private boolean containsZero;
+
+  public HLLExactSet() {
+    this.table = new long[MIN_CAPACITY];
+  }
+
+  private HLLExactSet(HLLExactSet other) {
+    this.table = other.table.clone();
+    this.numEntries = other.numEntries;
+    this.containsZero = other.containsZero;
+  }
+
+  /**
+   * @return independent copy of this set
+   */
+  public HLLExactSet copy() {
+    return new HLLExactSet(this);
+  }
+
+  /**
+   * @param hashcode
+   *          - hashcode to add
+   * @return true if the hashcode was not present in the set
+   */
+  public boolean add(long hashcode) {
+    if (hashcode == 0) {
+      if (containsZero) {
+        return false;
+      }
+      containsZero = true;
+      return true;
+    }
+    final int mask = table.length - 1;
+    int idx = slot(hashcode) & mask;
+    while (table[idx] != 0) {
+      if (table[idx] == hashcode) {
+        return false;
+      }
+      idx = (idx + 1) & mask;
+    }
+    table[idx] = hashcode;
+    numEntries++;
+    if (numEntries * 2 > table.length) {
+      resize(table.length * 2);
+    }
+    return true;
+  }
+
+  public boolean contains(long hashcode) {
+    if (hashcode == 0) {
+      return containsZero;
+    }
+    final int mask = table.length - 1;
+    int idx = slot(hashcode) & mask;
+    while (table[idx] != 0) {
+      if (table[idx] == hashcode) {
+        return true;
+      }
+      idx = (idx + 1) & mask;
+    }
+    return false;
+  }
+
+  // hashcodes added directly through HyperLogLog.add() may not be well mixed
+  private static int slot(long hashcode) {
+    return (int) ((hashcode * 0x9E3779B97F4A7C15L) >>> 32);
+  }
+
+  private void resize(int capacity) {
+    long[] old = table;
+    table = new long[capacity];
+    final int mask = capacity - 1;
+    for (long hashcode : old) {
+      if (hashcode != 0) {
+        int idx = slot(hashcode) & mask;
+        while (table[idx] != 0) {
+          idx = (idx + 1) & mask;
+        }
+        table[idx] = hashcode;
+      }
+    }
+  }
+
+  /**
+   * @return number of distinct hashcodes in the set
+   */
+  public int size() {
+    return containsZero ? numEntries + 1 : numEntries;
+  }
+
+  /**
+   * Removes all hashcodes. The table is retained for reuse.
+   */
+  public void clear() {
+    Arrays.fill(table, 0);
+    numEntries = 0;
+    containsZero = false;
+  }
+
+  public void forEach(LongConsumer consumer) {
+    if (containsZero) {
+      consumer.accept(0);
+    }
+    for (long hashcode : table) {
+      if (hashcode != 0) {
+        consumer.accept(hashcode);
+      }
+    }
+  }
+
+  /**
+   * @param other
+   *          - other set
+   * @return number of hashcodes present in both sets
+   */
+  int countCommon(HLLExactSet other) {
+    int numCommon = containsZero && other.containsZero ? 1 : 0;
+    for (long hashcode : table) {
+      if (hashcode != 0 && other.contains(hashcode)) {
+        numCommon++;
+      }
+    }
+    return numCommon;
+  }
+
+  // open addressed table for iterating without a consumer (0 marks empty
+  // slots, hashcode 0 is reported by containsZero())
+  long[] getTable() {
+    return table;
+  }
+
+  boolean containsZero() {
+    return containsZero;
+  }
+
+  /**
+   * @return sorted array of hashcodes in the set
+   */
+  public long[] getHashcodes() {
+    long[] result = new long[size()];
+    int i = 0;
+    if (containsZero) {
+      result[i++] = 0;
+    }
+    for (long hashcode : table) {
+      if (hashcode != 0) {
+        result[i++] = hashcode;
+      }
+    }
+    Arrays.sort(result);
+    return result;
+  }
+
+  /**
+   * @return size of the table in bytes
+   */
+  public long getSizeInBytes() {
+    return (long) table.length * Long.BYTES;
+  }
+
+  @Override
+  public String toString() {
+    return "HLLExactSet - size: " + size() + " capacity: " + table.length;
+  }
+
+  public String toExtendedString() {
+    return toString() + " hashcodes: " + Arrays.toString(getHashcodes());
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (!(obj instanceof HLLExactSet)) {
+      return false;
+    }
+    HLLExactSet other = (HLLExactSet) obj;
+    if (size() != other.size() || containsZero != other.containsZero) {
+      return false;
+    }
+    for (long hashcode : table) {
+      if (hashcode != 0 && !other.contains(hashcode)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public int hashCode() {
+    // independent of the order of hashcodes in table
+    int hashcode = containsZero ? 1 : 0;
+    for (long h : table) {
+      if (h != 0) {
+        hashcode += slot(h);
+      }
+    }
+    return hashcode;
+  }
+}
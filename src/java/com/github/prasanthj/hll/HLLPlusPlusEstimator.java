@@ -0,0 +1,283 @@
+/**
+ * Copyright 2017 Prasanth Jayachandran
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.prasanthj.hll;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+
+/**
+ * <pre>
+ * Default estimator for DENSE registers. Cardinality is estimated from the
+ * normalized harmonic mean of the registers and corrected for short range bias
+ * using either
+ * HLLNoBias - Google's bias table lookup with k-nearest neighbors and linear
+ *             counting below an empirical threshold
+ * Original  - linear counting below 2.5 * m as in Flajolet et. al
+ * Bias tables are read from a class path resource for each p on first use.
+ * Beyond p = 16 bias correction uses ErtlImprovedEstimator which needs no
+ * tables and is more accurate than the tables for p = 17 and 18.
+ * </pre>
+ */
+public class HLLPlusPlusEstimator implements CardinalityEstimator {
+
+  // Not making it configurable for perf reasons (avoid checks)
+  private static final int CHOSEN_HASH_BITS = 64;
+
+  // sorted bias lookup tables for each p, initialized on first use
+  private static final BiasTable[] BIAS_TABLES = new BiasTable[HLLConstants.thresholdData.length];
+
+  // "HLB1" header of bias data resource
+  private static final int BIAS_DATA_MAGIC = 0x484c4231;
+
+  // bias correction for p without bias tables
+  private static final ErtlImprovedEstimator NO_TABLE_ESTIMATOR = new ErtlImprovedEstimator();
+
+  // enable/disable bias correction using table lookup
+  private final boolean noBias;
+
+  public HLLPlusPlusEstimator(boolean noBias) {
+    this.noBias = noBias;
+  }
+
+  @Override
+  public long estimate(int p, int[] registerHistogram) {
+    if (noBias && p > HLLConstants.MAX_BIAS_P_VALUE) {
+      return NO_TABLE_ESTIMATOR.estimate(p, registerHistogram);
+    }
+    double sum = 0;
+    for (int k = 0; k < registerHistogram.length; k++) {
+      sum += registerHistogram[k] * HLLConstants.inversePow2Data[k];
+    }
+    return estimate(p, sum, registerHistogram[0]);
+  }
+
+  @Override
+  public void estimateAll(int p, int[][] registerHistograms, int from, int to, long[] out) {
+    if (noBias && p > HLLConstants.MAX_BIAS_P_VALUE) {
+      NO_TABLE_ESTIMATOR.estimateAll(p, registerHistograms, from, to, out);
+      return;
+    }
+    final double[] inversePow2 = HLLConstants.inversePow2Data;
+    for (int i = from; i < to; i++) {
+      final int[] histogram = registerHistograms[i];
+      double sum = 0;
+      for (int k = 0; k < histogram.length; k++) {
+        sum += histogram[k] * inversePow2[k];
+      }
+      out[i] = estimate(p, sum, histogram[0]);
+    }
+  }
+
+  boolean isNoBias() {
+    return noBias;
+  }
+
+  private long estimate(int p, double sum, long numZeros) {
+    final int m = 1 << p;
+
+    // alphaMM value for 128 bits hash seems to perform better for default 64 hash bits.
+    // For efficiency alpha is multiplied by m^2
+    float alphaMM = 0.7213f / (1 + 1.079f / m);
+    alphaMM = alphaMM * m * m;
+
+    // cardinality estimate from normalized bias corrected harmonic mean on
+    // the registers
+    long count = (long) (alphaMM * (1.0 / sum));
+    long pow = (long) Math.pow(2, CHOSEN_HASH_BITS);
+
+    // when bias correction is enabled
+    if (noBias) {
+      count = count <= 5 * m ? (count - estimateBias(p, count)) : count;
+      long h = count;
+      if (numZeros != 0) {
+        h = HyperLogLog.linearCount(m, numZeros);
+      }
+
+      if (h < getThreshold(p)) {
+        count = h;
+      }
+    } else {
+      // HLL algorithm shows stronger bias for values in (2.5 * m) range.
+      // To compensate for this short range bias, linear counting is used
+      // for values before this short range. The original paper also says
+      // similar bias is seen for long range values due to hash collisions
+      // in range >1/30*(2^32). For the default case, we do not have to
+      // worry about this long range bias as the paper used 32-bit hashing
+      // and we use 64-bit hashing as default. 2^64 values are too high to
+      // observe long range bias (hash collisions).
+      if (count <= 2.5 * m) {
+
+        // for short range use linear counting
+        if (numZeros != 0) {
+          count = HyperLogLog.linearCount(m, numZeros);
+        }
+      } else if (CHOSEN_HASH_BITS < 64 && count > (0.033333 * pow)) {
+
+        // long range bias for 32-bit hashcodes
+        if (count > (1 / 30) * pow) {
+          count = (long) (-pow * Math.log(1.0 - (double) count / (double) pow));
+        }
+      }
+    }
+    return count;
+  }
+
+  private static long getThreshold(int p) {
+    return (long) (HLLConstants.thresholdData[p - 4] + 0.5);
+  }
+
+  /**
+   * Estimate bias from lookup table
+   * @param p
+   *          - number of register index bits
+   * @param count
+   *          - cardinality before bias correction
+   * @return cardinality after bias correction
+   */
+  private static long estimateBias(int p, long count) {
+    return getBiasTable(p).estimateBias(count);
+  }
+
+  private static BiasTable getBiasTable(int p) {
+    // bias tables are immutable and initialized lazily for each p. Racing
+    // threads may build the same table more than once, which is harmless.
+    BiasTable table = BIAS_TABLES[p - HLLConstants.MIN_P_VALUE];
+    if (table == null) {
+      double[][] data = readBiasData(p);
+      table = new BiasTable(data[0], data[1]);
+      BIAS_TABLES[p - HLLConstants.MIN_P_VALUE] = table;
+    }
+    return table;
+  }
+
+  /**
+   * Reads raw estimates and bias for the given p from the bias data resource.
+   * The resource has a header (magic, min p, max p) followed by a section for
+   * each p with the number of entries (short), raw estimates and bias
+   * (doubles). Sections of smaller p are skipped without being decoded.
+   * @param p
+   *          - number of register index bits
+   * @return raw estimates and bias for p
+   */
+  static double[][] readBiasData(int p) {
+    InputStream resource = HLLConstants.class.getResourceAsStream(
+        HLLConstants.BIAS_DATA_RESOURCE);
+    if (resource == null) {
+      throw new IllegalStateException("Missing bias data resource "
+          + HLLConstants.BIAS_DATA_RESOURCE);
+    }
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(resource))) {
+      if (in.readInt() != BIAS_DATA_MAGIC) {
+        throw new IllegalStateException("Invalid bias data resource "
+            + HLLConstants.BIAS_DATA_RESOURCE);
+      }
+      int minP = in.readUnsignedByte();
+      int maxP = in.readUnsignedByte();
+      if (p < minP || p > maxP) {
+        throw new IllegalArgumentException("No bias data for p: " + p);
+      }
+      for (int i = minP; i < p; i++) {
+        int length = 2 * in.readUnsignedShort() * Double.BYTES;
+        while (length > 0) {
+          int skipped = in.skipBytes(length);
+          if (skipped <= 0) {
+            throw new EOFException("Truncated bias data resource");
+          }
+          length -= skipped;
+        }
+      }
+      double[][] data = new double[2][in.readUnsignedShort()];
+      for (double[] values : data) {
+        for (int i = 0; i < values.length; i++) {
+          values[i] = in.readDouble();
+        }
+      }
+      return data;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Raw estimates and their bias sorted by raw estimate, so that k-nearest
+   * neighbors can be found with a binary search followed by expanding a
+   * window of k entries instead of computing distance to every raw estimate.
+   */
+  private static final class BiasTable {
+    private final double[] rawEstimates;
+    private final double[] bias;
+
+    BiasTable(double[] rawEst, double[] biasData) {
+      this.rawEstimates = rawEst;
+      this.bias = biasData;
+      // sort in place by raw estimate (stable w.r.t table index for equal
+      // estimates). Raw estimates are almost sorted, so insertion sort is
+      // close to linear and avoids boxing and lambda bootstrap on first use
+      for (int i = 1; i < rawEst.length; i++) {
+        double raw = rawEst[i];
+        double b = biasData[i];
+        int j = i;
+        while (j > 0 && rawEst[j - 1] > raw) {
+          rawEst[j] = rawEst[j - 1];
+          biasData[j] = biasData[j - 1];
+          j--;
+        }
+        rawEst[j] = raw;
+        biasData[j] = b;
+      }
+    }
+
+    long estimateBias(long count) {
+      // insertion point of count in sorted raw estimates
+      int lo = 0;
+      int hi = rawEstimates.length;
+      while (lo < hi) {
+        int mid = (lo + hi) >>> 1;
+        if (rawEstimates[mid] < count) {
+          lo = mid + 1;
+        } else {
+          hi = mid;
+        }
+      }
+
+      // take top-k closest neighbors by expanding the window [left, right)
+      // around the insertion point and compute the bias corrected cardinality
+      int left = lo;
+      int right = lo;
+      double biasSum = 0;
+      for (int k = 0; k < HLLConstants.K_NEAREST_NEIGHBOR; k++) {
+        boolean hasLeft = left > 0;
+        boolean hasRight = right < rawEstimates.length;
+        if (!hasLeft && !hasRight) {
+          break;
+        }
+        if (hasLeft && (!hasRight || count - rawEstimates[left - 1] <= rawEstimates[right] - count)) {
+          biasSum += bias[--left];
+        } else {
+          biasSum += bias[right++];
+        }
+      }
+
+      // 0.5 added for rounding off
+      return (long) ((biasSum / HLLConstants.K_NEAREST_NEIGHBOR) + 0.5);
+    }
+  }
+}
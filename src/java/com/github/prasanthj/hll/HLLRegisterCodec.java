@@ -0,0 +1,363 @@
+/**
+ * Copyright 2017 Prasanth Jayachandran
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.prasanthj.hll;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+
+/**
+ * <pre>
+ * Block codecs for dense registers used by serialization format v2.
+ *
+ * <b>Offset encoding</b> - register values are stored as (value - base) using
+ * w bits (0..6) where base is the min register value. Values that do not fit
+ * in w bits are stored in an exception list. w is chosen to minimize the
+ * encoded size.
+ * |--1 byte--|-1 byte-|---------------|---varint---|-----------------------|
+ * | base     | w      | packed values | exceptions | (index delta, value)* |
+ * For w = 0, every register that is not equal to base is an exception. For
+ * w > 0, exceptions have all w bits set in the packed values.
+ *
+ * <b>Huffman encoding</b> - register values are entropy coded using canonical
+ * huffman codes of max length 15 bits. Register values are highly skewed
+ * around log2(n/m) and hence need ~3 bits per register on average.
+ * |--varint---|-------------------------|-------------------------------|
+ * | symbols   | (symbol, code length)*  | codes (MSB first, zero padded)|
+ * Symbols are sorted by (code length, symbol) so codes can be reconstructed
+ * from code lengths. If there is only one symbol no codes are written.
+ * </pre>
+ */
+final class HLLRegisterCodec {
+
+  private static final int MAX_OFFSET_BIT_WIDTH = 6;
+  private static final int MAX_CODE_LENGTH = 15;
+
+  private HLLRegisterCodec() {
+  }
+
+  /**
+   * Offset encode registers.
+   * @param register
+   *          - dense registers
+   * @param out
+   *          - output buffer
+   * @throws IOException - thrown by output buffer
+   */
+  static void encodeOffset(byte[] register, ByteArrayOutputStream out) throws IOException {
+    int[] counts = valueCounts(register);
+    int base = 0;
+    while (counts[base] == 0) {
+      base++;
+    }
+
+    // choose the bit width that minimizes packed size + exception list size
+    // (exceptions are approximated to take 3 bytes)
+    int bitWidth = 0;
+    long minCost = Long.MAX_VALUE;
+    for (int w = 0; w <= MAX_OFFSET_BIT_WIDTH; w++) {
+      int limit = w == 0 ? base + 1 : base + (1 << w) - 1;
+      long numExceptions = 0;
+      for (int v = limit; v < counts.length; v++) {
+        numExceptions += counts[v];
+      }
+      long cost = HLLRegisterPacker.packedLength(register.length, w) + 3 * numExceptions;
+      if (cost < minCost) {
+        minCost = cost;
+        bitWidth = w;
+      }
+    }
+
+    out.write(base);
+    out.write(bitWidth);
+    int limit = bitWidth == 0 ? base + 1 : base + (1 << bitWidth) - 1;
+    int numExceptions = 0;
+    for (int v = limit; v < counts.length; v++) {
+      numExceptions += counts[v];
+    }
+    if (bitWidth > 0) {
+      int escape = (1 << bitWidth) - 1;
+      byte[] offsets = new byte[register.length];
+      for (int i = 0; i < register.length; i++) {
+        int v = register[i] & 0xff;
+        offsets[i] = (byte) (v >= limit ? escape : v - base);
+      }
+      byte[] packed = new byte[HLLRegisterPacker.packedLength(register.length, bitWidth)];
+      HLLRegisterPacker.pack(offsets, bitWidth, packed);
+      out.write(packed);
+    }
+    HyperLogLogUtils.writeVulong(out, numExceptions);
+    int prev = 0;
+    for (int i = 0; i < register.length; i++) {
+      int v = register[i] & 0xff;
+      if (v >= limit) {
+        HyperLogLogUtils.writeVulong(out, i - prev);
+        out.write(v);
+        prev = i;
+      }
+    }
+  }
+
+  /**
+   * Decode offset encoded registers.
+   * @param in
+   *          - encoded registers
+   * @param register
+   *          - output registers
+   * @throws IOException - thrown when the input is corrupt
+   */
+  static void decodeOffset(ByteArrayInputStream in, byte[] register) throws IOException {
+    int base = readByte(in);
+    int bitWidth = readByte(in);
+    if (bitWidth > MAX_OFFSET_BIT_WIDTH) {
+      throw new IOException("Invalid bit width for offset encoding: " + bitWidth);
+    }
+    if (bitWidth == 0) {
+      Arrays.fill(register, (byte) base);
+    } else {
+      byte[] packed = new byte[HLLRegisterPacker.packedLength(register.length, bitWidth)];
+      readFully(in, packed);
+      HLLRegisterPacker.unpack(packed, bitWidth, register);
+      for (int i = 0; i < register.length; i++) {
+        register[i] += base;
+      }
+    }
+    int numExceptions = (int) HyperLogLogUtils.readVulong(in);
+    int idx = 0;
+    for (int i = 0; i < numExceptions; i++) {
+      idx += (int) HyperLogLogUtils.readVulong(in);
+      if (idx >= register.length) {
+        throw new IOException("Invalid exception index: " + idx);
+      }
+      register[idx] = (byte) readByte(in);
+    }
+  }
+
+  /**
+   * Huffman encode registers.
+   * @param register
+   *          - dense registers
+   * @param out
+   *          - output buffer
+   * @throws IOException - thrown by output buffer
+   */
+  static void encodeHuffman(byte[] register, ByteArrayOutputStream out) throws IOException {
+    int[] counts = valueCounts(register);
+    int[] lengths = codeLengths(counts);
+    int[] symbols = canonicalOrder(lengths);
+    int[] codes = canonicalCodes(symbols, lengths);
+
+    HyperLogLogUtils.writeVulong(out, symbols.length);
+    for (int symbol : symbols) {
+      out.write(symbol);
+      out.write(lengths[symbol]);
+    }
+    if (symbols.length == 1) {
+      return;
+    }
+
+    long bitBuffer = 0;
+    int numBits = 0;
+    for (byte b : register) {
+      int symbol = b & 0xff;
+      bitBuffer = (bitBuffer << lengths[symbol]) | codes[symbol];
+      numBits += lengths[symbol];
+      while (numBits >= 8) {
+        numBits -= 8;
+        out.write((int) (bitBuffer >>> numBits));
+      }
+    }
+    if (numBits > 0) {
+      out.write((int) (bitBuffer << (8 - numBits)));
+    }
+  }
+
+  /**
+   * Decode huffman encoded registers.
+   * @param in
+   *          - encoded registers
+   * @param register
+   *          - output registers
+   * @throws IOException - thrown when the input is corrupt
+   */
+  static void decodeHuffman(ByteArrayInputStream in, byte[] register) throws IOException {
+    int numSymbols = (int) HyperLogLogUtils.readVulong(in);
+    if (numSymbols < 1 || numSymbols > 256) {
+      throw new IOException("Invalid number of huffman symbols: " + numSymbols);
+    }
+    int[] lengths = new int[256];
+    int[] symbols = new int[numSymbols];
+    int maxLength = 0;
+    for (int i = 0; i < numSymbols; i++) {
+      symbols[i] = readByte(in);
+      lengths[symbols[i]] = readByte(in);
+      if (lengths[symbols[i]] < 1 || lengths[symbols[i]] > MAX_CODE_LENGTH
+          || (i > 0 && lengths[symbols[i]] < lengths[symbols[i - 1]])) {
+        throw new IOException("Invalid huffman code length: " + lengths[symbols[i]]);
+      }
+      maxLength = Math.max(maxLength, lengths[symbols[i]]);
+    }
+    if (numSymbols == 1) {
+      Arrays.fill(register, (byte) symbols[0]);
+      return;
+    }
+
+    // lookup table indexed by the next maxLength bits. Each entry has the
+    // symbol in upper bits and code length in lower 8 bits.
+    int[] codes = canonicalCodes(symbols, lengths);
+    int[] table = new int[1 << maxLength];
+    for (int symbol : symbols) {
+      int shift = maxLength - lengths[symbol];
+      int from = codes[symbol] << shift;
+      if (from + (1 << shift) > table.length) {
+        throw new IOException("Invalid huffman code lengths");
+      }
+      Arrays.fill(table, from, from + (1 << shift), (symbol << 8) | lengths[symbol]);
+    }
+
+    int mask = (1 << maxLength) - 1;
+    long bitBuffer = 0;
+    int numBits = 0;
+    for (int i = 0; i < register.length; i++) {
+      while (numBits < maxLength) {
+        // past the end of input is padded with zero bits
+        int b = in.read();
+        bitBuffer = (bitBuffer << 8) | (b < 0 ? 0 : b);
+        numBits += 8;
+      }
+      int entry = table[(int) (bitBuffer >>> (numBits - maxLength)) & mask];
+      if (entry == 0) {
+        throw new IOException("Invalid huffman code at register " + i);
+      }
+      register[i] = (byte) (entry >>> 8);
+      numBits -= entry & 0xff;
+    }
+  }
+
+  private static int[] valueCounts(byte[] register) {
+    int[] counts = new int[256];
+    for (byte b : register) {
+      counts[b & 0xff]++;
+    }
+    return counts;
+  }
+
+  /**
+   * Huffman code lengths for the specified symbol counts limited to
+   * MAX_CODE_LENGTH. Length is 0 for unused symbols.
+   */
+  private static int[] codeLengths(int[] counts) {
+    int[] freqs = Arrays.copyOf(counts, counts.length);
+    while (true) {
+      int[] lengths = new int[freqs.length];
+      // tree nodes: leaves are 0..255, internal nodes are 256..
+      int[] parent = new int[2 * freqs.length];
+      long[] weight = new long[2 * freqs.length];
+      PriorityQueue<Integer> queue = new PriorityQueue<Integer>(
+          (a, b) -> weight[a] != weight[b] ? Long.compare(weight[a], weight[b]) : a - b);
+      for (int s = 0; s < freqs.length; s++) {
+        if (freqs[s] > 0) {
+          weight[s] = freqs[s];
+          queue.add(s);
+        }
+      }
+      if (queue.size() == 1) {
+        lengths[queue.peek()] = 1;
+        return lengths;
+      }
+      int next = freqs.length;
+      while (queue.size() > 1) {
+        int a = queue.poll();
+        int b = queue.poll();
+        weight[next] = weight[a] + weight[b];
+        parent[a] = next;
+        parent[b] = next;
+        queue.add(next++);
+      }
+      int root = next - 1;
+      int maxLength = 0;
+      for (int s = 0; s < freqs.length; s++) {
+        if (freqs[s] > 0) {
+          int length = 0;
+          for (int n = s; n != root; n = parent[n]) {
+            length++;
+          }
+          lengths[s] = length;
+          maxLength = Math.max(maxLength, length);
+        }
+      }
+      if (maxLength <= MAX_CODE_LENGTH) {
+        return lengths;
+      }
+      // flatten the distribution and retry
+      for (int s = 0; s < freqs.length; s++) {
+        if (freqs[s] > 0) {
+          freqs[s] = (freqs[s] >>> 1) + 1;
+        }
+      }
+    }
+  }
+
+  // used symbols sorted by (code length, symbol)
+  private static int[] canonicalOrder(int[] lengths) {
+    int numSymbols = 0;
+    for (int length : lengths) {
+      if (length > 0) {
+        numSymbols++;
+      }
+    }
+    int[] symbols = new int[numSymbols];
+    int idx = 0;
+    for (int length = 1; length <= MAX_CODE_LENGTH; length++) {
+      for (int s = 0; s < lengths.length; s++) {
+        if (lengths[s] == length) {
+          symbols[idx++] = s;
+        }
+      }
+    }
+    return symbols;
+  }
+
+  // canonical codes for symbols in canonical order
+  private static int[] canonicalCodes(int[] symbols, int[] lengths) {
+    int[] codes = new int[256];
+    int code = 0;
+    int prevLength = lengths[symbols[0]];
+    for (int symbol : symbols) {
+      code <<= lengths[symbol] - prevLength;
+      codes[symbol] = code++;
+      prevLength = lengths[symbol];
+    }
+    return codes;
+  }
+
+  private static int readByte(ByteArrayInputStream in) throws IOException {
+    int b = in.read();
+    if (b < 0) {
+      throw new IOException("Unexpected end of encoded registers");
+    }
+    return b;
+  }
+
+  private static void readFully(ByteArrayInputStream in, byte[] buffer) throws IOException {
+    if (in.read(buffer, 0, buffer.length) != buffer.length) {
+      throw new IOException("Unexpected end of encoded registers");
+    }
+  }
+}
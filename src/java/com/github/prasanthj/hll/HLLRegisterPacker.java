@@ -0,0 +1,335 @@
+/**
+ * Copyright 2017 Prasanth Jayachandran
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.prasanthj.hll;
+
+/**
+ * Bit packing kernels for dense registers. Registers are packed MSB first, so
+ * 8 registers of bit width w always occupy exactly w bytes. Every kernel
+ * packs or unpacks 8 registers per step using a single long as bit buffer
+ * instead of walking one bit field at a time. The trailing group (when the
+ * number of registers is not a multiple of 8) is padded with zero bits.
+ */
+final class HLLRegisterPacker {
+
+  private HLLRegisterPacker() {
+  }
+
+  /**
+   * Number of bytes required to pack the specified number of registers.
+   * @param numRegisters
+   *          - number of registers
+   * @param bitWidth
+   *          - bits per register (1..8)
+   * @return packed length in bytes
+   */
+  static int packedLength(int numRegisters, int bitWidth) {
+    return (int) (((long) numRegisters * bitWidth + 7) >>> 3);
+  }
+
+  /**
+   * Pack registers to the specified bit width.
+   * @param register
+   *          - register values. All values must fit in bitWidth bits
+   * @param bitWidth
+   *          - bits per register (1..8)
+   * @param packed
+   *          - output array of at least packedLength() bytes
+   */
+  static void pack(byte[] register, int bitWidth, byte[] packed) {
+    int full = register.length & ~7;
+    switch (bitWidth) {
+    case 1:
+      pack1(register, full, packed);
+      break;
+    case 2:
+      pack2(register, full, packed);
+      break;
+    case 3:
+      pack3(register, full, packed);
+      break;
+    case 4:
+      pack4(register, full, packed);
+      break;
+    case 5:
+      pack5(register, full, packed);
+      break;
+    case 6:
+      pack6(register, full, packed);
+      break;
+    case 8:
+      System.arraycopy(register, 0, packed, 0, register.length);
+      return;
+    default:
+      throw new IllegalArgumentException("Unsupported bit width: " + bitWidth);
+    }
+    int tail = register.length - full;
+    if (tail > 0) {
+      // pad the last group to 8 registers
+      byte[] in = new byte[8];
+      byte[] out = new byte[bitWidth];
+      System.arraycopy(register, full, in, 0, tail);
+      pack(in, bitWidth, out);
+      int offset = (full >>> 3) * bitWidth;
+      System.arraycopy(out, 0, packed, offset, packedLength(register.length, bitWidth) - offset);
+    }
+  }
+
+  /**
+   * Unpack registers packed with pack().
+   * @param packed
+   *          - packed registers
+   * @param bitWidth
+   *          - bits per register (1..8)
+   * @param register
+   *          - output register array
+   */
+  static void unpack(byte[] packed, int bitWidth, byte[] register) {
+    int full = register.length & ~7;
+    switch (bitWidth) {
+    case 1:
+      unpack1(packed, register, full);
+      break;
+    case 2:
+      unpack2(packed, register, full);
+      break;
+    case 3:
+      unpack3(packed, register, full);
+      break;
+    case 4:
+      unpack4(packed, register, full);
+      break;
+    case 5:
+      unpack5(packed, register, full);
+      break;
+    case 6:
+      unpack6(packed, register, full);
+      break;
+    case 8:
+      System.arraycopy(packed, 0, register, 0, register.length);
+      return;
+    default:
+      throw new IllegalArgumentException("Unsupported bit width: " + bitWidth);
+    }
+    int tail = register.length - full;
+    if (tail > 0) {
+      byte[] in = new byte[bitWidth];
+      byte[] out = new byte[8];
+      int offset = (full >>> 3) * bitWidth;
+      System.arraycopy(packed, offset, in, 0, packedLength(register.length, bitWidth) - offset);
+      unpack(in, bitWidth, out);
+      System.arraycopy(out, 0, register, full, tail);
+    }
+  }
+
+  private static void pack1(byte[] register, int length, byte[] packed) {
+    for (int i = 0, o = 0; i < length; i += 8, o += 1) {
+      long bits = (register[i] & 0x1L) << 7
+          | (register[i + 1] & 0x1L) << 6
+          | (register[i + 2] & 0x1L) << 5
+          | (register[i + 3] & 0x1L) << 4
+          | (register[i + 4] & 0x1L) << 3
+          | (register[i + 5] & 0x1L) << 2
+          | (register[i + 6] & 0x1L) << 1
+          | (register[i + 7] & 0x1L);
+      packed[o] = (byte) bits;
+    }
+  }
+
+  private static void unpack1(byte[] packed, byte[] register, int length) {
+    for (int i = 0, o = 0; i < length; i += 8, o += 1) {
+      long bits = (packed[o] & 0xffL);
+      register[i] = (byte) ((bits >>> 7) & 0x1);
+      register[i + 1] = (byte) ((bits >>> 6) & 0x1);
+      register[i + 2] = (byte) ((bits >>> 5) & 0x1);
+      register[i + 3] = (byte) ((bits >>> 4) & 0x1);
+      register[i + 4] = (byte) ((bits >>> 3) & 0x1);
+      register[i + 5] = (byte) ((bits >>> 2) & 0x1);
+      register[i + 6] = (byte) ((bits >>> 1) & 0x1);
+      register[i + 7] = (byte) (bits & 0x1);
+    }
+  }
+
+  private static void pack2(byte[] register, int length, byte[] packed) {
+    for (int i = 0, o = 0; i < length; i += 8, o += 2) {
+      long bits = (register[i] & 0x3L) << 14
+          | (register[i + 1] & 0x3L) << 12
+          | (register[i + 2] & 0x3L) << 10
+          | (register[i + 3] & 0x3L) << 8
+          | (register[i + 4] & 0x3L) << 6
+          | (register[i + 5] & 0x3L) << 4
+          | (register[i + 6] & 0x3L) << 2
+          | (register[i + 7] & 0x3L);
+      packed[o] = (byte) (bits >>> 8);
+      packed[o + 1] = (byte) bits;
+    }
+  }
+
+  private static void unpack2(byte[] packed, byte[] register, int length) {
+    for (int i = 0, o = 0; i < length; i += 8, o += 2) {
+      long bits = (packed[o] & 0xffL) << 8
+          | (packed[o + 1] & 0xffL);
+      register[i] = (byte) ((bits >>> 14) & 0x3);
+      register[i + 1] = (byte) ((bits >>> 12) & 0x3);
+      register[i + 2] = (byte) ((bits >>> 10) & 0x3);
+      register[i + 3] = (byte) ((bits >>> 8) & 0x3);
+      register[i + 4] = (byte) ((bits >>> 6) & 0x3);
+      register[i + 5] = (byte) ((bits >>> 4) & 0x3);
+      register[i + 6] = (byte) ((bits >>> 2) & 0x3);
+      register[i + 7] = (byte) (bits & 0x3);
+    }
+  }
+
+  private static void pack3(byte[] register, int length, byte[] packed) {
+    for (int i = 0, o = 0; i < length; i += 8, o += 3) {
+      long bits = (register[i] & 0x7L) << 21
+          | (register[i + 1] & 0x7L) << 18
+          | (register[i + 2] & 0x7L) << 15
+          | (register[i + 3] & 0x7L) << 12
+          | (register[i + 4] & 0x7L) << 9
+          | (register[i + 5] & 0x7L) << 6
+          | (register[i + 6] & 0x7L) << 3
+          | (register[i + 7] & 0x7L);
+      packed[o] = (byte) (bits >>> 16);
+      packed[o + 1] = (byte) (bits >>> 8);
+      packed[o + 2] = (byte) bits;
+    }
+  }
+
+  private static void unpack3(byte[] packed, byte[] register, int length) {
+    for (int i = 0, o = 0; i < length; i += 8, o += 3) {
+      long bits = (packed[o] & 0xffL) << 16
+          | (packed[o + 1] & 0xffL) << 8
+          | (packed[o + 2] & 0xffL);
+      register[i] = (byte) ((bits >>> 21) & 0x7);
+      register[i + 1] = (byte) ((bits >>> 18) & 0x7);
+      register[i + 2] = (byte) ((bits >>> 15) & 0x7);
+      register[i + 3] = (byte) ((bits >>> 12) & 0x7);
+      register[i + 4] = (byte) ((bits >>> 9) & 0x7);
+      register[i + 5] = (byte) ((bits >>> 6) & 0x7);
+      register[i + 6] = (byte) ((bits >>> 3) & 0x7);
+      register[i + 7] = (byte) (bits & 0x7);
+    }
+  }
+
+  private static void pack4(byte[] register, int length, byte[] packed) {
+    for (int i = 0, o = 0; i < length; i += 8, o += 4) {
+      long bits = (register[i] & 0xfL) << 28
+          | (register[i + 1] & 0xfL) << 24
+          | (register[i + 2] & 0xfL) << 20
+          | (register[i + 3] & 0xfL) << 16
+          | (register[i + 4] & 0xfL) << 12
+          | (register[i + 5] & 0xfL) << 8
+          | (register[i + 6] & 0xfL) << 4
+          | (register[i + 7] & 0xfL);
+      packed[o] = (byte) (bits >>> 24);
+      packed[o + 1] = (byte) (bits >>> 16);
+      packed[o + 2] = (byte) (bits >>> 8);
+      packed[o + 3] = (byte) bits;
+    }
+  }
+
+  private static void unpack4(byte[] packed, byte[] register, int length) {
+    for (int i = 0, o = 0; i < length; i += 8, o += 4) {
+      long bits = (packed[o] & 0xffL) << 24
+          | (packed[o + 1] & 0xffL) << 16
+          | (packed[o + 2] & 0xffL) << 8
+          | (packed[o + 3] & 0xffL);
+      register[i] = (byte) ((bits >>> 28) & 0xf);
+      register[i + 1] = (byte) ((bits >>> 24) & 0xf);
+      register[i + 2] = (byte) ((bits >>> 20) & 0xf);
+      register[i + 3] = (byte) ((bits >>> 16) & 0xf);
+      register[i + 4] = (byte) ((bits >>> 12) & 0xf);
+      register[i + 5] = (byte) ((bits >>> 8) & 0xf);
+      register[i + 6] = (byte) ((bits >>> 4) & 0xf);
+      register[i + 7] = (byte) (bits & 0xf);
+    }
+  }
+
+  private static void pack5(byte[] register, int length, byte[] packed) {
+    for (int i = 0, o = 0; i < length; i += 8, o += 5) {
+      long bits = (register[i] & 0x1fL) << 35
+          | (register[i + 1] & 0x1fL) << 30
+          | (register[i + 2] & 0x1fL) << 25
+          | (register[i + 3] & 0x1fL) << 20
+          | (register[i + 4] & 0x1fL) << 15
+          | (register[i + 5] & 0x1fL) << 10
+          | (register[i + 6] & 0x1fL) << 5
+          | (register[i + 7] & 0x1fL);
+      packed[o] = (byte) (bits >>> 32);
+      packed[o + 1] = (byte) (bits >>> 24);
+      packed[o + 2] = (byte) (bits >>> 16);
+      packed[o + 3] = (byte) (bits >>> 8);
+      packed[o + 4] = (byte) bits;
+    }
+  }
+
+  private static void unpack5(byte[] packed, byte[] register, int length) {
+    for (int i = 0, o = 0; i < length; i += 8, o += 5) {
+      long bits = (packed[o] & 0xffL) << 32
+          | (packed[o + 1] & 0xffL) << 24
+          | (packed[o + 2] & 0xffL) << 16
+          | (packed[o + 3] & 0xffL) << 8
+          | (packed[o + 4] & 0xffL);
+      register[i] = (byte) ((bits >>> 35) & 0x1f);
+      register[i + 1] = (byte) ((bits >>> 30) & 0x1f);
+      register[i + 2] = (byte) ((bits >>> 25) & 0x1f);
+      register[i + 3] = (byte) ((bits >>> 20) & 0x1f);
+      register[i + 4] = (byte) ((bits >>> 15) & 0x1f);
+      register[i + 5] = (byte) ((bits >>> 10) & 0x1f);
+      register[i + 6] = (byte) ((bits >>> 5) & 0x1f);
+      register[i + 7] = (byte) (bits & 0x1f);
+    }
+  }
+
+  private static void pack6(byte[] register, int length, byte[] packed) {
+    for (int i = 0, o = 0; i < length; i += 8, o += 6) {
+      long bits = (register[i] & 0x3fL) << 42
+          | (register[i + 1] & 0x3fL) << 36
+          | (register[i + 2] & 0x3fL) << 30
+          | (register[i + 3] & 0x3fL) << 24
+          | (register[i + 4] & 0x3fL) << 18
+          | (register[i + 5] & 0x3fL) << 12
+          | (register[i + 6] & 0x3fL) << 6
+          | (register[i + 7] & 0x3fL);
+      packed[o] = (byte) (bits >>> 40);
+      packed[o + 1] = (byte) (bits >>> 32);
+      packed[o + 2] = (byte) (bits >>> 24);
+      packed[o + 3] = (byte) (bits >>> 16);
+      packed[o + 4] = (byte) (bits >>> 8);
+      packed[o + 5] = (byte) bits;
+    }
+  }
+
+  private static void unpack6(byte[] packed, byte[] register, int length) {
+    for (int i = 0, o = 0; i < length; i += 8, o += 6) {
+      long bits = (packed[o] & 0xffL) << 40
+          | (packed[o + 1] & 0xffL) << 32
+          | (packed[o + 2] & 0xffL) << 24
+          | (packed[o + 3] & 0xffL) << 16
+          | (packed[o + 4] & 0xffL) << 8
+          | (packed[o + 5] & 0xffL);
+      register[i] = (byte) ((bits >>> 42) & 0x3f);
+      register[i + 1] = (byte) ((bits >>> 36) & 0x3f);
+      register[i + 2] = (byte) ((bits >>> 30) & 0x3f);
+      register[i + 3] = (byte) ((bits >>> 24) & 0x3f);
+      register[i + 4] = (byte) ((bits >>> 18) & 0x3f);
+      register[i + 5] = (byte) ((bits >>> 12) & 0x3f);
+      register[i + 6] = (byte) ((bits >>> 6) & 0x3f);
+      register[i + 7] = (byte) (bits & 0x3f);
+    }
+  }
+}
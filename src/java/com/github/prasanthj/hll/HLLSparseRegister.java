@@ -13,10 +13,10 @@
 
 package com.github.prasanthj.hll;
 
-import java.util.Map;
 import java.util.Map.Entry;
 
 import it.unimi.dsi.fastutil.ints.Int2ByteAVLTreeMap;
+import it.unimi.dsi.fastutil.ints.Int2ByteMap;
 import it.unimi.dsi.fastutil.ints.Int2ByteSortedMap;
 
 public class HLLSparseRegister implements HLLRegister {
@@ -46,6 +46,13 @@ public class HLLSparseRegister implements HLLRegister {
   private final int pPrimeMask;
   private final int qPrimeMask;
 
+  // sparse map is shared with a snapshot and is copied before the next write
+  // (copy-on-write)
+  private boolean shared;
+
+  // receives temp list merges, null if metrics are disabled
+  private HyperLogLogMetrics metrics;
+
   public HLLSparseRegister(int p, int pp, int qp) {
     this.p = p;
     this.sparseMap = new Int2ByteAVLTreeMap();
@@ -58,48 +65,148 @@ public class HLLSparseRegister implements HLLRegister {
     this.qPrimeMask = (1 << qPrime) - 1;
   }
 
-  public boolean add(long hashcode) {
-    boolean updated;
-
-    // fill the temp list before merging to sparse map
-    if (tempListIdx < tempList.length) {
-      int encodedHash = encodeHash(hashcode);
-      tempList[tempListIdx++] = encodedHash;
-      updated = true;
+  private HLLSparseRegister(HLLSparseRegister other, boolean shareMap) {
+    this.p = other.p;
+    this.pPrime = other.pPrime;
+    this.qPrime = other.qPrime;
+    this.mask = other.mask;
+    this.pPrimeMask = other.pPrimeMask;
+    this.qPrimeMask = other.qPrimeMask;
+    this.tempList = new int[HLLConstants.TEMP_LIST_DEFAULT_SIZE];
+    this.tempListIdx = 0;
+    this.metrics = other.metrics;
+    if (shareMap) {
+      this.sparseMap = other.getMergedSparseMap();
+      this.shared = true;
+      other.shared = true;
     } else {
-      updated = mergeTempListToSparseMap();
+      this.sparseMap = new Int2ByteAVLTreeMap(other.getMergedSparseMap());
     }
+  }
+
+  /**
+   * @return independent copy of this register
+   */
+  public HLLSparseRegister copy() {
+    return new HLLSparseRegister(this, false);
+  }
+
+  /**
+   * Copy of this register that shares the sparse map with this register. The
+   * temp list is merged to the sparse map first, and the map is copied lazily
+   * by whichever register is written to first. Must be called from the
+   * thread that updates this register.
+   * @return copy-on-write copy of this register
+   */
+  public HLLSparseRegister snapshot() {
+    return new HLLSparseRegister(this, true);
+  }
 
-    return updated;
+  public boolean add(long hashcode) {
+    // fill the temp list before merging to sparse map. The hashcode is added
+    // to the emptied temp list after merging a full temp list
+    if (tempListIdx == tempList.length) {
+      mergeTempListToSparseMap();
+    }
+    tempList[tempListIdx++] = encodeHash(hashcode);
+    return true;
   }
 
   /**
    * Adds temp list to sparse map. The key for sparse map entry is the register
    * index determined by pPrime and value is the number of trailing zeroes.
-   * @return
+   * The merge is reported to metrics (if set) with the number of temp list
+   * entries that updated the sparse map.
    */
-  private boolean mergeTempListToSparseMap() {
-    boolean updated = false;
-    for (int i = 0; i < tempListIdx; i++) {
-      int encodedHash = tempList[i];
-      int key = encodedHash & pPrimeMask;
-      byte value = (byte) (encodedHash >>> pPrime);
-      byte nr = 0;
-      // if MSB is set to 1 then next qPrime MSB bits contains the value of
-      // number of zeroes.
-      // if MSB is set to 0 then number of zeroes is contained within pPrime - p
-      // bits.
-      if (encodedHash < 0) {
-        nr = (byte) (value & qPrimeMask);
-      } else {
-        nr = (byte) (Integer.numberOfTrailingZeros(encodedHash >>> p) + 1);
+  private void mergeTempListToSparseMap() {
+    if (metrics == null) {
+      for (int i = 0; i < tempListIdx; i++) {
+        setEncodedHash(tempList[i]);
       }
-      updated = set(key, nr);
+    } else {
+      long start = System.nanoTime();
+      int numUpdates = 0;
+      for (int i = 0; i < tempListIdx; i++) {
+        if (setEncodedHash(tempList[i])) {
+          numUpdates++;
+        }
+      }
+      metrics.onTempListMerge(tempListIdx, numUpdates, sparseMap.size(),
+          System.nanoTime() - start);
     }
 
     // reset temp list index
     tempListIdx = 0;
-    return updated;
+  }
+
+  private boolean setEncodedHash(int encodedHash) {
+    int key = encodedHash & pPrimeMask;
+    byte value = (byte) (encodedHash >>> pPrime);
+    byte nr = 0;
+    // if MSB is set to 1 then next qPrime MSB bits contains the value of
+    // number of zeroes.
+    // if MSB is set to 0 then number of zeroes is contained within pPrime - p
+    // bits.
+    if (encodedHash < 0) {
+      nr = (byte) (value & qPrimeMask);
+    } else {
+      nr = (byte) (Integer.numberOfTrailingZeros(encodedHash >>> p) + 1);
+    }
+    return set(key, nr);
+  }
+
+  /**
+   * Adds hashcode directly to the sparse map without going through the temp
+   * list. Used when switching from EXACT encoding.
+   * @param hashcode
+   *          - hashcode to add
+   * @return true if register value is updated else false
+   */
+  boolean addToSparseMap(long hashcode) {
+    return setEncodedHash(encodeHash(hashcode));
+  }
+
+  /**
+   * Same as addToSparseMap() and returns the decrease in probability that a
+   * random hashcode updates the sparse map. Used by the martingale estimator.
+   * @param hashcode
+   *          - hashcode to add
+   * @return decrease in update probability, 0 if the sparse map is not
+   *         updated
+   */
+  double addAndGetProbabilityDecrease(long hashcode) {
+    int encodedHash = encodeHash(hashcode);
+    int key = encodedHash & pPrimeMask;
+    byte current = sparseMap.get(key);
+    if (!setEncodedHash(encodedHash)) {
+      return 0;
+    }
+    double decrease = updateProbability(key, current) - updateProbability(key, sparseMap.get(key));
+    return decrease / (1 << pPrime);
+  }
+
+  /**
+   * @return probability that a random hashcode updates the sparse map
+   */
+  double getUpdateProbability() {
+    double sum = 0;
+    for (Int2ByteMap.Entry entry : getMergedSparseMap().int2ByteEntrySet()) {
+      sum += 1 - updateProbability(entry.getIntKey(), entry.getByteValue());
+    }
+    return 1 - sum / (1 << pPrime);
+  }
+
+  // probability that a hashcode with p' bit index key updates the value. The
+  // value of keys with non-zero bits between p and p' is fixed by the key,
+  // else the trailing zero run continues beyond p' - p bits
+  private double updateProbability(int key, byte value) {
+    if (value == 0) {
+      return 1;
+    }
+    if ((key & mask) != 0) {
+      return 0;
+    }
+    return HLLConstants.inversePow2Data[value - (pPrime - p)];
   }
 
   /**
@@ -149,18 +256,51 @@ public class HLLSparseRegister implements HLLRegister {
     }
   }
 
+  /**
+   * Removes all entries. The temporary list is retained for reuse.
+   */
+  public void clear() {
+    if (shared) {
+      sparseMap = new Int2ByteAVLTreeMap();
+      shared = false;
+    } else {
+      sparseMap.clear();
+    }
+    tempListIdx = 0;
+  }
+
+  void setMetrics(HyperLogLogMetrics metrics) {
+    this.metrics = metrics;
+  }
+
   public int getSize() {
     return sparseMap.size() + tempListIdx;
   }
 
+  /**
+   * Merge the specified sparse register. Values of register with larger p are
+   * downscaled to the p of this register while merging. Keys are p' bit
+   * indices for both registers and hence are retained as such.
+   * @param hllRegister
+   *          - sparse register with same p' and p greater than or equal to p
+   *          of this register
+   */
   public void merge(HLLRegister hllRegister) {
     if (hllRegister instanceof HLLSparseRegister) {
       HLLSparseRegister hsr = (HLLSparseRegister) hllRegister;
+      if (hsr.p < p || hsr.pPrime != pPrime) {
+        throw new IllegalArgumentException("Sparse register with p " + hsr.p + " and p' "
+            + hsr.pPrime + " cannot be merged into sparse register with p " + p + " and p' "
+            + pPrime);
+      }
 
       // retain only the largest value for a register index
-      for (Map.Entry<Integer, Byte> entry : hsr.getSparseMap().entrySet()) {
-        int key = entry.getKey();
-        byte value = entry.getValue();
+      for (Int2ByteMap.Entry entry : hsr.getSparseMap().int2ByteEntrySet()) {
+        int key = entry.getIntKey();
+        byte value = entry.getByteValue();
+        if (hsr.p != p) {
+          value = HLLDenseRegister.downscaleRegister(key, value, hsr.p, p);
+        }
         set(key, value);
       }
     } else {
@@ -172,6 +312,10 @@ public class HLLSparseRegister implements HLLRegister {
     // retain only the largest value for a register index
     Byte containedValue = sparseMap.get(key);
     if (value > containedValue) {
+      if (shared) {
+        sparseMap = new Int2ByteAVLTreeMap(sparseMap);
+        shared = false;
+      }
       sparseMap.put(key, value);
       return true;
     }
@@ -13,13 +13,9 @@
 
 package com.github.prasanthj.hll;
 
-import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.Map;
 
-import it.unimi.dsi.fastutil.doubles.Double2IntAVLTreeMap;
-import it.unimi.dsi.fastutil.doubles.Double2IntSortedMap;
-
 /**
  * <pre>
  * This is an implementation of the following variants of hyperloglog (HLL)
@@ -34,15 +30,26 @@ import it.unimi.dsi.fastutil.doubles.Double2IntSortedMap;
  * Following are the constructor parameters that determines which algorithm is
  * used
  * <b>numRegisterIndexBits</b> - number of LSB hashcode bits to be used as register index.
- *                        <i>Default is 14</i>. min = 4 and max = 16
+ *                        <i>Default is 14</i>. min = 4 and max = 20
  * <b>numHashBits</b> - number of bits for hashcode. <i>Default is 64</i>. min = 32 and max = 128
- * <b>encoding</b> - Type of encoding to use (SPARSE or DENSE). The algorithm automatically
+ * <b>encoding</b> - Type of encoding to use (EXACT, SPARSE or DENSE). The algorithm automatically
  *            switches to DENSE beyond a threshold. <i>Default: SPARSE</i>
+ * <b>exactSetThreshold</b> - Max number of distinct hashcodes in EXACT encoding. EXACT
+ *                     encoding stores full hashcodes and counts exactly, it switches
+ *                     to SPARSE beyond this threshold. <i>Default: 64</i>. max = 1024
  * <b>enableBitPacking</b> - To enable bit packing or not. Bit packing improves compression
  *                    at the cost of more CPU cycles. <i>Default: true</i>
  * <b>noBias</b> - Use Google's bias table lookup for short range bias correction.
  *          Enabling this will highly improve the estimation accuracy for short
  *          range values. <i>Default: true</i>
+ * <b>estimator</b> - Estimator for DENSE registers (HLLPlusPlusEstimator or
+ *             ErtlImprovedEstimator). <i>Default: HLLPlusPlusEstimator</i>
+ * <b>metrics</b> - Listener for adds, encoding switches, merges and serialization
+ *           (e.g, HyperLogLogStats). <i>Default: disabled</i>
+ * <b>martingaleEstimator</b> - Maintain a martingale (historic inverse probability) estimate
+ *                       on every register update. count() is O(1) and has lower error
+ *                       for hyperloglogs that are never merged. merge() falls back to
+ *                       the standard estimator. <i>Default: false</i>
  *
  * </pre>
  */
@@ -50,12 +57,11 @@ public class HyperLogLog {
   private final static int DEFAULT_HASH_BITS = 64;
   private final static long HASH64_ZERO = Murmur3.hash64(new byte[]{0});
   private final static long HASH64_ONE = Murmur3.hash64(new byte[]{1});
-  private final static ByteBuffer SHORT_BUFFER = ByteBuffer.allocate(Short.BYTES);
-  private final static ByteBuffer INT_BUFFER = ByteBuffer.allocate(Integer.BYTES);
-  private final static ByteBuffer LONG_BUFFER = ByteBuffer.allocate(Long.BYTES);
 
   public enum EncodingType {
-    SPARSE, DENSE
+    SPARSE, DENSE,
+    /** set of hashcodes with exact count, switches to SPARSE beyond a threshold */
+    EXACT
   }
 
   // number of bits to address registers
@@ -64,9 +70,6 @@ public class HyperLogLog {
   // number of registers - 2^p
   private final int m;
 
-  // refer paper
-  private float alphaMM;
-
   // enable/disable bias correction using table lookup
   private final boolean noBias;
 
@@ -76,8 +79,21 @@ public class HyperLogLog {
   // Not making it configurable for perf reasons (avoid checks)
   private final int chosenHashBits = DEFAULT_HASH_BITS;
 
+  // estimator used for DENSE registers
+  private final CardinalityEstimator estimator;
+
+  // null if metrics are disabled
+  private HyperLogLogMetrics metrics;
+
   private HLLDenseRegister denseRegister;
   private HLLSparseRegister sparseRegister;
+  private HLLExactSet exactSet;
+
+  // registers retained after reset() for reuse when switching encoding. Only
+  // hyperloglogs that are reset retain the unused register.
+  private HLLDenseRegister spareDenseRegister;
+  private HLLSparseRegister spareSparseRegister;
+  private boolean recycleRegisters;
 
   // counts are cached to avoid repeated complex computation. If register value
   // is updated the count will be computed again.
@@ -86,17 +102,42 @@ public class HyperLogLog {
 
   private EncodingType encoding;
 
+  // add path of the current encoding. Switched along with the encoding so
+  // that add() does not check the encoding or the switch threshold after the
+  // hyperloglog is DENSE
+  private Adder adder;
+
+  // encoding the hyperloglog was built with and returns to after reset()
+  private final EncodingType initialEncoding;
+
   // threshold to switch from SPARSE to DENSE encoding
   private int encodingSwitchThreshold;
 
+  // threshold to switch from EXACT to SPARSE encoding
+  private final int exactSetThreshold;
+
+  // martingale estimator adds the inverse of the probability that a hashcode
+  // updates the registers to the running estimate on every register update.
+  // The estimate is valid only until the first merge
+  private final boolean martingaleEstimator;
+  private boolean martingaleValid;
+  private double martingaleEstimate;
+  private double updateProbability;
+
   private HyperLogLog(HyperLogLogBuilder hllBuilder) {
     if (hllBuilder.numRegisterIndexBits < HLLConstants.MIN_P_VALUE
       || hllBuilder.numRegisterIndexBits > HLLConstants.MAX_P_VALUE) {
       throw new IllegalArgumentException("p value should be between " + HLLConstants.MIN_P_VALUE
         + " to " + HLLConstants.MAX_P_VALUE);
     }
+    if (hllBuilder.exactSetThreshold < 1
+      || hllBuilder.exactSetThreshold > HLLConstants.EXACT_SET_MAX_THRESHOLD) {
+      throw new IllegalArgumentException("Exact set threshold should be between 1 to "
+        + HLLConstants.EXACT_SET_MAX_THRESHOLD);
+    }
     this.p = hllBuilder.numRegisterIndexBits;
     this.m = 1 << p;
+    this.exactSetThreshold = hllBuilder.exactSetThreshold;
     this.noBias = hllBuilder.noBias;
     this.bitPacking = hllBuilder.bitPacking;
 
@@ -114,25 +155,63 @@ public class HyperLogLog {
       this.encodingSwitchThreshold = m / 3;
     }
 
-    // initializeAlpha(DEFAULT_HASH_BITS);
-    // alphaMM value for 128 bits hash seems to perform better for default 64 hash bits
-    this.alphaMM = 0.7213f / (1 + 1.079f / m);
-    // For efficiency alpha is multiplied by m^2
-    this.alphaMM = this.alphaMM * m * m;
+    if (hllBuilder.estimator != null) {
+      this.estimator = hllBuilder.estimator;
+    } else {
+      this.estimator = new HLLPlusPlusEstimator(noBias);
+    }
+    this.metrics = hllBuilder.metrics;
+    this.martingaleEstimator = hllBuilder.martingaleEstimator;
+    this.martingaleValid = martingaleEstimator;
+    this.martingaleEstimate = 0;
+    this.updateProbability = 1;
 
     this.cachedCount = -1;
     this.invalidateCount = false;
     this.encoding = hllBuilder.encoding;
+    this.initialEncoding = hllBuilder.encoding;
+    this.adder = adderFor(encoding);
     if (encoding.equals(EncodingType.SPARSE)) {
-      this.sparseRegister = new HLLSparseRegister(p, HLLConstants.P_PRIME_VALUE,
-        HLLConstants.Q_PRIME_VALUE);
+      this.sparseRegister = newSparseRegister();
       this.denseRegister = null;
+    } else if (encoding.equals(EncodingType.EXACT)) {
+      this.exactSet = new HLLExactSet();
     } else {
       this.sparseRegister = null;
       this.denseRegister = new HLLDenseRegister(p, bitPacking);
     }
   }
 
+  private HyperLogLog(HyperLogLog other, boolean shareRegisters) {
+    this.p = other.p;
+    this.m = other.m;
+    this.noBias = other.noBias;
+    this.bitPacking = other.bitPacking;
+    this.encodingSwitchThreshold = other.encodingSwitchThreshold;
+    this.exactSetThreshold = other.exactSetThreshold;
+    this.estimator = other.estimator;
+    this.metrics = other.metrics;
+    this.martingaleEstimator = other.martingaleEstimator;
+    this.martingaleValid = other.martingaleValid;
+    this.martingaleEstimate = other.martingaleEstimate;
+    this.updateProbability = other.updateProbability;
+    this.cachedCount = other.cachedCount;
+    this.invalidateCount = other.invalidateCount;
+    this.encoding = other.encoding;
+    this.initialEncoding = other.initialEncoding;
+    this.adder = other.adder;
+    if (encoding.equals(EncodingType.SPARSE)) {
+      this.sparseRegister = shareRegisters ? other.sparseRegister.snapshot()
+        : other.sparseRegister.copy();
+    } else if (encoding.equals(EncodingType.EXACT)) {
+      // small enough to be copied for snapshots too
+      this.exactSet = other.exactSet.copy();
+    } else {
+      this.denseRegister = shareRegisters ? other.denseRegister.snapshot()
+        : other.denseRegister.copy();
+    }
+  }
+
   public static HyperLogLogBuilder builder() {
     return new HyperLogLogBuilder();
   }
@@ -142,6 +221,10 @@ public class HyperLogLog {
     private EncodingType encoding = EncodingType.SPARSE;
     private boolean bitPacking = true;
     private boolean noBias = true;
+    private CardinalityEstimator estimator = null;
+    private HyperLogLogMetrics metrics = null;
+    private int exactSetThreshold = HLLConstants.EXACT_SET_DEFAULT_THRESHOLD;
+    private boolean martingaleEstimator = false;
 
     public HyperLogLogBuilder() {
     }
@@ -166,25 +249,76 @@ public class HyperLogLog {
       return this;
     }
 
-    public HyperLogLog build() {
-      return new HyperLogLog(this);
+    /**
+     * Estimator to use for DENSE registers. By default HLLPlusPlusEstimator is
+     * used with bias correction as specified by enableNoBias().
+     * @param est
+     *          - cardinality estimator
+     * @return builder
+     */
+    public HyperLogLogBuilder setCardinalityEstimator(CardinalityEstimator est) {
+      this.estimator = est;
+      return this;
     }
-  }
 
-  // see paper for alpha initialization.
-  private void initializeAlpha(final int hashBits) {
-    if (hashBits <= 16) {
-      alphaMM = 0.673f;
-    } else if (hashBits <= 32) {
-      alphaMM = 0.697f;
-    } else if (hashBits <= 64) {
-      alphaMM = 0.709f;
-    } else {
-      alphaMM = 0.7213f / (float) (1 + 1.079f / m);
+    /**
+     * Listener for internal events of the hyperloglog. Metrics are disabled by
+     * default.
+     * @param m
+     *          - metrics listener (null to disable metrics)
+     * @return builder
+     */
+    public HyperLogLogBuilder setMetrics(HyperLogLogMetrics m) {
+      this.metrics = m;
+      return this;
     }
 
-    // For efficiency alpha is multiplied by m^2
-    alphaMM = alphaMM * m * m;
+    /**
+     * Max number of distinct hashcodes stored by EXACT encoding before
+     * switching to SPARSE encoding.
+     * @param threshold
+     *          - number of hashcodes (1 to 1024)
+     * @return builder
+     */
+    public HyperLogLogBuilder setExactSetThreshold(int threshold) {
+      this.exactSetThreshold = threshold;
+      return this;
+    }
+
+    /**
+     * Maintain a martingale (historic inverse probability) estimate that is
+     * updated on every register update. count() returns the running estimate
+     * which has ~20% lower error than the standard estimators for
+     * hyperloglogs that are fed from a single stream. SPARSE hashcodes are
+     * added to the sparse map directly (without the temp list). After
+     * merge() the standard estimator is used.
+     * @return builder
+     */
+    public HyperLogLogBuilder enableMartingaleEstimator() {
+      this.martingaleEstimator = true;
+      return this;
+    }
+
+    /**
+     * @return new builder with the same configuration, which is not affected
+     *         by later changes to this builder
+     */
+    public HyperLogLogBuilder copy() {
+      HyperLogLogBuilder copy = new HyperLogLogBuilder();
+      copy.numRegisterIndexBits = numRegisterIndexBits;
+      copy.encoding = encoding;
+      copy.bitPacking = bitPacking;
+      copy.noBias = noBias;
+      copy.estimator = estimator;
+      copy.metrics = metrics;
+      copy.exactSetThreshold = exactSetThreshold;
+      copy.martingaleEstimator = martingaleEstimator;
+      return copy;
+    }
+
+    public HyperLogLog build() {
+      return new HyperLogLog(this);
+    }
   }
 
   public void addBoolean(boolean val) {
@@ -200,33 +334,27 @@ public class HyperLogLog {
   }
 
   public void addShort(short val) {
-    SHORT_BUFFER.putShort(0, val);
-    add(Murmur3.hash64(SHORT_BUFFER.array()));
+    add(Murmur3.hash64(val));
   }
 
   public void addInt(int val) {
-    INT_BUFFER.putInt(0, val);
-    add(Murmur3.hash64(INT_BUFFER.array()));
+    add(Murmur3.hash64(val));
   }
 
   public void addLong(long val) {
-    LONG_BUFFER.putLong(0, val);
-    add(Murmur3.hash64(LONG_BUFFER.array()));
+    add(Murmur3.hash64(val));
   }
 
   public void addFloat(float val) {
-    INT_BUFFER.putFloat(0, val);
-    add(Murmur3.hash64(INT_BUFFER.array()));
+    add(Murmur3.hash64(Float.floatToRawIntBits(val)));
   }
 
   public void addDouble(double val) {
-    LONG_BUFFER.putDouble(0, val);
-    add(Murmur3.hash64(LONG_BUFFER.array()));
+    add(Murmur3.hash64(Double.doubleToRawLongBits(val)));
   }
 
   public void addChar(char val) {
-    SHORT_BUFFER.putChar(0, val);
-    add(Murmur3.hash64(SHORT_BUFFER.array()));
+    add(Murmur3.hash64((short) val));
   }
 
   /**
@@ -243,128 +371,205 @@ public class HyperLogLog {
   }
 
   public void add(long hashcode) {
-    if (encoding.equals(EncodingType.SPARSE)) {
-      if (sparseRegister.add(hashcode)) {
-        invalidateCount = true;
+    adder.add(this, hashcode);
+  }
+
+  /**
+   * Adds a batch of hashcodes. Same as calling add() for each hashcode but
+   * DENSE hyperloglogs without metrics update registers in a single loop.
+   * @param hashcodes
+   *          - 64 bit hashcodes
+   * @param offset
+   *          - offset of first hashcode
+   * @param length
+   *          - number of hashcodes
+   */
+  public void addAll(long[] hashcodes, int offset, int length) {
+    final int end = offset + length;
+    int i = offset;
+    // adder changes if the hyperloglog switches to DENSE within the batch
+    while (i < end && adder != DENSE_ADDER) {
+      adder.add(this, hashcodes[i++]);
+    }
+    if (i < end && denseRegister.addAll(hashcodes, i, end - i)) {
+      invalidateCount = true;
+    }
+  }
+
+  private interface Adder {
+    void add(HyperLogLog hll, long hashcode);
+  }
+
+  private static final Adder EXACT_ADDER = new Adder() {
+    @Override
+    public void add(HyperLogLog hll, long hashcode) {
+      if (hll.exactSet.add(hashcode)) {
+        hll.invalidateCount = true;
+        if (hll.exactSet.size() > hll.exactSetThreshold) {
+          hll.switchToSparse();
+        }
+      }
+    }
+  };
+
+  private static final Adder SPARSE_ADDER = new Adder() {
+    @Override
+    public void add(HyperLogLog hll, long hashcode) {
+      if (hll.sparseRegister.add(hashcode)) {
+        hll.invalidateCount = true;
       }
 
       // if size of sparse map excess the threshold convert the sparse map to
       // dense register and switch to DENSE encoding
-      if (sparseRegister.getSize() > encodingSwitchThreshold) {
-        encoding = EncodingType.DENSE;
-        denseRegister = sparseToDenseRegister(sparseRegister);
-        sparseRegister = null;
-        invalidateCount = true;
+      if (hll.sparseRegister.getSize() > hll.encodingSwitchThreshold) {
+        hll.switchToDense();
+        hll.invalidateCount = true;
       }
-    } else {
-      if (denseRegister.add(hashcode)) {
-        invalidateCount = true;
+    }
+  };
+
+  private static final Adder DENSE_ADDER = new Adder() {
+    @Override
+    public void add(HyperLogLog hll, long hashcode) {
+      if (hll.denseRegister.add(hashcode)) {
+        hll.invalidateCount = true;
+      }
+    }
+  };
+
+  // same as above with metrics. Used only when metrics are enabled
+  private static final Adder METERED_EXACT_ADDER = new Adder() {
+    @Override
+    public void add(HyperLogLog hll, long hashcode) {
+      boolean updated = hll.exactSet.add(hashcode);
+      hll.metrics.onAdd(EncodingType.EXACT, updated);
+      if (updated) {
+        hll.invalidateCount = true;
+        if (hll.exactSet.size() > hll.exactSetThreshold) {
+          hll.switchToSparse();
+        }
+      }
+    }
+  };
+
+  private static final Adder METERED_SPARSE_ADDER = new Adder() {
+    @Override
+    public void add(HyperLogLog hll, long hashcode) {
+      // register updates are reported by the sparse register when the temp
+      // list is merged
+      HLLSparseRegister register = hll.sparseRegister;
+      if (register.add(hashcode)) {
+        hll.invalidateCount = true;
       }
+      hll.metrics.onAdd(EncodingType.SPARSE, false);
+      if (register.getSize() > hll.encodingSwitchThreshold) {
+        hll.switchToDense();
+        hll.invalidateCount = true;
+      }
+    }
+  };
+
+  private static final Adder METERED_DENSE_ADDER = new Adder() {
+    @Override
+    public void add(HyperLogLog hll, long hashcode) {
+      boolean updated = hll.denseRegister.add(hashcode);
+      if (updated) {
+        hll.invalidateCount = true;
+      }
+      hll.metrics.onAdd(EncodingType.DENSE, updated);
     }
+  };
+
+  // martingale adders update the running estimate when the registers are
+  // updated. Metrics are checked inline as only single stream hyperloglogs
+  // use these adders
+  private static final Adder MARTINGALE_SPARSE_ADDER = new Adder() {
+    @Override
+    public void add(HyperLogLog hll, long hashcode) {
+      boolean updated = hll.updateMartingale(
+          hll.sparseRegister.addAndGetProbabilityDecrease(hashcode));
+      if (hll.metrics != null) {
+        hll.metrics.onAdd(EncodingType.SPARSE, updated);
+      }
+      if (hll.sparseRegister.getSize() > hll.encodingSwitchThreshold) {
+        hll.switchToDense();
+      }
+    }
+  };
+
+  private static final Adder MARTINGALE_DENSE_ADDER = new Adder() {
+    @Override
+    public void add(HyperLogLog hll, long hashcode) {
+      boolean updated = hll.updateMartingale(
+          hll.denseRegister.addAndGetProbabilityDecrease(hashcode));
+      if (hll.metrics != null) {
+        hll.metrics.onAdd(EncodingType.DENSE, updated);
+      }
+    }
+  };
+
+  private boolean updateMartingale(double probabilityDecrease) {
+    if (probabilityDecrease > 0) {
+      martingaleEstimate += 1.0 / updateProbability;
+      updateProbability -= probabilityDecrease;
+      return true;
+    }
+    return false;
+  }
+
+  private Adder adderFor(EncodingType encoding) {
+    if (martingaleValid && !encoding.equals(EncodingType.EXACT)) {
+      return encoding.equals(EncodingType.SPARSE) ? MARTINGALE_SPARSE_ADDER
+        : MARTINGALE_DENSE_ADDER;
+    }
+    if (encoding.equals(EncodingType.EXACT)) {
+      return metrics == null ? EXACT_ADDER : METERED_EXACT_ADDER;
+    }
+    if (encoding.equals(EncodingType.SPARSE)) {
+      return metrics == null ? SPARSE_ADDER : METERED_SPARSE_ADDER;
+    }
+    return metrics == null ? DENSE_ADDER : METERED_DENSE_ADDER;
   }
 
   public long count() {
+    // the running martingale estimate is not cached
+    if (martingaleValid && !encoding.equals(EncodingType.EXACT)) {
+      return estimateCount();
+    }
 
     // compute count only if the register values are updated else return the
     // cached count
     if (invalidateCount || cachedCount < 0) {
-      if (encoding.equals(EncodingType.SPARSE)) {
-
-        // if encoding is still SPARSE use linear counting with increase
-        // accuracy (as we use pPrime bits for register index)
-        int mPrime = 1 << sparseRegister.getPPrime();
-        cachedCount = linearCount(mPrime, mPrime - sparseRegister.getSparseMap().size());
-      } else {
-
-        // for DENSE encoding, use bias table lookup for HLLNoBias algorithm
-        // else fallback to HLLOriginal algorithm
-        double sum = denseRegister.getSumInversePow2();
-        long numZeros = denseRegister.getNumZeroes();
-
-        // cardinality estimate from normalized bias corrected harmonic mean on
-        // the registers
-        cachedCount = (long) (alphaMM * (1.0 / sum));
-        long pow = (long) Math.pow(2, chosenHashBits);
-
-        // when bias correction is enabled
-        if (noBias) {
-          cachedCount = cachedCount <= 5 * m ? (cachedCount - estimateBias(cachedCount))
-            : cachedCount;
-          long h = cachedCount;
-          if (numZeros != 0) {
-            h = linearCount(m, numZeros);
-          }
-
-          if (h < getThreshold()) {
-            cachedCount = h;
-          }
-        } else {
-          // HLL algorithm shows stronger bias for values in (2.5 * m) range.
-          // To compensate for this short range bias, linear counting is used
-          // for values before this short range. The original paper also says
-          // similar bias is seen for long range values due to hash collisions
-          // in range >1/30*(2^32). For the default case, we do not have to
-          // worry about this long range bias as the paper used 32-bit hashing
-          // and we use 64-bit hashing as default. 2^64 values are too high to
-          // observe long range bias (hash collisions).
-          if (cachedCount <= 2.5 * m) {
-
-            // for short range use linear counting
-            if (numZeros != 0) {
-              cachedCount = linearCount(m, numZeros);
-            }
-          } else if (chosenHashBits < 64 && cachedCount > (0.033333 * pow)) {
-
-            // long range bias for 32-bit hashcodes
-            if (cachedCount > (1 / 30) * pow) {
-              cachedCount = (long) (-pow * Math.log(1.0 - (double) cachedCount / (double) pow));
-            }
-          }
-        }
-      }
+      cachedCount = estimateCount();
       invalidateCount = false;
     }
 
     return cachedCount;
   }
 
-  private long getThreshold() {
-    return (long) (HLLConstants.thresholdData[p - 4] + 0.5);
-  }
-
   /**
-   * Estimate bias from lookup table
-   * @param count
-   *          - cardinality before bias correction
-   * @return cardinality after bias correction
+   * Estimates the count from the registers of current encoding ignoring the
+   * cached count. Used by count() and HyperLogLogs.countAll().
+   * @return estimated count
    */
-  private long estimateBias(long count) {
-    double[] rawEstForP = HLLConstants.rawEstimateData[p - 4];
-
-    // compute distance and store it in sorted map
-    Double2IntSortedMap estIndexMap = new Double2IntAVLTreeMap();
-    double distance = 0;
-    for (int i = 0; i < rawEstForP.length; i++) {
-      distance = Math.pow(count - rawEstForP[i], 2);
-      estIndexMap.put(distance, i);
-    }
-
-    // take top-k closest neighbors and compute the bias corrected cardinality
-    long result = 0;
-    double[] biasForP = HLLConstants.biasData[p - 4];
-    double biasSum = 0;
-    int kNeighbors = HLLConstants.K_NEAREST_NEIGHBOR;
-    for (Map.Entry<Double, Integer> entry : estIndexMap.entrySet()) {
-      biasSum += biasForP[entry.getValue()];
-      kNeighbors--;
-      if (kNeighbors <= 0) {
-        break;
-      }
+  long estimateCount() {
+    if (encoding.equals(EncodingType.EXACT)) {
+      return exactSet.size();
+    }
+    if (martingaleValid) {
+      return Math.round(martingaleEstimate);
     }
+    if (encoding.equals(EncodingType.SPARSE)) {
 
-    // 0.5 added for rounding off
-    result = (long) ((biasSum / HLLConstants.K_NEAREST_NEIGHBOR) + 0.5);
-    return result;
+      // if encoding is still SPARSE use linear counting with increase
+      // accuracy (as we use pPrime bits for register index)
+      int mPrime = 1 << sparseRegister.getPPrime();
+      return linearCount(mPrime, mPrime - sparseRegister.getSparseMap().size());
+    }
+
+    // for DENSE encoding, estimate from the histogram of register values
+    // which is maintained by the register (no scan of the registers)
+    return estimator.estimate(p, denseRegister.getRegisterHistogram());
   }
 
   public void setCount(long count) {
@@ -372,12 +577,15 @@ public class HyperLogLog {
     this.invalidateCount = true;
   }
 
-  private long linearCount(int mVal, long numZeros) {
+  static long linearCount(int mVal, long numZeros) {
     return (long) (Math.round(mVal * Math.log(mVal / ((double) numZeros))));
   }
 
   // refer paper
   public double getStandardError() {
+    if (martingaleValid) {
+      return HLLConstants.MARTINGALE_STANDARD_ERROR / Math.sqrt(m);
+    }
     return 1.04 / Math.sqrt(m);
   }
 
@@ -389,12 +597,17 @@ public class HyperLogLog {
     return sparseRegister;
   }
 
+  public HLLExactSet getHLLExactSet() {
+    return exactSet;
+  }
+
   /**
    * Reconstruct sparse map from serialized integer list
    * @param reg
    *          - uncompressed and delta decoded integer list
    */
   public void setHLLSparseRegister(int[] reg) {
+    invalidateMartingale();
     for (int i : reg) {
       int key = i >>> HLLConstants.Q_PRIME_VALUE;
       byte value = (byte) (i & 0x3f);
@@ -403,16 +616,31 @@ public class HyperLogLog {
   }
 
   /**
-   * Reconstruct dense registers from byte array
+   * Reconstruct dense registers from byte array. Values are copied to the
+   * dense registers retaining the larger value of each register.
    * @param reg
-   *          - unpacked byte array
+   *          - unpacked byte array of length 2^p
    */
   public void setHLLDenseRegister(byte[] reg) {
+    invalidateMartingale();
     int i = 0;
     for (byte b : reg) {
       denseRegister.set(i, b);
       i++;
     }
+    invalidateCount = true;
+  }
+
+  /**
+   * Replaces the dense registers with the byte array. The byte array is used
+   * as register array without copying, used by deserialization.
+   * @param reg
+   *          - unpacked byte array of length 2^p
+   */
+  void setHLLDenseRegisterArray(byte[] reg) {
+    invalidateMartingale();
+    denseRegister.setRegister(reg);
+    invalidateCount = true;
   }
 
   /**
@@ -434,39 +662,45 @@ public class HyperLogLog {
         "HyperLogLog cannot merge a smaller p into a larger one : "
           + toString() + " Provided: " + hll.toString());
     }
-    if (p != hll.p) {
-      // invariant: p > hll.p
-      hll = hll.squash(p);
-    }
-
+    // registers of hyperloglog with larger p are downscaled to p while merging
     EncodingType otherEncoding = hll.getEncoding();
+    EncodingType thisEncoding = encoding;
+    long start = metrics == null ? 0 : System.nanoTime();
+    invalidateMartingale();
+
+    if (otherEncoding.equals(EncodingType.EXACT)) {
+      // hashcodes are added as such irrespective of p
+      hll.getHLLExactSet().forEach(this::addDirect);
+    } else if (encoding.equals(EncodingType.EXACT)) {
+      switchToSparse();
+    }
 
     if (encoding.equals(EncodingType.SPARSE) && otherEncoding.equals(EncodingType.SPARSE)) {
       sparseRegister.merge(hll.getHLLSparseRegister());
       // if after merge the sparse switching threshold is exceeded then change
       // to dense encoding
       if (sparseRegister.getSize() > encodingSwitchThreshold) {
-        encoding = EncodingType.DENSE;
-        denseRegister = sparseToDenseRegister(sparseRegister);
-        sparseRegister = null;
+        switchToDense();
       }
     } else if (encoding.equals(EncodingType.DENSE) && otherEncoding.equals(EncodingType.DENSE)) {
       denseRegister.merge(hll.getHLLDenseRegister());
     } else if (encoding.equals(EncodingType.SPARSE) && otherEncoding.equals(EncodingType.DENSE)) {
-      denseRegister = sparseToDenseRegister(sparseRegister);
+      switchToDense();
       denseRegister.merge(hll.getHLLDenseRegister());
-      sparseRegister = null;
-      encoding = EncodingType.DENSE;
     } else if (encoding.equals(EncodingType.DENSE) && otherEncoding.equals(EncodingType.SPARSE)) {
-      HLLDenseRegister otherDenseRegister = sparseToDenseRegister(hll.getHLLSparseRegister());
-      denseRegister.merge(otherDenseRegister);
+      denseRegister.merge(hll.getHLLSparseRegister());
     }
 
     invalidateCount = true;
+    if (metrics != null) {
+      metrics.onMerge(thisEncoding, otherEncoding, System.nanoTime() - start);
+    }
   }
 
   /**
-   * Reduces the accuracy of the HLL provided to a smaller size
+   * Reduces the accuracy of the HLL provided to a smaller size. SPARSE
+   * hyperloglogs stay SPARSE (retaining p' register indices) unless the
+   * number of entries exceeds the encoding switch threshold of the new size.
    * @param p0
    *         - new p size for the new HyperLogLog (smaller or no change)
    * @return reduced (or same) HyperLogLog instance
@@ -483,18 +717,95 @@ public class HyperLogLog {
     }
 
     final HyperLogLog hll = new HyperLogLogBuilder()
-      .setNumRegisterIndexBits(p0).setEncoding(EncodingType.DENSE)
-      .enableNoBias(noBias).build();
-    final HLLDenseRegister result = hll.denseRegister;
+      .setNumRegisterIndexBits(p0).setEncoding(encoding).enableBitPacking(bitPacking)
+      .enableNoBias(noBias).setCardinalityEstimator(estimator).setMetrics(metrics)
+      .setExactSetThreshold(exactSetThreshold).build();
 
-    if (encoding == EncodingType.SPARSE) {
-      sparseRegister.extractLowBitsTo(result);
-    } else if (encoding == EncodingType.DENSE) {
-      denseRegister.extractLowBitsTo(result);
-    }
+    // registers are downscaled to p0 in closed form while merging
+    hll.merge(this);
     return hll;
   }
 
+  private HLLSparseRegister newSparseRegister() {
+    HLLSparseRegister register = new HLLSparseRegister(p, HLLConstants.P_PRIME_VALUE,
+        HLLConstants.Q_PRIME_VALUE);
+    register.setMetrics(metrics);
+    return register;
+  }
+
+  // adds hashcode to the registers of current encoding bypassing the sparse
+  // temp list, so that no hashcode is lost when switching encodings
+  private void addDirect(long hashcode) {
+    if (encoding.equals(EncodingType.EXACT)) {
+      if (exactSet.add(hashcode) && exactSet.size() > exactSetThreshold) {
+        switchToSparse();
+      }
+    } else if (encoding.equals(EncodingType.SPARSE)) {
+      if (martingaleValid) {
+        updateMartingale(sparseRegister.addAndGetProbabilityDecrease(hashcode));
+      } else {
+        sparseRegister.addToSparseMap(hashcode);
+      }
+      if (sparseRegister.getSize() > encodingSwitchThreshold) {
+        switchToDense();
+      }
+    } else if (martingaleValid) {
+      updateMartingale(denseRegister.addAndGetProbabilityDecrease(hashcode));
+    } else {
+      denseRegister.add(hashcode);
+    }
+    invalidateCount = true;
+  }
+
+  /**
+   * Switches from EXACT to SPARSE encoding (and to DENSE if the hashcodes
+   * exceed the encoding switch threshold)
+   */
+  private void switchToSparse() {
+    encoding = EncodingType.SPARSE;
+    adder = adderFor(encoding);
+    if (spareSparseRegister != null) {
+      // already cleared by reset()
+      sparseRegister = spareSparseRegister;
+      spareSparseRegister = null;
+    } else {
+      sparseRegister = newSparseRegister();
+    }
+    invalidateCount = true;
+    // martingale estimate starts with the hashcodes of the exact set
+    martingaleEstimate = 0;
+    updateProbability = 1;
+    exactSet.forEach(this::addDirect);
+    if (recycleRegisters) {
+      // retained for reset()
+      exactSet.clear();
+    } else {
+      exactSet = null;
+    }
+  }
+
+  /**
+   * Switches from SPARSE to DENSE encoding
+   */
+  private void switchToDense() {
+    long start = metrics == null ? 0 : System.nanoTime();
+    encoding = EncodingType.DENSE;
+    adder = adderFor(encoding);
+    denseRegister = sparseToDenseRegister(sparseRegister);
+    if (martingaleValid) {
+      // estimate continues with the update probability of dense registers
+      updateProbability = denseRegister.getUpdateProbability();
+    }
+    if (metrics != null) {
+      metrics.onPromotion(p, sparseRegister.getSize(), System.nanoTime() - start);
+    }
+    if (recycleRegisters) {
+      sparseRegister.clear();
+      spareSparseRegister = sparseRegister;
+    }
+    sparseRegister = null;
+  }
+
   /**
    * Converts sparse to dense hll register
    * @param sparseRegister
@@ -507,7 +818,14 @@ public class HyperLogLog {
     }
     int p = sparseRegister.getP();
     int pMask = (1 << p) - 1;
-    HLLDenseRegister result = new HLLDenseRegister(p, bitPacking);
+    HLLDenseRegister result;
+    if (spareDenseRegister != null) {
+      // already cleared by reset()
+      result = spareDenseRegister;
+      spareDenseRegister = null;
+    } else {
+      result = new HLLDenseRegister(p, bitPacking);
+    }
     for (Map.Entry<Integer, Byte> entry : sparseRegister.getSparseMap().entrySet()) {
       int key = entry.getKey();
       int idx = key & pMask;
@@ -516,6 +834,73 @@ public class HyperLogLog {
     return result;
   }
 
+  /**
+   * Creates an independent copy of this hyperloglog with the same
+   * configuration and registers.
+   * @return copy of this hyperloglog
+   */
+  public HyperLogLog copy() {
+    return new HyperLogLog(this, false);
+  }
+
+  /**
+   * Creates a copy-on-write snapshot of this hyperloglog. The snapshot shares
+   * register storage with this hyperloglog (DENSE register array is copied
+   * lazily on the next write, SPARSE temp list is merged and the sparse map
+   * is shared) and hence is cheap to create. Updates to this hyperloglog
+   * after the snapshot are not visible in the snapshot and vice versa.
+   * snapshot() must be called from the thread that updates this hyperloglog
+   * (or with the same external synchronization). The returned snapshot can
+   * then be safely published to reader threads for count(), merge() into
+   * other hyperloglogs, serialization etc. while this hyperloglog continues
+   * to be updated.
+   * @return snapshot of this hyperloglog
+   */
+  public HyperLogLog snapshot() {
+    return new HyperLogLog(this, true);
+  }
+
+  /**
+   * Clears the hyperloglog so that it can be reused. Registers are zeroed in
+   * place and the encoding returns to the encoding the hyperloglog was built
+   * with (SPARSE by default). Allocated registers of both encodings are
+   * retained, so a reused hyperloglog does not allocate registers again when
+   * switching from SPARSE to DENSE.
+   */
+  public void reset() {
+    recycleRegisters = true;
+    if (encoding == EncodingType.DENSE) {
+      denseRegister.clear();
+      if (initialEncoding != EncodingType.DENSE) {
+        spareDenseRegister = denseRegister;
+        denseRegister = null;
+      }
+    } else if (encoding == EncodingType.SPARSE) {
+      sparseRegister.clear();
+      if (initialEncoding == EncodingType.EXACT) {
+        spareSparseRegister = sparseRegister;
+        sparseRegister = null;
+      }
+    }
+    if (initialEncoding == EncodingType.SPARSE && sparseRegister == null) {
+      sparseRegister = spareSparseRegister != null ? spareSparseRegister : newSparseRegister();
+      spareSparseRegister = null;
+    } else if (initialEncoding == EncodingType.EXACT) {
+      if (exactSet == null) {
+        exactSet = new HLLExactSet();
+      } else {
+        exactSet.clear();
+      }
+    }
+    encoding = initialEncoding;
+    martingaleValid = martingaleEstimator;
+    martingaleEstimate = 0;
+    updateProbability = 1;
+    adder = adderFor(encoding);
+    cachedCount = -1;
+    invalidateCount = false;
+  }
+
   @Override
   public String toString() {
     StringBuilder sb = new StringBuilder();
@@ -533,21 +918,117 @@ public class HyperLogLog {
       return toString() + ", " + denseRegister.toExtendedString();
     } else if (encoding.equals(EncodingType.SPARSE)) {
       return toString() + ", " + sparseRegister.toExtendedString();
+    } else if (encoding.equals(EncodingType.EXACT)) {
+      return toString() + ", " + exactSet.toExtendedString();
     }
 
     return toString();
   }
 
+  public CardinalityEstimator getCardinalityEstimator() {
+    return estimator;
+  }
+
+  int getEncodingSwitchThreshold() {
+    return encodingSwitchThreshold;
+  }
+
+  public boolean isMartingaleEstimatorEnabled() {
+    return martingaleEstimator;
+  }
+
+  /**
+   * @return true if count() returns the martingale estimate i.e, the
+   *         martingale estimator is enabled and nothing was merged
+   */
+  public boolean hasMartingaleEstimate() {
+    return martingaleValid;
+  }
+
+  double getMartingaleEstimate() {
+    return martingaleEstimate;
+  }
+
+  /**
+   * Restores the running estimate of a deserialized hyperloglog. The update
+   * probability is computed from the registers.
+   * @param estimate
+   *          - martingale estimate
+   */
+  void setMartingaleEstimate(double estimate) {
+    if (!martingaleEstimator) {
+      throw new IllegalStateException("Martingale estimator is not enabled");
+    }
+    martingaleValid = true;
+    martingaleEstimate = estimate;
+    if (encoding.equals(EncodingType.SPARSE)) {
+      updateProbability = sparseRegister.getUpdateProbability();
+    } else if (encoding.equals(EncodingType.DENSE)) {
+      updateProbability = denseRegister.getUpdateProbability();
+    } else {
+      updateProbability = 1;
+    }
+    adder = adderFor(encoding);
+  }
+
+  // registers are updated other than by add()
+  private void invalidateMartingale() {
+    if (martingaleValid) {
+      martingaleValid = false;
+      invalidateCount = true;
+      adder = adderFor(encoding);
+    }
+  }
+
+  public int getExactSetThreshold() {
+    return exactSetThreshold;
+  }
+
+  /**
+   * @return true if all settings other than p, encoding and bit packing are
+   *         the builder defaults
+   */
+  boolean hasDefaultConfig() {
+    return noBias && metrics == null && !martingaleEstimator
+      && exactSetThreshold == HLLConstants.EXACT_SET_DEFAULT_THRESHOLD
+      && estimator instanceof HLLPlusPlusEstimator
+      && ((HLLPlusPlusEstimator) estimator).isNoBias();
+  }
+
   public int getNumRegisterIndexBits() {
     return p;
   }
 
+  public boolean isBitPackingEnabled() {
+    return bitPacking;
+  }
+
+  HyperLogLogMetrics getMetrics() {
+    return metrics;
+  }
+
+  void setMetrics(HyperLogLogMetrics metrics) {
+    this.metrics = metrics;
+    this.adder = adderFor(encoding);
+    if (sparseRegister != null) {
+      sparseRegister.setMetrics(metrics);
+    }
+    if (spareSparseRegister != null) {
+      spareSparseRegister.setMetrics(metrics);
+    }
+  }
+
+  EncodingType getInitialEncoding() {
+    return initialEncoding;
+  }
+
   public EncodingType getEncoding() {
     return encoding;
   }
 
   public void setEncoding(EncodingType encoding) {
     this.encoding = encoding;
+    this.adder = adderFor(encoding);
   }
 
   @Override
@@ -568,6 +1049,10 @@ public class HyperLogLog {
     if (encoding.equals(EncodingType.SPARSE)) {
       result = result && sparseRegister.equals(other.getHLLSparseRegister());
     }
+
+    if (encoding.equals(EncodingType.EXACT)) {
+      result = result && exactSet.equals(other.getHLLExactSet());
+    }
     return result;
   }
 
@@ -585,6 +1070,10 @@ public class HyperLogLog {
     if (encoding.equals(EncodingType.SPARSE)) {
       hashcode += 31 * sparseRegister.hashCode();
     }
+
+    if (encoding.equals(EncodingType.EXACT)) {
+      hashcode += 31 * exactSet.hashCode();
+    }
     return hashcode;
   }
 }
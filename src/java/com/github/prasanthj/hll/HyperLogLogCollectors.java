@@ -0,0 +1,100 @@
+/**
+ * Copyright 2017 Prasanth Jayachandran
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.prasanthj.hll;
+
+import java.util.function.ToLongFunction;
+import java.util.stream.Collector;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+
+/**
+ * <pre>
+ * Collectors for building hyperloglogs from java streams. Works with
+ * parallel streams, every thread of the stream adds to its own hyperloglog
+ * and partial hyperloglogs are combined with merge().
+ *
+ *   HyperLogLog hll = strings.parallelStream()
+ *       .collect(HyperLogLogCollectors.toHyperLogLog(s -&gt; Murmur3.hash64(s.getBytes()), 14));
+ *
+ * The collectors are UNORDERED but not CONCURRENT as HyperLogLog is not
+ * thread-safe. Hashcodes of addLong()/addInt() are used for LongStream and
+ * IntStream, so the results are same as adding the values one by one.
+ * </pre>
+ */
+public class HyperLogLogCollectors {
+
+  private HyperLogLogCollectors() {
+  }
+
+  /**
+   * @param hasher
+   *          - 64 bit hash function for elements
+   * @param p
+   *          - number of register index bits
+   * @return collector of elements to hyperloglog
+   */
+  public static <T> Collector<T, ?, HyperLogLog> toHyperLogLog(ToLongFunction<? super T> hasher,
+      int p) {
+    return toHyperLogLog(hasher, HyperLogLog.builder().setNumRegisterIndexBits(p));
+  }
+
+  /**
+   * @param hasher
+   *          - 64 bit hash function for elements
+   * @param builder
+   *          - builder for the hyperloglogs of every thread. Must not be
+   *          modified while the stream is collected.
+   * @return collector of elements to hyperloglog
+   */
+  public static <T> Collector<T, ?, HyperLogLog> toHyperLogLog(ToLongFunction<? super T> hasher,
+      HyperLogLog.HyperLogLogBuilder builder) {
+    return Collector.of(builder::build,
+        (hll, t) -> hll.add(hasher.applyAsLong(t)),
+        HyperLogLogCollectors::combine,
+        Collector.Characteristics.UNORDERED,
+        Collector.Characteristics.IDENTITY_FINISH);
+  }
+
+  /**
+   * @param stream
+   *          - stream of longs (hashed same as HyperLogLog.addLong())
+   * @param p
+   *          - number of register index bits
+   * @return hyperloglog of the stream
+   */
+  public static HyperLogLog toHyperLogLog(LongStream stream, int p) {
+    HyperLogLog.HyperLogLogBuilder builder = HyperLogLog.builder().setNumRegisterIndexBits(p);
+    return stream.collect(builder::build, HyperLogLog::addLong, HyperLogLog::merge);
+  }
+
+  /**
+   * @param stream
+   *          - stream of ints (hashed same as HyperLogLog.addInt())
+   * @param p
+   *          - number of register index bits
+   * @return hyperloglog of the stream
+   */
+  public static HyperLogLog toHyperLogLog(IntStream stream, int p) {
+    HyperLogLog.HyperLogLogBuilder builder = HyperLogLog.builder().setNumRegisterIndexBits(p);
+    return stream.collect(builder::build, HyperLogLog::addInt, HyperLogLog::merge);
+  }
+
+  private static HyperLogLog combine(HyperLogLog left, HyperLogLog right) {
+    left.merge(right);
+    return left;
+  }
+}
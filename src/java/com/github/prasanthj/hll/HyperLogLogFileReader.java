@@ -0,0 +1,204 @@
+/**
+ * Copyright 2017 Prasanth Jayachandran
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.prasanthj.hll;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+
+/**
+ * Reader for files with many concatenated serialized hyperloglogs (framed or
+ * unframed). Offsets of all hyperloglogs are indexed when the reader is
+ * opened using HyperLogLogUtils.skipHLL() (framed hyperloglogs are skipped
+ * using their length without reading the payload). Hyperloglogs can then be
+ * read in any order and from multiple threads.
+ */
+public class HyperLogLogFileReader implements Closeable {
+
+  private final RandomAccessFile file;
+  private final FileChannel channel;
+
+  // offsets[i] is start of hyperloglog i, offsets[numHLLs] is end of last one
+  private final long[] offsets;
+
+  public HyperLogLogFileReader(File file) throws IOException {
+    this.offsets = indexOffsets(file);
+    this.file = new RandomAccessFile(file, "r");
+    this.channel = this.file.getChannel();
+  }
+
+  private static long[] indexOffsets(File file) throws IOException {
+    LongArrayList offsets = new LongArrayList();
+    long offset = 0;
+    try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+      while (true) {
+        offsets.add(offset);
+        in.mark(1);
+        if (in.read() < 0) {
+          break;
+        }
+        in.reset();
+        offset += HyperLogLogUtils.skipHLL(in);
+      }
+    }
+    return offsets.toLongArray();
+  }
+
+  /**
+   * @return number of hyperloglogs in the file
+   */
+  public int getNumHLLs() {
+    return offsets.length - 1;
+  }
+
+  /**
+   * @param i
+   *          - index of hyperloglog
+   * @return offset of the specified hyperloglog in the file
+   */
+  public long getOffset(int i) {
+    checkIndex(i);
+    return offsets[i];
+  }
+
+  /**
+   * @param i
+   *          - index of hyperloglog
+   * @return serialized length of the specified hyperloglog
+   */
+  public long getLength(int i) {
+    checkIndex(i);
+    return offsets[i + 1] - offsets[i];
+  }
+
+  /**
+   * Read and deserialize the specified hyperloglog. Safe to be called from
+   * multiple threads.
+   * @param i
+   *          - index of hyperloglog
+   * @return deserialized hyperloglog
+   * @throws IOException - thrown when reading the file or checksum mismatch
+   */
+  public HyperLogLog read(int i) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate((int) getLength(i));
+    long position = offsets[i];
+    while (buffer.hasRemaining()) {
+      int read = channel.read(buffer, position);
+      if (read < 0) {
+        throw new EOFException("Reading HyperLogLog " + i + " past EOF");
+      }
+      position += read;
+    }
+    return HyperLogLogUtils.deserializeHLL(new ByteArrayInputStream(buffer.array()));
+  }
+
+  /**
+   * Read and deserialize all hyperloglogs. When an executor is specified the
+   * hyperloglogs are deserialized in as many ranges as there are available
+   * processors.
+   * @param executor
+   *          - executor for parallel deserialization (null for deserializing
+   *          in the calling thread)
+   * @return deserialized hyperloglogs in the order of the file
+   * @throws IOException - thrown when reading the file or checksum mismatch
+   */
+  public HyperLogLog[] readAll(Executor executor) throws IOException {
+    return readAll(executor, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Read and deserialize all hyperloglogs. When an executor is specified the
+   * hyperloglogs are split into parallelism ranges that are deserialized
+   * concurrently (the calling thread deserializes one of the ranges).
+   * @param executor
+   *          - executor for parallel deserialization (null for deserializing
+   *          in the calling thread)
+   * @param parallelism
+   *          - number of ranges to deserialize concurrently, usually the
+   *          parallelism of the executor
+   * @return deserialized hyperloglogs in the order of the file
+   * @throws IOException - thrown when reading the file or checksum mismatch
+   */
+  public HyperLogLog[] readAll(Executor executor, int parallelism) throws IOException {
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("Parallelism should be at least 1. parallelism: "
+        + parallelism);
+    }
+    final HyperLogLog[] result = new HyperLogLog[getNumHLLs()];
+    final int numRanges = executor == null ? 1 : Math.min(result.length, parallelism);
+    if (numRanges <= 1) {
+      readRange(0, result.length, result);
+      return result;
+    }
+
+    CompletableFuture<?>[] futures = new CompletableFuture<?>[numRanges - 1];
+    for (int r = 0; r < numRanges - 1; r++) {
+      final int from = (int) ((long) result.length * r / numRanges);
+      final int to = (int) ((long) result.length * (r + 1) / numRanges);
+      futures[r] = CompletableFuture.runAsync(() -> {
+        try {
+          readRange(from, to, result);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }, executor);
+    }
+    try {
+      readRange((int) ((long) result.length * (numRanges - 1) / numRanges), result.length,
+        result);
+      CompletableFuture.allOf(futures).join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof UncheckedIOException) {
+        throw ((UncheckedIOException) e.getCause()).getCause();
+      }
+      throw e;
+    }
+    return result;
+  }
+
+  private void readRange(int from, int to, HyperLogLog[] result) throws IOException {
+    for (int i = from; i < to; i++) {
+      result[i] = read(i);
+    }
+  }
+
+  private void checkIndex(int i) {
+    if (i < 0 || i >= getNumHLLs()) {
+      throw new IllegalArgumentException("Invalid index " + i + " for " + getNumHLLs()
+        + " hyperloglogs");
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    file.close();
+  }
+}
@@ -0,0 +1,330 @@
+/**
+ * Copyright 2017 Prasanth Jayachandran
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.prasanthj.hll;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.github.prasanthj.hll.HyperLogLog.EncodingType;
+
+/**
+ * <pre>
+ * Ingest pipeline for a single large DENSE hyperloglog fed by many producers.
+ * The register array is split into contiguous slices of register indices and
+ * every slice is exclusively owned by one worker thread. Producers submit
+ * batches of hashcodes which are partitioned by register index (low p bits of
+ * the hashcode, same as HyperLogLog.add()) and queued to the owning workers.
+ * Workers update registers of their slice without any synchronization.
+ *
+ * producers --submit(batch)--> partition by register index --> worker 0 [0, m/n)
+ *                                                          --> worker 1 [m/n, 2m/n)
+ *                                                          --> ...
+ *
+ * flush() waits until all previously submitted hashcodes are applied.
+ * count() and toHyperLogLog() pause all workers at a barrier after applying
+ * previously submitted hashcodes, so the estimate is computed from a
+ * consistent state of registers.
+ * </pre>
+ */
+public class HyperLogLogIngestPipeline implements Closeable {
+
+  public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+  private static final Object SHUTDOWN = new Object();
+
+  private final HyperLogLog hll;
+  private final byte[] register;
+  private final int p;
+  private final int numWorkers;
+  private final Worker[] workers;
+  private volatile boolean closed;
+  // held (shared) by submit() while queueing batches and (exclusive) by
+  // close() while closing, so that no batch is queued after SHUTDOWN
+  private final ReentrantReadWriteLock closeLock = new ReentrantReadWriteLock();
+
+  // all workers arrive before the barrier owner reads registers and wait
+  // until released
+  private static final class Barrier {
+    final CountDownLatch arrived;
+    final CountDownLatch released;
+
+    Barrier(int numWorkers, boolean pause) {
+      this.arrived = new CountDownLatch(numWorkers);
+      this.released = new CountDownLatch(pause ? 1 : 0);
+    }
+  }
+
+  private final class Worker extends Thread {
+    final BlockingQueue<Object> queue;
+
+    Worker(int id, int queueCapacity) {
+      super("hll-ingest-" + id);
+      setDaemon(true);
+      this.queue = new ArrayBlockingQueue<Object>(queueCapacity);
+    }
+
+    @Override
+    public void run() {
+      final byte[] register = HyperLogLogIngestPipeline.this.register;
+      final int p = HyperLogLogIngestPipeline.this.p;
+      final int mask = register.length - 1;
+      try {
+        while (true) {
+          Object item = queue.take();
+          if (item instanceof long[]) {
+            for (long hashcode : (long[]) item) {
+              final int idx = (int) (hashcode & mask);
+              final byte lr = (byte) (Long.numberOfTrailingZeros(hashcode >>> p) + 1);
+              if (lr > register[idx]) {
+                register[idx] = lr;
+              }
+            }
+          } else if (item instanceof Barrier) {
+            Barrier barrier = (Barrier) item;
+            barrier.arrived.countDown();
+            barrier.released.await();
+          } else if (item == SHUTDOWN) {
+            return;
+          }
+        }
+      } catch (InterruptedException e) {
+        // pipeline is closed
+      }
+    }
+  }
+
+  /**
+   * Pipeline with default queue capacity.
+   * @param p
+   *          - number of register index bits
+   * @param numWorkers
+   *          - number of worker threads (register slices)
+   */
+  public HyperLogLogIngestPipeline(int p, int numWorkers) {
+    this(HyperLogLog.builder().setNumRegisterIndexBits(p), numWorkers, DEFAULT_QUEUE_CAPACITY);
+  }
+
+  /**
+   * @param builder
+   *          - builder for the hyperloglog (copied). Encoding is always DENSE.
+   * @param numWorkers
+   *          - number of worker threads (register slices)
+   * @param queueCapacity
+   *          - max number of queued batches per worker. submit() blocks when
+   *          the queue is full.
+   */
+  public HyperLogLogIngestPipeline(HyperLogLog.HyperLogLogBuilder builder, int numWorkers,
+      int queueCapacity) {
+    this.hll = builder.copy().setEncoding(EncodingType.DENSE).build();
+    this.p = hll.getNumRegisterIndexBits();
+    this.register = hll.getHLLDenseRegister().getRegister();
+    if (numWorkers < 1 || numWorkers > register.length) {
+      throw new IllegalArgumentException("Number of workers should be between 1 and "
+          + register.length + ". numWorkers: " + numWorkers);
+    }
+    if (queueCapacity < 1) {
+      throw new IllegalArgumentException("Queue capacity should be positive. queueCapacity: "
+          + queueCapacity);
+    }
+    this.numWorkers = numWorkers;
+    this.workers = new Worker[numWorkers];
+    for (int i = 0; i < numWorkers; i++) {
+      workers[i] = new Worker(i, queueCapacity);
+      workers[i].start();
+    }
+  }
+
+  public int getNumWorkers() {
+    return numWorkers;
+  }
+
+  // worker owning the register index, slices are contiguous
+  private int workerOf(long hashcode) {
+    return (int) (((hashcode & (register.length - 1)) * numWorkers) >>> p);
+  }
+
+  /**
+   * Submit a batch of hashcodes. The batch is partitioned and copied before
+   * returning, so the array can be reused by the caller. Blocks if queues of
+   * workers are full.
+   * @param hashcodes
+   *          - 64 bit hashcodes (same as HyperLogLog.add())
+   * @param offset
+   *          - offset of first hashcode
+   * @param length
+   *          - number of hashcodes
+   * @throws InterruptedException - thrown if interrupted while waiting for queue space
+   */
+  public void submit(long[] hashcodes, int offset, int length) throws InterruptedException {
+    closeLock.readLock().lockInterruptibly();
+    try {
+      checkOpen();
+      enqueue(hashcodes, offset, length);
+    } finally {
+      closeLock.readLock().unlock();
+    }
+  }
+
+  // workers keep taking batches until SHUTDOWN, so puts to full queues
+  // complete even when close() is waiting for the lock
+  private void enqueue(long[] hashcodes, int offset, int length) throws InterruptedException {
+    if (numWorkers == 1) {
+      workers[0].queue.put(Arrays.copyOfRange(hashcodes, offset, offset + length));
+      return;
+    }
+    int[] counts = new int[numWorkers];
+    for (int i = offset; i < offset + length; i++) {
+      counts[workerOf(hashcodes[i])]++;
+    }
+    long[][] partitions = new long[numWorkers][];
+    for (int w = 0; w < numWorkers; w++) {
+      partitions[w] = new long[counts[w]];
+      counts[w] = 0;
+    }
+    for (int i = offset; i < offset + length; i++) {
+      int w = workerOf(hashcodes[i]);
+      partitions[w][counts[w]++] = hashcodes[i];
+    }
+    for (int w = 0; w < numWorkers; w++) {
+      if (partitions[w].length > 0) {
+        workers[w].queue.put(partitions[w]);
+      }
+    }
+  }
+
+  public void submit(long[] hashcodes) throws InterruptedException {
+    submit(hashcodes, 0, hashcodes.length);
+  }
+
+  // returns null if the pipeline is closed (all workers have exited)
+  private Barrier barrier(boolean pause) throws InterruptedException {
+    if (closed) {
+      return null;
+    }
+    Barrier barrier = new Barrier(numWorkers, pause);
+    try {
+      for (Worker worker : workers) {
+        worker.queue.put(barrier);
+      }
+      barrier.arrived.await();
+    } catch (InterruptedException e) {
+      // do not leave workers paused
+      release(barrier);
+      throw e;
+    }
+    return barrier;
+  }
+
+  private static void release(Barrier barrier) {
+    if (barrier != null) {
+      barrier.released.countDown();
+    }
+  }
+
+  /**
+   * Waits until all hashcodes submitted before the call are applied to the
+   * registers.
+   * @throws InterruptedException - thrown if interrupted while waiting
+   */
+  public synchronized void flush() throws InterruptedException {
+    barrier(false);
+  }
+
+  /**
+   * Estimated cardinality of all hashcodes submitted before the call.
+   * Workers are paused while the estimate is computed.
+   * @return estimated cardinality
+   * @throws InterruptedException - thrown if interrupted while waiting
+   */
+  public synchronized long count() throws InterruptedException {
+    Barrier barrier = barrier(true);
+    try {
+      // registers were updated directly
+      hll.setHLLDenseRegisterArray(register);
+      return hll.count();
+    } finally {
+      release(barrier);
+    }
+  }
+
+  /**
+   * Copy of the hyperloglog with all hashcodes submitted before the call.
+   * @return hyperloglog
+   * @throws InterruptedException - thrown if interrupted while waiting
+   */
+  public synchronized HyperLogLog toHyperLogLog() throws InterruptedException {
+    Barrier barrier = barrier(true);
+    try {
+      hll.setHLLDenseRegisterArray(register);
+      return hll.copy();
+    } finally {
+      release(barrier);
+    }
+  }
+
+  private void checkOpen() {
+    if (closed) {
+      throw new IllegalStateException("HyperLogLogIngestPipeline is closed");
+    }
+  }
+
+  /**
+   * Applies all submitted hashcodes and stops the workers. count() and
+   * toHyperLogLog() can still be used after close.
+   */
+  @Override
+  public synchronized void close() {
+    if (closed) {
+      return;
+    }
+    // wait for submit() calls in progress, later calls fail
+    closeLock.writeLock().lock();
+    try {
+      closed = true;
+    } finally {
+      closeLock.writeLock().unlock();
+    }
+    boolean interrupted = false;
+    for (Worker worker : workers) {
+      while (true) {
+        try {
+          worker.queue.put(SHUTDOWN);
+          break;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    }
+    for (Worker worker : workers) {
+      while (true) {
+        try {
+          worker.join();
+          break;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
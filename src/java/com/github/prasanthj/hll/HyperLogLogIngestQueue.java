@@ -0,0 +1,342 @@
+/**
+ * Copyright 2017 Prasanth Jayachandran
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.prasanthj.hll;
+
+import java.io.Closeable;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <pre>
+ * Lock-free multi-producer single-consumer queue in front of a hyperloglog.
+ * Producers enqueue hashcodes into a bounded ring buffer without locking and
+ * a single consumer thread drains them in batches into the hyperloglog.
+ *
+ * Ring buffer slots have a sequence number (bounded MPMC queue by Dmitry
+ * Vyukov, used here with a single consumer). A producer claims position pos
+ * by CAS on tail when sequence of the slot is pos, writes the hashcode and
+ * publishes it by setting the sequence to pos + 1. The consumer reads slots
+ * with sequence head + 1 and frees them by setting the sequence to
+ * head + capacity.
+ *
+ * When the ring buffer is full the overflow policy applies
+ * BLOCK  - producer waits for free space
+ * DROP   - hashcode is dropped and counted (getNumDropped())
+ * INLINE - hashcode is added to the hyperloglog directly by the producer
+ *          (synchronized with the consumer)
+ *
+ * The hyperloglog must not be accessed directly while the queue is open. Use
+ * count() and toHyperLogLog() which include all hashcodes added before the
+ * call.
+ * </pre>
+ */
+public class HyperLogLogIngestQueue implements Closeable {
+
+  public enum OverflowPolicy {
+    BLOCK, DROP, INLINE
+  }
+
+  public static final int DEFAULT_CAPACITY = 1 << 16;
+
+  // max number of hashcodes applied in a batch while holding the lock on
+  // hyperloglog
+  private static final int MAX_DRAIN_BATCH = 1024;
+
+  // consumer parks for this long when the queue is empty
+  private static final long IDLE_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+  private final HyperLogLog hll;
+  private final OverflowPolicy overflowPolicy;
+  private final long[] buffer;
+  private final AtomicLongArray sequences;
+  private final int mask;
+  private final AtomicLong tail = new AtomicLong();
+  private final Thread consumer;
+  private volatile boolean closed;
+
+  // consumer position, written only by consumer
+  private long head;
+  // position up to which hashcodes are applied to the hyperloglog
+  private volatile long drained;
+  // hashcodes copied out of the ring buffer, used only by consumer
+  private final long[] batch = new long[MAX_DRAIN_BATCH];
+
+  private final LongAdder numDropped = new LongAdder();
+  private final LongAdder numInlineAdds = new LongAdder();
+  private final LongAdder numDrains = new LongAdder();
+  private final LongAdder drainNanos = new LongAdder();
+
+  /**
+   * Queue with default capacity that blocks producers when full.
+   * @param hll
+   *          - hyperloglog to add hashcodes to
+   */
+  public HyperLogLogIngestQueue(HyperLogLog hll) {
+    this(hll, DEFAULT_CAPACITY, OverflowPolicy.BLOCK);
+  }
+
+  /**
+   * @param hll
+   *          - hyperloglog to add hashcodes to
+   * @param capacity
+   *          - capacity of ring buffer (rounded up to power of 2)
+   * @param overflowPolicy
+   *          - what producers do when the ring buffer is full
+   */
+  public HyperLogLogIngestQueue(HyperLogLog hll, int capacity, OverflowPolicy overflowPolicy) {
+    if (capacity < 2 || capacity > (1 << 30)) {
+      throw new IllegalArgumentException("Capacity should be between 2 and 2^30. capacity: "
+          + capacity);
+    }
+    int n = Integer.highestOneBit(capacity);
+    if (n < capacity) {
+      n <<= 1;
+    }
+    this.hll = hll;
+    this.overflowPolicy = overflowPolicy;
+    this.buffer = new long[n];
+    this.sequences = new AtomicLongArray(n);
+    for (int i = 0; i < n; i++) {
+      sequences.set(i, i);
+    }
+    this.mask = n - 1;
+    this.consumer = new Thread(this::consume, "hll-ingest-queue");
+    this.consumer.setDaemon(true);
+    this.consumer.start();
+  }
+
+  /**
+   * Add hashcode to the queue.
+   * @param hashcode
+   *          - 64 bit hashcode (same as HyperLogLog.add())
+   * @return false if the hashcode was dropped (OverflowPolicy.DROP)
+   */
+  public boolean add(long hashcode) {
+    if (closed) {
+      throw new IllegalStateException("HyperLogLogIngestQueue is closed");
+    }
+    int spins = 0;
+    while (!offer(hashcode)) {
+      switch (overflowPolicy) {
+      case DROP:
+        numDropped.increment();
+        return false;
+      case INLINE:
+        synchronized (hll) {
+          hll.add(hashcode);
+        }
+        numInlineAdds.increment();
+        return true;
+      default:
+        LockSupport.unpark(consumer);
+        if (++spins < 64) {
+          Thread.yield();
+        } else {
+          LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+        }
+        if (closed) {
+          throw new IllegalStateException("HyperLogLogIngestQueue is closed");
+        }
+      }
+    }
+    return true;
+  }
+
+  public boolean addLong(long val) {
+    return add(Murmur3.hash64(val));
+  }
+
+  public boolean addBytes(byte[] val) {
+    return add(Murmur3.hash64(val));
+  }
+
+  /**
+   * Java's default charset will be used for strings.
+   * @param val
+   *          - input string
+   * @return false if the hashcode was dropped (OverflowPolicy.DROP)
+   */
+  public boolean addString(String val) {
+    return add(Murmur3.hash64(val.getBytes()));
+  }
+
+  public boolean addString(String val, Charset charset) {
+    return add(Murmur3.hash64(val.getBytes(charset)));
+  }
+
+  // returns false if ring buffer is full
+  private boolean offer(long hashcode) {
+    long pos = tail.get();
+    while (true) {
+      int idx = (int) (pos & mask);
+      long diff = sequences.get(idx) - pos;
+      if (diff == 0) {
+        if (tail.compareAndSet(pos, pos + 1)) {
+          buffer[idx] = hashcode;
+          sequences.lazySet(idx, pos + 1);
+          return true;
+        }
+        pos = tail.get();
+      } else if (diff < 0) {
+        // slot of previous lap is not consumed yet
+        return false;
+      } else {
+        // another producer claimed pos
+        pos = tail.get();
+      }
+    }
+  }
+
+  private void consume() {
+    while (true) {
+      if (drain() == 0) {
+        if (closed && tail.get() == head) {
+          return;
+        }
+        LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+      }
+    }
+  }
+
+  // applies up to MAX_DRAIN_BATCH published hashcodes, called only by consumer
+  private int drain() {
+    // nothing is published at head when idle, return without locking
+    if (sequences.get((int) (head & mask)) != head + 1) {
+      return 0;
+    }
+
+    // copy published hashcodes to the batch and free their slots for
+    // producers before applying the batch to the hyperloglog
+    long start = System.nanoTime();
+    int n = 0;
+    while (n < MAX_DRAIN_BATCH) {
+      int idx = (int) (head & mask);
+      if (sequences.get(idx) != head + 1) {
+        break;
+      }
+      batch[n++] = buffer[idx];
+      sequences.lazySet(idx, head + mask + 1);
+      head++;
+    }
+    synchronized (hll) {
+      hll.addAll(batch, 0, n);
+    }
+    drained = head;
+    numDrains.increment();
+    drainNanos.add(System.nanoTime() - start);
+    return n;
+  }
+
+  /**
+   * Waits until all hashcodes added before the call are applied to the
+   * hyperloglog.
+   */
+  public void flush() {
+    long target = tail.get();
+    while (drained < target && consumer.isAlive()) {
+      LockSupport.unpark(consumer);
+      Thread.yield();
+    }
+  }
+
+  /**
+   * @return estimated cardinality of all hashcodes added before the call
+   */
+  public long count() {
+    flush();
+    synchronized (hll) {
+      return hll.count();
+    }
+  }
+
+  /**
+   * @return copy of the hyperloglog with all hashcodes added before the call
+   */
+  public HyperLogLog toHyperLogLog() {
+    flush();
+    synchronized (hll) {
+      return hll.copy();
+    }
+  }
+
+  /**
+   * @return number of hashcodes in the queue that are not yet applied
+   */
+  public long getQueueDepth() {
+    return Math.max(0, tail.get() - drained);
+  }
+
+  public int getCapacity() {
+    return buffer.length;
+  }
+
+  /**
+   * @return number of hashcodes dropped because the queue was full
+   */
+  public long getNumDropped() {
+    return numDropped.sum();
+  }
+
+  /**
+   * @return number of hashcodes added directly by producers because the
+   *         queue was full
+   */
+  public long getNumInlineAdds() {
+    return numInlineAdds.sum();
+  }
+
+  /**
+   * @return number of batches drained by the consumer
+   */
+  public long getNumDrains() {
+    return numDrains.sum();
+  }
+
+  /**
+   * @return total time taken by the consumer for draining batches
+   */
+  public long getDrainNanos() {
+    return drainNanos.sum();
+  }
+
+  /**
+   * Applies all queued hashcodes and stops the consumer. Hashcodes added
+   * concurrently with close may be lost. count() and toHyperLogLog() can
+   * still be used after close.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    LockSupport.unpark(consumer);
+    boolean interrupted = false;
+    while (true) {
+      try {
+        consumer.join();
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
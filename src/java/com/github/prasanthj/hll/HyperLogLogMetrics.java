@@ -0,0 +1,102 @@
+/**
+ * Copyright 2017 Prasanth Jayachandran
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.prasanthj.hll;
+
+import com.github.prasanthj.hll.HyperLogLog.EncodingType;
+
+/**
+ * Listener for internal events of hyperloglogs. Set using
+ * HyperLogLogBuilder.setMetrics(). Metrics are disabled by default, in which
+ * case no events are generated and the add path is the same as without
+ * metrics. All methods are no-ops by default. Listeners shared by hyperloglogs
+ * that are updated from multiple threads must be thread-safe (refer
+ * HyperLogLogStats).
+ */
+public interface HyperLogLogMetrics {
+
+  /**
+   * Called for every added hashcode. Hashcodes added to SPARSE encoding are
+   * buffered in the temp list and are reported with updated=false, the
+   * register updates of these hashcodes are reported by onTempListMerge().
+   * @param encoding
+   *          - encoding of the hyperloglog before the add
+   * @param updated
+   *          - true if a register value changed
+   */
+  default void onAdd(EncodingType encoding, boolean updated) {
+  }
+
+  /**
+   * Called when the temp list of a SPARSE register was merged to the sparse
+   * map, either when the temp list is full or before the sparse map is read.
+   * @param numEntries
+   *          - number of temp list entries merged
+   * @param numUpdates
+   *          - number of temp list entries that changed a register value
+   * @param sparseMapSize
+   *          - number of entries in sparse map after merge
+   * @param elapsedNanos
+   *          - time taken for the merge
+   */
+  default void onTempListMerge(int numEntries, int numUpdates, int sparseMapSize,
+      long elapsedNanos) {
+  }
+
+  /**
+   * Called when a hyperloglog switched from SPARSE to DENSE encoding.
+   * @param p
+   *          - number of register index bits
+   * @param numSparseEntries
+   *          - number of entries in sparse register before the switch
+   * @param elapsedNanos
+   *          - time taken for converting the sparse register to dense
+   */
+  default void onPromotion(int p, int numSparseEntries, long elapsedNanos) {
+  }
+
+  /**
+   * Called after a hyperloglog was merged into this hyperloglog.
+   * @param encoding
+   *          - encoding of this hyperloglog before the merge
+   * @param otherEncoding
+   *          - encoding of the merged hyperloglog
+   * @param elapsedNanos
+   *          - time taken for the merge
+   */
+  default void onMerge(EncodingType encoding, EncodingType otherEncoding, long elapsedNanos) {
+  }
+
+  /**
+   * Called after a hyperloglog was serialized.
+   * @param numBytes
+   *          - serialized size in bytes
+   * @param elapsedNanos
+   *          - time taken for serialization
+   */
+  default void onSerialize(long numBytes, long elapsedNanos) {
+  }
+
+  /**
+   * Called after a hyperloglog was deserialized.
+   * @param numBytes
+   *          - serialized size in bytes
+   * @param elapsedNanos
+   *          - time taken for deserialization
+   */
+  default void onDeserialize(long numBytes, long elapsedNanos) {
+  }
+}
@@ -0,0 +1,142 @@
+/**
+ * Copyright 2017 Prasanth Jayachandran
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.prasanthj.hll;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.github.prasanthj.hll.HyperLogLog.EncodingType;
+
+/**
+ * Pool of reusable hyperloglogs keyed by (p, encoding, bitPacking).
+ * Released hyperloglogs are reset and handed out again by borrow(), so that
+ * short lived hyperloglogs (per window, per key etc.) do not allocate
+ * registers every time. Only hyperloglogs with default settings for
+ * everything else (bias correction, estimator, metrics, martingale estimator,
+ * exact set threshold) are pooled. Safe to be used from multiple threads.
+ */
+public class HyperLogLogPool {
+
+  public static final int DEFAULT_MAX_IDLE = 64;
+
+  // max number of idle hyperloglogs retained per key
+  private final int maxIdle;
+
+  private final Map<Integer, ArrayDeque<HyperLogLog>> idle;
+
+  public HyperLogLogPool() {
+    this(DEFAULT_MAX_IDLE);
+  }
+
+  public HyperLogLogPool(int maxIdle) {
+    if (maxIdle < 0) {
+      throw new IllegalArgumentException("maxIdle should be non-negative. maxIdle: " + maxIdle);
+    }
+    this.maxIdle = maxIdle;
+    this.idle = new HashMap<Integer, ArrayDeque<HyperLogLog>>();
+  }
+
+  private static int key(int p, EncodingType encoding, boolean bitPacking) {
+    return (p << 3) | (encoding.ordinal() << 1) | (bitPacking ? 1 : 0);
+  }
+
+  /**
+   * Borrow an empty SPARSE hyperloglog with bit packing enabled.
+   * @param p
+   *          - number of register index bits
+   * @return empty hyperloglog
+   */
+  public HyperLogLog borrow(int p) {
+    return borrow(p, EncodingType.SPARSE, true);
+  }
+
+  /**
+   * Borrow an empty hyperloglog. A released hyperloglog is returned if
+   * available, else a new hyperloglog is built.
+   * @param p
+   *          - number of register index bits
+   * @param encoding
+   *          - encoding the hyperloglog starts with
+   * @param bitPacking
+   *          - enable bit packing of registers
+   * @return empty hyperloglog
+   */
+  public HyperLogLog borrow(int p, EncodingType encoding, boolean bitPacking) {
+    HyperLogLog hll = null;
+    synchronized (idle) {
+      ArrayDeque<HyperLogLog> queue = idle.get(key(p, encoding, bitPacking));
+      if (queue != null) {
+        hll = queue.pollFirst();
+      }
+    }
+    if (hll == null) {
+      hll = HyperLogLog.builder().setNumRegisterIndexBits(p).setEncoding(encoding)
+          .enableBitPacking(bitPacking).build();
+    }
+    return hll;
+  }
+
+  /**
+   * Reset and return a hyperloglog to the pool. The hyperloglog must not be
+   * used by the caller after release. If the pool already has maxIdle
+   * hyperloglogs for the key, or if the hyperloglog is configured differently
+   * from the hyperloglogs built by borrow(), the hyperloglog is dropped.
+   * @param hll
+   *          - hyperloglog to release
+   */
+  public void release(HyperLogLog hll) {
+    if (!hll.hasDefaultConfig()) {
+      return;
+    }
+    hll.reset();
+    int key = key(hll.getNumRegisterIndexBits(), hll.getInitialEncoding(),
+      hll.isBitPackingEnabled());
+    synchronized (idle) {
+      ArrayDeque<HyperLogLog> queue = idle.get(key);
+      if (queue == null) {
+        queue = new ArrayDeque<HyperLogLog>();
+        idle.put(key, queue);
+      }
+      if (queue.size() < maxIdle) {
+        queue.addFirst(hll);
+      }
+    }
+  }
+
+  /**
+   * @return number of idle hyperloglogs across all keys
+   */
+  public int getNumIdle() {
+    synchronized (idle) {
+      int numIdle = 0;
+      for (ArrayDeque<HyperLogLog> queue : idle.values()) {
+        numIdle += queue.size();
+      }
+      return numIdle;
+    }
+  }
+
+  /**
+   * Drops all idle hyperloglogs.
+   */
+  public void clear() {
+    synchronized (idle) {
+      idle.clear();
+    }
+  }
+}
@@ -0,0 +1,509 @@
+/**
+ * Copyright 2017 Prasanth Jayachandran
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.prasanthj.hll;
+
+import java.util.Arrays;
+
+import com.github.prasanthj.hll.HyperLogLog.EncodingType;
+
+import it.unimi.dsi.fastutil.ints.Int2ByteMap;
+import it.unimi.dsi.fastutil.ints.Int2ByteSortedMap;
+import it.unimi.dsi.fastutil.ints.IntIterator;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
+
+/**
+ * <pre>
+ * Estimates for set operations between two hyperloglogs without materializing
+ * a merged hyperloglog.
+ *
+ * Union        - register-wise max pass over both register sets. The estimate
+ *                is the same as merge() followed by count() and uses the
+ *                cardinality estimator of the hyperloglog with smaller p.
+ * Intersection - inclusion-exclusion principle |A| + |B| - |A U B|
+ * Joint        - Ertl's joint maximum likelihood estimation of |A \ B|, |B \ A|
+ *                and |A n B| over the register value pairs
+ *                https://arxiv.org/abs/1706.07290
+ *
+ * EXACT, SPARSE and DENSE hyperloglogs and hyperloglogs with different p can be
+ * combined the same way as merge() combines them (the larger p is reduced to
+ * the smaller p). Instances reuse their scratch buffers across calls, so a
+ * single instance can be used for pairwise estimates over many hyperloglogs
+ * without allocations. Instances are not thread-safe. Union of two EXACT
+ * hyperloglogs is counted exactly, EXACT hyperloglogs are expanded to
+ * registers otherwise.
+ * </pre>
+ */
+public class HyperLogLogSetOps {
+
+  // max number of iterations for the maximum likelihood optimizer
+  private static final int MAX_ITERATIONS = 200;
+
+  // scratch registers for SPARSE or squashed hyperloglogs
+  private byte[] scratch1;
+  private byte[] scratch2;
+
+  // histogram of register values of the union
+  private final int[] unionHistogram = new int[HLLConstants.NUM_REGISTER_VALUES];
+
+  // histograms of register value pairs (K1, K2) for joint estimation
+  private final int[] lessK1 = new int[HLLConstants.NUM_REGISTER_VALUES];
+  private final int[] greaterK1 = new int[HLLConstants.NUM_REGISTER_VALUES];
+  private final int[] lessK2 = new int[HLLConstants.NUM_REGISTER_VALUES];
+  private final int[] greaterK2 = new int[HLLConstants.NUM_REGISTER_VALUES];
+  private final int[] equalK = new int[HLLConstants.NUM_REGISTER_VALUES];
+
+  // optimizer state (log of the rates |A \ B|/m, |B \ A|/m, |A n B|/m)
+  private final double[] x = new double[3];
+  private final double[] grad = new double[3];
+  private final double[] xNew = new double[3];
+  private final double[] gradNew = new double[3];
+  private final double[] dir = new double[3];
+  private final double[] step = new double[3];
+  private final double[] hessianY = new double[3];
+  private final double[] invHessian = new double[9];
+
+  /**
+   * Estimated cardinality of the union of two hyperloglogs.
+   * @param hll1
+   *          - first hyperloglog
+   * @param hll2
+   *          - second hyperloglog
+   * @return estimated cardinality of the union
+   */
+  public long unionCount(HyperLogLog hll1, HyperLogLog hll2) {
+    HyperLogLog target = hll1.getNumRegisterIndexBits() <= hll2.getNumRegisterIndexBits() ? hll1
+      : hll2;
+    final int p = target.getNumRegisterIndexBits();
+
+    if (hll1.getEncoding() == EncodingType.EXACT && hll2.getEncoding() == EncodingType.EXACT) {
+      // union of exact sets is exact
+      final HLLExactSet set1 = hll1.getHLLExactSet();
+      final HLLExactSet set2 = hll2.getHLLExactSet();
+      return set1.size() + set2.size() - set1.countCommon(set2);
+    }
+
+    if (hll1.getEncoding() == EncodingType.SPARSE && hll2.getEncoding() == EncodingType.SPARSE) {
+      // sparse map keys are pPrime register indices irrespective of p, so
+      // the union stays sparse unless the merged map exceeds the threshold
+      HLLSparseRegister sparse1 = hll1.getHLLSparseRegister();
+      HLLSparseRegister sparse2 = hll2.getHLLSparseRegister();
+      long numKeys = countDistinctKeys(sparse1.getSparseMap(), sparse2.getSparseMap());
+      if (numKeys <= target.getEncodingSwitchThreshold()) {
+        int mPrime = 1 << sparse1.getPPrime();
+        return HyperLogLog.linearCount(mPrime, mPrime - numKeys);
+      }
+    }
+
+    final byte[] reg1 = registersFor(hll1, p, true);
+    final byte[] reg2 = registersFor(hll2, p, false);
+    if (HLLDenseRegister.useParallelScan(reg1.length)) {
+      int[] result = HLLDenseRegister.scanRegisters(reg1, reg2, false);
+      System.arraycopy(result, 0, unionHistogram, 0, unionHistogram.length);
+      return target.getCardinalityEstimator().estimate(p, unionHistogram);
+    }
+    final int maxBucket = HLLConstants.NUM_REGISTER_VALUES - 1;
+    Arrays.fill(unionHistogram, 0);
+    for (int i = 0; i < reg1.length; i++) {
+      final byte r1 = reg1[i];
+      final byte r2 = reg2[i];
+      final byte max = r1 > r2 ? r1 : r2;
+      unionHistogram[max < maxBucket ? max : maxBucket]++;
+    }
+    return target.getCardinalityEstimator().estimate(p, unionHistogram);
+  }
+
+  /**
+   * Estimated cardinality of the intersection of two hyperloglogs using
+   * inclusion-exclusion principle.
+   * @param hll1
+   *          - first hyperloglog
+   * @param hll2
+   *          - second hyperloglog
+   * @return estimated cardinality of the intersection
+   */
+  public long intersectionCount(HyperLogLog hll1, HyperLogLog hll2) {
+    long intersection = hll1.count() + hll2.count() - unionCount(hll1, hll2);
+    return intersection > 0 ? intersection : 0;
+  }
+
+  /**
+   * Estimated jaccard similarity |A n B| / |A U B| of two hyperloglogs using
+   * inclusion-exclusion principle.
+   * @param hll1
+   *          - first hyperloglog
+   * @param hll2
+   *          - second hyperloglog
+   * @return estimated jaccard similarity between 0 and 1
+   */
+  public double jaccard(HyperLogLog hll1, HyperLogLog hll2) {
+    long union = unionCount(hll1, hll2);
+    if (union <= 0) {
+      return 0;
+    }
+    long intersection = hll1.count() + hll2.count() - union;
+    return intersection > 0 ? Math.min(1.0, (double) intersection / union) : 0;
+  }
+
+  /**
+   * Joint maximum likelihood estimation of the cardinalities of |A \ B|,
+   * |B \ A| and |A n B|. This is more accurate than inclusion-exclusion
+   * principle especially when the intersection is small compared to the
+   * union. Jaccard similarity can be derived from the result as
+   * result[2] / (result[0] + result[1] + result[2]).
+   * @param hll1
+   *          - hyperloglog for set A
+   * @param hll2
+   *          - hyperloglog for set B
+   * @param result
+   *          - array of length 3 to store the estimates of |A \ B|, |B \ A|
+   *          and |A n B| respectively
+   */
+  public void estimateJoint(HyperLogLog hll1, HyperLogLog hll2, double[] result) {
+    if (result.length < 3) {
+      throw new IllegalArgumentException("Result array should be of length 3.");
+    }
+    final int p = Math.min(hll1.getNumRegisterIndexBits(), hll2.getNumRegisterIndexBits());
+    final int m = 1 << p;
+    final int q = 64 - p;
+    final byte[] reg1 = registersFor(hll1, p, true);
+    final byte[] reg2 = registersFor(hll2, p, false);
+
+    Arrays.fill(lessK1, 0);
+    Arrays.fill(greaterK1, 0);
+    Arrays.fill(lessK2, 0);
+    Arrays.fill(greaterK2, 0);
+    Arrays.fill(equalK, 0);
+    for (int i = 0; i < m; i++) {
+      // register values beyond q are folded into q + 1
+      final int k1 = Math.min(reg1[i], q + 1);
+      final int k2 = Math.min(reg2[i], q + 1);
+      if (k1 < k2) {
+        lessK1[k1]++;
+        greaterK2[k2]++;
+      } else if (k1 > k2) {
+        greaterK1[k1]++;
+        lessK2[k2]++;
+      } else {
+        equalK[k1]++;
+      }
+    }
+
+    // start from inclusion-exclusion estimates
+    long count1 = hll1.count();
+    long count2 = hll2.count();
+    long union = unionCount(hll1, hll2);
+    x[0] = Math.log(Math.max(union - count2, 1.0) / m);
+    x[1] = Math.log(Math.max(union - count1, 1.0) / m);
+    x[2] = Math.log(Math.max(count1 + count2 - union, 1.0) / m);
+    maximizeLikelihood(q, m);
+
+    result[0] = Math.exp(x[0]) * m;
+    result[1] = Math.exp(x[1]) * m;
+    result[2] = Math.exp(x[2]) * m;
+  }
+
+  /**
+   * Maximizes the joint log-likelihood using BFGS over the log of the rates,
+   * which keeps the rates positive.
+   */
+  private void maximizeLikelihood(int q, int m) {
+    double f = negLogLikelihood(q, x, grad);
+    resetInverseHessian();
+    for (int iter = 0; iter < MAX_ITERATIONS; iter++) {
+      if (isConverged(m)) {
+        return;
+      }
+
+      // search direction d = -H * g
+      double slope = 0;
+      double maxStep = 0;
+      for (int i = 0; i < 3; i++) {
+        dir[i] = -(invHessian[3 * i] * grad[0] + invHessian[3 * i + 1] * grad[1]
+          + invHessian[3 * i + 2] * grad[2]);
+        slope += dir[i] * grad[i];
+        maxStep = Math.max(maxStep, Math.abs(dir[i]));
+      }
+      if (slope >= 0) {
+        // not a descent direction, restart with steepest descent
+        resetInverseHessian();
+        slope = 0;
+        maxStep = 0;
+        for (int i = 0; i < 3; i++) {
+          dir[i] = -grad[i];
+          slope += dir[i] * grad[i];
+          maxStep = Math.max(maxStep, Math.abs(dir[i]));
+        }
+      }
+
+      // backtracking line search with steps of at most 1 in log space
+      double t = maxStep > 1 ? 1 / maxStep : 1;
+      double fNew;
+      while (true) {
+        for (int i = 0; i < 3; i++) {
+          xNew[i] = x[i] + t * dir[i];
+        }
+        fNew = negLogLikelihood(q, xNew, gradNew);
+        if (fNew <= f + 1e-4 * t * slope) {
+          break;
+        }
+        t *= 0.5;
+        if (t < 1e-12) {
+          return;
+        }
+      }
+
+      // BFGS update of the inverse hessian with s = xNew - x, y = gNew - g
+      double sy = 0;
+      for (int i = 0; i < 3; i++) {
+        step[i] = xNew[i] - x[i];
+        sy += step[i] * (gradNew[i] - grad[i]);
+      }
+      if (sy > 1e-12) {
+        double yhy = 0;
+        for (int i = 0; i < 3; i++) {
+          hessianY[i] = 0;
+          for (int j = 0; j < 3; j++) {
+            hessianY[i] += invHessian[3 * i + j] * (gradNew[j] - grad[j]);
+          }
+          yhy += (gradNew[i] - grad[i]) * hessianY[i];
+        }
+        double c = (sy + yhy) / (sy * sy);
+        for (int i = 0; i < 3; i++) {
+          for (int j = 0; j < 3; j++) {
+            invHessian[3 * i + j] += c * step[i] * step[j]
+              - (hessianY[i] * step[j] + step[i] * hessianY[j]) / sy;
+          }
+        }
+      }
+
+      System.arraycopy(xNew, 0, x, 0, 3);
+      System.arraycopy(gradNew, 0, grad, 0, 3);
+      f = fNew;
+    }
+  }
+
+  private boolean isConverged(int m) {
+    // gradient w.r.t log of rate is the change in log-likelihood per relative
+    // change in cardinality. Stop when it is negligible compared to the
+    // cardinality estimate.
+    for (int i = 0; i < 3; i++) {
+      if (Math.abs(grad[i]) > 1e-3 + 1e-6 * Math.exp(x[i]) * m) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void resetInverseHessian() {
+    Arrays.fill(invHessian, 0);
+    invHessian[0] = invHessian[4] = invHessian[8] = 1;
+  }
+
+  /**
+   * Negative joint log-likelihood and its gradient w.r.t log of the rates.
+   * Under poisson model the register values K1 = max(Ka, Kx) and K2 = max(Kb,
+   * Kx) where Ka, Kb, Kx are register values of A \ B, B \ A and A n B
+   * respectively with P(K &lt;= k) = exp(-rate * 2^-k) for k &lt;= q.
+   */
+  private double negLogLikelihood(int q, double[] logRates, double[] gradient) {
+    final double a = Math.exp(logRates[0]);
+    final double b = Math.exp(logRates[1]);
+    final double x = Math.exp(logRates[2]);
+    double logL = 0;
+    double ga = 0, gb = 0, gx = 0;
+
+    for (int k = 0; k <= q + 1; k++) {
+      // g(k) = 2^-k for k <= q and 0 for q + 1, d = g(k - 1) - g(k)
+      final double g = k <= q ? HLLConstants.inversePow2Data[k] : 0;
+      final double d = k <= q ? g : HLLConstants.inversePow2Data[q];
+
+      if (lessK1[k] != 0) {
+        final int c = lessK1[k];
+        logL += c * logProbability(a + x, k, g, d);
+        final double dl = c * derivLogProbability(a + x, k, g, d);
+        ga += dl;
+        gx += dl;
+      }
+      if (greaterK2[k] != 0) {
+        final int c = greaterK2[k];
+        logL += c * logProbability(b, k, g, d);
+        gb += c * derivLogProbability(b, k, g, d);
+      }
+      if (greaterK1[k] != 0) {
+        final int c = greaterK1[k];
+        logL += c * logProbability(a, k, g, d);
+        ga += c * derivLogProbability(a, k, g, d);
+      }
+      if (lessK2[k] != 0) {
+        final int c = lessK2[k];
+        logL += c * logProbability(b + x, k, g, d);
+        final double dl = c * derivLogProbability(b + x, k, g, d);
+        gb += dl;
+        gx += dl;
+      }
+      if (equalK[k] != 0) {
+        final int c = equalK[k];
+        if (k == 0) {
+          logL -= c * (a + b + x);
+          ga -= c;
+          gb -= c;
+          gx -= c;
+        } else {
+          // P(K1 = K2 = k) = e^-(a+b+x)g * ((1 - w) + w * (1 - u) * (1 - v))
+          // where u = e^-ad, v = e^-bd, w = e^-xd
+          final double u = Math.exp(-a * d);
+          final double v = Math.exp(-b * d);
+          final double w = Math.exp(-x * d);
+          final double oneMinusU = -Math.expm1(-a * d);
+          final double oneMinusV = -Math.expm1(-b * d);
+          final double oneMinusW = -Math.expm1(-x * d);
+          final double prob = oneMinusW + w * oneMinusU * oneMinusV;
+          logL += c * (-(a + b + x) * g + Math.log(prob));
+          ga += c * (-g + d * u * w * oneMinusV / prob);
+          gb += c * (-g + d * v * w * oneMinusU / prob);
+          gx += c * (-g + d * w * (1 - oneMinusU * oneMinusV) / prob);
+        }
+      }
+    }
+
+    // chain rule for log of rates
+    gradient[0] = -ga * a;
+    gradient[1] = -gb * b;
+    gradient[2] = -gx * x;
+    return -logL;
+  }
+
+  // log P(K = k) for a register with the specified rate
+  private static double logProbability(double rate, int k, double g, double d) {
+    if (k == 0) {
+      return -rate;
+    }
+    return -rate * g + Math.log(-Math.expm1(-rate * d));
+  }
+
+  // derivative of log P(K = k) w.r.t rate
+  private static double derivLogProbability(double rate, int k, double g, double d) {
+    if (k == 0) {
+      return -1;
+    }
+    return -g + d / Math.expm1(rate * d);
+  }
+
+  /**
+   * Number of distinct keys in the union of two sorted sparse maps.
+   */
+  private static long countDistinctKeys(Int2ByteSortedMap map1, Int2ByteSortedMap map2) {
+    IntIterator iter1 = map1.keySet().iterator();
+    IntIterator iter2 = map2.keySet().iterator();
+    long common = 0;
+    if (iter1.hasNext() && iter2.hasNext()) {
+      int key1 = iter1.nextInt();
+      int key2 = iter2.nextInt();
+      while (true) {
+        if (key1 == key2) {
+          common++;
+          if (!iter1.hasNext() || !iter2.hasNext()) {
+            break;
+          }
+          key1 = iter1.nextInt();
+          key2 = iter2.nextInt();
+        } else if (key1 < key2) {
+          if (!iter1.hasNext()) {
+            break;
+          }
+          key1 = iter1.nextInt();
+        } else {
+          if (!iter2.hasNext()) {
+            break;
+          }
+          key2 = iter2.nextInt();
+        }
+      }
+    }
+    return map1.size() + map2.size() - common;
+  }
+
+  /**
+   * Returns DENSE registers of the hyperloglog for the specified p. Registers
+   * of DENSE hyperloglogs with same p are returned as such, others are
+   * expanded (and squashed if required) into scratch registers.
+   */
+  private byte[] registersFor(HyperLogLog hll, int p, boolean first) {
+    final int hllP = hll.getNumRegisterIndexBits();
+    if (hll.getEncoding() == EncodingType.DENSE && hllP == p) {
+      return hll.getHLLDenseRegister().getRegister();
+    }
+
+    final int m = 1 << p;
+    byte[] scratch = first ? scratch1 : scratch2;
+    if (scratch == null || scratch.length != m) {
+      scratch = new byte[m];
+      if (first) {
+        scratch1 = scratch;
+      } else {
+        scratch2 = scratch;
+      }
+    } else {
+      Arrays.fill(scratch, (byte) 0);
+    }
+
+    final int pMask = m - 1;
+    if (hll.getEncoding() == EncodingType.DENSE) {
+      final byte[] register = hll.getHLLDenseRegister().getRegister();
+      for (int i = 0; i < register.length; i++) {
+        if (register[i] != 0) {
+          setMax(scratch, i & pMask, HLLDenseRegister.downscaleRegister(i, register[i], hllP, p));
+        }
+      }
+    } else if (hll.getEncoding() == EncodingType.EXACT) {
+      final HLLExactSet exactSet = hll.getHLLExactSet();
+      if (exactSet.containsZero()) {
+        addHashcode(scratch, 0, p);
+      }
+      for (long hashcode : exactSet.getTable()) {
+        if (hashcode != 0) {
+          addHashcode(scratch, hashcode, p);
+        }
+      }
+    } else {
+      ObjectIterator<Int2ByteMap.Entry> iter = hll.getHLLSparseRegister().getSparseMap()
+        .int2ByteEntrySet().iterator();
+      while (iter.hasNext()) {
+        Int2ByteMap.Entry entry = iter.next();
+        final int key = entry.getIntKey();
+        byte value = entry.getByteValue();
+        if (hllP != p) {
+          value = HLLDenseRegister.downscaleRegister(key, value, hllP, p);
+        }
+        setMax(scratch, key & pMask, value);
+      }
+    }
+    return scratch;
+  }
+
+  // same as HLLDenseRegister.add()
+  private static void addHashcode(byte[] register, long hashcode, int p) {
+    setMax(register, (int) (hashcode & (register.length - 1)),
+      (byte) (Long.numberOfTrailingZeros(hashcode >>> p) + 1));
+  }
+
+  private static void setMax(byte[] register, int idx, byte value) {
+    if (value > register[idx]) {
+      register[idx] = value;
+    }
+  }
+}
@@ -0,0 +1,226 @@
+/**
+ * Copyright 2017 Prasanth Jayachandran
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.prasanthj.hll;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.github.prasanthj.hll.HyperLogLog.EncodingType;
+
+/**
+ * Thread-safe HyperLogLogMetrics that aggregates events of all hyperloglogs
+ * it is set on. Can be registered as an MBean to expose the aggregates via
+ * JMX.
+ */
+public class HyperLogLogStats implements HyperLogLogMetrics, HyperLogLogStatsMBean {
+
+  public static final String JMX_DOMAIN = "com.github.prasanthj.hll";
+
+  private final LongAdder sparseAdds = new LongAdder();
+  private final LongAdder denseAdds = new LongAdder();
+  private final LongAdder registerUpdates = new LongAdder();
+  private final LongAdder tempListMerges = new LongAdder();
+  private final LongAdder tempListMergeNanos = new LongAdder();
+  private final LongAdder promotions = new LongAdder();
+  private final LongAdder promotionNanos = new LongAdder();
+  private final LongAdder promotionSparseEntries = new LongAdder();
+  private final LongAdder merges = new LongAdder();
+  private final LongAdder mergeNanos = new LongAdder();
+  private final LongAdder serializations = new LongAdder();
+  private final LongAdder serializedBytes = new LongAdder();
+  private final LongAdder serializeNanos = new LongAdder();
+  private final LongAdder deserializations = new LongAdder();
+  private final LongAdder deserializedBytes = new LongAdder();
+  private final LongAdder deserializeNanos = new LongAdder();
+
+  @Override
+  public void onAdd(EncodingType encoding, boolean updated) {
+    if (encoding != EncodingType.DENSE) {
+      // adds before switching to DENSE, including EXACT encoding
+      sparseAdds.increment();
+    } else {
+      denseAdds.increment();
+    }
+    if (updated) {
+      registerUpdates.increment();
+    }
+  }
+
+  @Override
+  public void onTempListMerge(int numEntries, int numUpdates, int sparseMapSize,
+      long elapsedNanos) {
+    registerUpdates.add(numUpdates);
+    tempListMerges.increment();
+    tempListMergeNanos.add(elapsedNanos);
+  }
+
+  @Override
+  public void onPromotion(int p, int numSparseEntries, long elapsedNanos) {
+    promotions.increment();
+    promotionNanos.add(elapsedNanos);
+    promotionSparseEntries.add(numSparseEntries);
+  }
+
+  @Override
+  public void onMerge(EncodingType encoding, EncodingType otherEncoding, long elapsedNanos) {
+    merges.increment();
+    mergeNanos.add(elapsedNanos);
+  }
+
+  @Override
+  public void onSerialize(long numBytes, long elapsedNanos) {
+    serializations.increment();
+    serializedBytes.add(numBytes);
+    serializeNanos.add(elapsedNanos);
+  }
+
+  @Override
+  public void onDeserialize(long numBytes, long elapsedNanos) {
+    deserializations.increment();
+    deserializedBytes.add(numBytes);
+    deserializeNanos.add(elapsedNanos);
+  }
+
+  /**
+   * Registers this instance in the platform MBean server.
+   * @param name
+   *          - name property of the MBean
+   * @return object name of the registered MBean
+   * @throws JMException - thrown when the name is invalid or already registered
+   */
+  public ObjectName register(String name) throws JMException {
+    ObjectName objectName = new ObjectName(JMX_DOMAIN + ":type=HyperLogLogStats,name="
+        + ObjectName.quote(name));
+    ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+    return objectName;
+  }
+
+  /**
+   * Unregisters MBean registered using register().
+   * @param objectName
+   *          - object name returned by register()
+   * @throws JMException - thrown when the MBean is not registered
+   */
+  public static void unregister(ObjectName objectName) throws JMException {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    server.unregisterMBean(objectName);
+  }
+
+  @Override
+  public long getSparseAdds() {
+    return sparseAdds.sum();
+  }
+
+  @Override
+  public long getDenseAdds() {
+    return denseAdds.sum();
+  }
+
+  @Override
+  public long getRegisterUpdates() {
+    return registerUpdates.sum();
+  }
+
+  @Override
+  public long getTempListMerges() {
+    return tempListMerges.sum();
+  }
+
+  @Override
+  public long getTempListMergeNanos() {
+    return tempListMergeNanos.sum();
+  }
+
+  @Override
+  public long getPromotions() {
+    return promotions.sum();
+  }
+
+  @Override
+  public long getPromotionNanos() {
+    return promotionNanos.sum();
+  }
+
+  @Override
+  public double getAvgSparseEntriesAtPromotion() {
+    long numPromotions = promotions.sum();
+    return numPromotions == 0 ? 0 : (double) promotionSparseEntries.sum() / numPromotions;
+  }
+
+  @Override
+  public long getMerges() {
+    return merges.sum();
+  }
+
+  @Override
+  public long getMergeNanos() {
+    return mergeNanos.sum();
+  }
+
+  @Override
+  public long getSerializations() {
+    return serializations.sum();
+  }
+
+  @Override
+  public long getSerializedBytes() {
+    return serializedBytes.sum();
+  }
+
+  @Override
+  public long getSerializeNanos() {
+    return serializeNanos.sum();
+  }
+
+  @Override
+  public long getDeserializations() {
+    return deserializations.sum();
+  }
+
+  @Override
+  public long getDeserializedBytes() {
+    return deserializedBytes.sum();
+  }
+
+  @Override
+  public long getDeserializeNanos() {
+    return deserializeNanos.sum();
+  }
+
+  @Override
+  public void reset() {
+    for (LongAdder adder : new LongAdder[] { sparseAdds, denseAdds, registerUpdates,
+        tempListMerges, tempListMergeNanos, promotions, promotionNanos, promotionSparseEntries,
+        merges, mergeNanos, serializations, serializedBytes, serializeNanos, deserializations,
+        deserializedBytes, deserializeNanos }) {
+      adder.reset();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "HyperLogLogStats - sparseAdds: " + getSparseAdds() + " denseAdds: " + getDenseAdds()
+        + " registerUpdates: " + getRegisterUpdates() + " tempListMerges: "
+        + getTempListMerges() + " promotions: " + getPromotions() + " merges: " + getMerges()
+        + " serializedBytes: " + getSerializedBytes() + " deserializedBytes: "
+        + getDeserializedBytes();
+  }
+}
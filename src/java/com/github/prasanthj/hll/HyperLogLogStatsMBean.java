@@ -0,0 +1,57 @@
+/**
+ * Copyright 2017 Prasanth Jayachandran
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.prasanthj.hll;
+
+/**
+ * JMX interface of HyperLogLogStats. Times are in nanoseconds.
+ */
+public interface HyperLogLogStatsMBean {
+
+  long getSparseAdds();
+
+  long getDenseAdds();
+
+  long getRegisterUpdates();
+
+  long getTempListMerges();
+
+  long getTempListMergeNanos();
+
+  long getPromotions();
+
+  long getPromotionNanos();
+
+  double getAvgSparseEntriesAtPromotion();
+
+  long getMerges();
+
+  long getMergeNanos();
+
+  long getSerializations();
+
+  long getSerializedBytes();
+
+  long getSerializeNanos();
+
+  long getDeserializations();
+
+  long getDeserializedBytes();
+
+  long getDeserializeNanos();
+
+  void reset();
+}
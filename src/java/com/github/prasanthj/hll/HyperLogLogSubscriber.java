@@ -0,0 +1,342 @@
+/**
+ * Copyright 2017 Prasanth Jayachandran
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.prasanthj.hll;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+import java.util.function.ToLongFunction;
+
+/**
+ * <pre>
+ * Reactive streams subscriber that aggregates a stream of elements into a
+ * hyperloglog. Elements are hashed by a pluggable hash function into a fixed
+ * size batch buffer which is added to the hyperloglog with
+ * HyperLogLog.addAll() when full. Demand is requested one batch at a time
+ * with one more batch in flight, so at most 2 * batchSize elements are
+ * outstanding and nothing is buffered beyond the batch buffer.
+ *
+ * After every batch an Update (estimated cardinality and optionally a
+ * snapshot of the hyperloglog) is published downstream if the update
+ * interval has elapsed or the estimate changed by at least the update delta
+ * since the last update. A final update is always published on completion.
+ *
+ * Subscriber and Subscription have the same methods as java.util.concurrent.Flow
+ * (this library targets Java 8). On Java 9+ a Flow.Publisher can be
+ * subscribed with
+ *
+ *   publisher.subscribe(new Flow.Subscriber&lt;T&gt;() {
+ *     public void onSubscribe(Flow.Subscription s) {
+ *       sub.onSubscribe(HyperLogLogSubscriber.Subscription.of(s::request, s::cancel));
+ *     }
+ *     public void onNext(T item) { sub.onNext(item); }
+ *     public void onError(Throwable t) { sub.onError(t); }
+ *     public void onComplete() { sub.onComplete(); }
+ *   });
+ *
+ * and updates can be published downstream with setDownstream(submissionPublisher::submit).
+ *
+ * Signals must be serial as required by reactive streams. The hyperloglog
+ * must not be accessed directly until the result is complete.
+ * </pre>
+ */
+public class HyperLogLogSubscriber<T> {
+
+  public static final int DEFAULT_BATCH_SIZE = 1024;
+
+  /**
+   * Same as java.util.concurrent.Flow.Subscription.
+   */
+  public interface Subscription {
+    void request(long n);
+
+    void cancel();
+
+    static Subscription of(LongConsumer request, Runnable cancel) {
+      return new Subscription() {
+        @Override
+        public void request(long n) {
+          request.accept(n);
+        }
+
+        @Override
+        public void cancel() {
+          cancel.run();
+        }
+      };
+    }
+  }
+
+  /**
+   * Cardinality update published downstream.
+   */
+  public static final class Update {
+    private final long count;
+    private final long numElements;
+    private final HyperLogLog snapshot;
+    private final boolean last;
+
+    Update(long count, long numElements, HyperLogLog snapshot, boolean last) {
+      this.count = count;
+      this.numElements = numElements;
+      this.snapshot = snapshot;
+      this.last = last;
+    }
+
+    /**
+     * @return estimated cardinality
+     */
+    public long getCount() {
+      return count;
+    }
+
+    /**
+     * @return number of elements received so far
+     */
+    public long getNumElements() {
+      return numElements;
+    }
+
+    /**
+     * @return snapshot of the hyperloglog or null if snapshots are disabled
+     */
+    public HyperLogLog getSnapshot() {
+      return snapshot;
+    }
+
+    /**
+     * @return true if this is the final update published on completion
+     */
+    public boolean isLast() {
+      return last;
+    }
+
+    @Override
+    public String toString() {
+      return "Update count: " + count + " numElements: " + numElements + " last: " + last;
+    }
+  }
+
+  private final HyperLogLog hll;
+  private final ToLongFunction<? super T> hasher;
+  private final long[] batch;
+  private final long updateIntervalNanos;
+  private final long updateDelta;
+  private final boolean publishSnapshots;
+  private final Consumer<? super Update> downstream;
+  private final CompletableFuture<HyperLogLog> result = new CompletableFuture<HyperLogLog>();
+
+  private Subscription subscription;
+  private int batchLength;
+  private long numElements;
+  private long lastUpdateCount;
+  private long lastUpdateNanos;
+
+  private HyperLogLogSubscriber(HyperLogLogSubscriberBuilder<T> builder) {
+    this.hll = builder.hll != null ? builder.hll : HyperLogLog.builder().build();
+    this.hasher = builder.hasher;
+    this.batch = new long[builder.batchSize];
+    this.updateIntervalNanos = builder.updateIntervalNanos;
+    this.updateDelta = builder.updateDelta;
+    this.publishSnapshots = builder.publishSnapshots;
+    this.downstream = builder.downstream;
+  }
+
+  public void onSubscribe(Subscription subscription) {
+    if (this.subscription != null || result.isDone()) {
+      // only one subscription is allowed
+      subscription.cancel();
+      return;
+    }
+    this.subscription = subscription;
+    this.lastUpdateNanos = System.nanoTime();
+    // one batch to fill and one in flight
+    subscription.request(2L * batch.length);
+  }
+
+  public void onNext(T item) {
+    batch[batchLength++] = hasher.applyAsLong(item);
+    if (batchLength == batch.length) {
+      addBatch();
+      maybePublish();
+      subscription.request(batch.length);
+    }
+  }
+
+  public void onError(Throwable throwable) {
+    addBatch();
+    result.completeExceptionally(throwable);
+  }
+
+  public void onComplete() {
+    addBatch();
+    publish(true);
+    result.complete(hll);
+  }
+
+  /**
+   * Cancels the subscription. Elements received so far are kept in the
+   * hyperloglog, but the result is not completed.
+   */
+  public void cancel() {
+    if (subscription != null) {
+      subscription.cancel();
+    }
+  }
+
+  /**
+   * @return future completed with the hyperloglog on completion of the stream
+   *         or exceptionally on error
+   */
+  public CompletableFuture<HyperLogLog> getResult() {
+    return result;
+  }
+
+  /**
+   * @return number of elements received so far
+   */
+  public long getNumElements() {
+    return numElements + batchLength;
+  }
+
+  private void addBatch() {
+    if (batchLength > 0) {
+      hll.addAll(batch, 0, batchLength);
+      numElements += batchLength;
+      batchLength = 0;
+    }
+  }
+
+  private void maybePublish() {
+    if (downstream == null) {
+      return;
+    }
+    if (updateIntervalNanos > 0 && System.nanoTime() - lastUpdateNanos >= updateIntervalNanos) {
+      publish(false);
+    } else if (updateDelta > 0) {
+      long count = hll.count();
+      if (Math.abs(count - lastUpdateCount) >= updateDelta) {
+        publish(count, false);
+      }
+    }
+  }
+
+  private void publish(boolean last) {
+    if (downstream != null) {
+      publish(hll.count(), last);
+    }
+  }
+
+  private void publish(long count, boolean last) {
+    lastUpdateCount = count;
+    lastUpdateNanos = System.nanoTime();
+    // signals are serial, so the snapshot is taken on the thread updating hll
+    downstream.accept(new Update(count, numElements, publishSnapshots ? hll.snapshot() : null,
+        last));
+  }
+
+  /**
+   * @param hasher
+   *          - 64 bit hash function for elements, for example
+   *          s -&gt; Murmur3.hash64(s.getBytes())
+   * @return builder
+   */
+  public static <T> HyperLogLogSubscriberBuilder<T> builder(ToLongFunction<? super T> hasher) {
+    return new HyperLogLogSubscriberBuilder<T>(hasher);
+  }
+
+  public static class HyperLogLogSubscriberBuilder<T> {
+    private final ToLongFunction<? super T> hasher;
+    private HyperLogLog hll;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private long updateIntervalNanos;
+    private long updateDelta;
+    private boolean publishSnapshots;
+    private Consumer<? super Update> downstream;
+
+    HyperLogLogSubscriberBuilder(ToLongFunction<? super T> hasher) {
+      if (hasher == null) {
+        throw new IllegalArgumentException("Hash function should not be null");
+      }
+      this.hasher = hasher;
+    }
+
+    /**
+     * @param hll
+     *          - hyperloglog to add elements to. Default is
+     *          HyperLogLog.builder().build()
+     */
+    public HyperLogLogSubscriberBuilder<T> setHyperLogLog(HyperLogLog hll) {
+      this.hll = hll;
+      return this;
+    }
+
+    public HyperLogLogSubscriberBuilder<T> setBatchSize(int batchSize) {
+      if (batchSize < 1) {
+        throw new IllegalArgumentException("Batch size should be positive. batchSize: "
+            + batchSize);
+      }
+      this.batchSize = batchSize;
+      return this;
+    }
+
+    /**
+     * Publish an update after a batch if this much time has elapsed since the
+     * last update.
+     */
+    public HyperLogLogSubscriberBuilder<T> setUpdateInterval(long interval, TimeUnit unit) {
+      if (interval < 0) {
+        throw new IllegalArgumentException("Update interval should not be negative. interval: "
+            + interval);
+      }
+      this.updateIntervalNanos = unit.toNanos(interval);
+      return this;
+    }
+
+    /**
+     * Publish an update after a batch if the estimate changed by at least
+     * this much since the last update.
+     */
+    public HyperLogLogSubscriberBuilder<T> setUpdateDelta(long updateDelta) {
+      if (updateDelta < 0) {
+        throw new IllegalArgumentException("Update delta should not be negative. updateDelta: "
+            + updateDelta);
+      }
+      this.updateDelta = updateDelta;
+      return this;
+    }
+
+    /**
+     * Include a copy-on-write snapshot of the hyperloglog in every update
+     * (refer HyperLogLog.snapshot()).
+     */
+    public HyperLogLogSubscriberBuilder<T> setPublishSnapshots(boolean publishSnapshots) {
+      this.publishSnapshots = publishSnapshots;
+      return this;
+    }
+
+    public HyperLogLogSubscriberBuilder<T> setDownstream(Consumer<? super Update> downstream) {
+      this.downstream = downstream;
+      return this;
+    }
+
+    public HyperLogLogSubscriber<T> build() {
+      return new HyperLogLogSubscriber<T>(this);
+    }
+  }
+}
@@ -19,7 +19,11 @@ package com.github.prasanthj.hll;
 import com.github.prasanthj.hll.HyperLogLog.EncodingType;
 import it.unimi.dsi.fastutil.ints.Int2ByteSortedMap;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -33,6 +37,46 @@ public class HyperLogLogUtils {
 
   public static final byte[] MAGIC = new byte[] { 'H', 'L', 'L' };
 
+  // magic string of framed hyperloglog
+  public static final byte[] FRAME_MAGIC = new byte[] { 'H', 'L', 'F' };
+  private static final int FRAME_VERSION = 1;
+
+  // magic string of serialized UltraLogLog
+  public static final byte[] ULL_MAGIC = new byte[] { 'U', 'L', 'L' };
+  private static final int ULL_VERSION = 1;
+  private static final int ULL_FLAG_UNKNOWN_LOWER_BITS = 0x01;
+
+  // spare bit of fourth header byte identifies serialization format v2
+  private static final int V2_FLAG = 0x08;
+
+  // v2 encodings (3 bits of fourth header byte)
+  private static final int V2_SPARSE = 0;
+  private static final int V2_BITPACK = 1;
+  private static final int V2_OFFSET = 2;
+  private static final int V2_HUFFMAN = 3;
+  private static final int V2_EXACT = 4;
+
+  // max p of format v1. p is stored in 4 bits with 0 for p = 16
+  private static final int V1_MAX_P_VALUE = 16;
+
+  // v2 flags byte
+  private static final int V2_FLAG_NO_BIT_PACKING = 0x01;
+  private static final int V2_FLAG_MARTINGALE = 0x02;
+
+  /**
+   * Codecs for dense registers supported by serialization format v2.
+   */
+  public enum DenseCodec {
+    /** bit packing using width of max register value (same as format v1) */
+    BITPACK,
+    /** min register value as base with bit packed offsets and exception list */
+    OFFSET,
+    /** canonical huffman codes */
+    HUFFMAN,
+    /** smallest of all the above codecs */
+    SMALLEST
+  }
+
   /**
    * HyperLogLog is serialized using the following format
    * 
@@ -44,8 +88,8 @@ public class HyperLogLogUtils {
    * 
    * <b>4 byte header</b> is encoded like below
    * 3 bytes - HLL magic string to identify serialized stream
-   * 4 bits  - p (number of bits to be used as register index)
-   * 1       - spare bit (not used)
+   * 4 bits  - p (number of bits to be used as register index). 0 for p = 16
+   * 1       - spare bit (0 for this format, 1 for format v2)
    * 3 bits  - encoding (000 - sparse, 001..110 - n bit packing, 111 - no bit packing)
    * 
    * Followed by header are 3 fields that are required for reconstruction
@@ -56,6 +100,11 @@ public class HyperLogLogUtils {
    *                   for sparse representation. For bit-packing, the register
    *                   length can be found from p)
    * </pre>
+   * 
+   * Refer serializeHLL(OutputStream, HyperLogLog, DenseCodec) for smaller
+   * format v2. deserializeHLL() reads both formats. EXACT hyperloglogs,
+   * hyperloglogs with martingale estimate and hyperloglogs with p &gt; 16 are
+   * always serialized using format v2 as format v1 has no encoding for them.
    * @param out
    *          - output stream to write to
    * @param hll
@@ -63,12 +112,22 @@ public class HyperLogLogUtils {
    * @throws IOException - thrown by OutputStream
    */
   public static void serializeHLL(OutputStream out, HyperLogLog hll) throws IOException {
+    serialize(out, hll, o -> writeHLL(o, hll));
+  }
+
+  private static void writeHLL(OutputStream out, HyperLogLog hll) throws IOException {
+    if (hll.getEncoding().equals(EncodingType.EXACT) || hll.hasMartingaleEstimate()
+        || hll.getNumRegisterIndexBits() > V1_MAX_P_VALUE) {
+      writeHLLV2(out, hll, DenseCodec.SMALLEST);
+      return;
+    }
 
     // write header
     out.write(MAGIC);
     int fourthByte = 0;
     int p = hll.getNumRegisterIndexBits();
-    fourthByte = (p & 0xff) << 4;
+    // p = 16 does not fit in 4 bits and is written as 0
+    fourthByte = (p & 0xf) << 4;
 
     int bitWidth = 0;
     EncodingType enc = hll.getEncoding();
@@ -76,7 +135,8 @@ public class HyperLogLogUtils {
     // determine bit width for bitpacking and encode it in header
     if (enc.equals(EncodingType.DENSE)) {
       int lzr = hll.getHLLDenseRegister().getMaxRegisterValue();
-      bitWidth = getBitWidth(lzr);
+      // empty dense registers still need 1 bit as encoding 0 is sparse
+      bitWidth = Math.max(1, getBitWidth(lzr));
 
       // the max value of number of zeroes for 64 bit hash can be encoded using
       // only 6 bits. So we will disable bit packing for any values >6
@@ -101,26 +161,261 @@ public class HyperLogLogUtils {
       byte[] register = hll.getHLLDenseRegister().getRegister();
       bitpackHLLRegister(out, register, bitWidth);
     } else if (enc.equals(EncodingType.SPARSE)) {
-      Map<Integer, Byte> sparseMap = hll.getHLLSparseRegister().getSparseMap();
-
-      // write the number of elements in sparse map (required for
-      // reconstruction)
-      writeVulong(out, sparseMap.size());
-
-      // compute deltas and write the values as varints
-      int prev = 0;
-      for (Map.Entry<Integer, Byte> entry : sparseMap.entrySet()) {
-        if (prev == 0) {
-          prev = (entry.getKey() << HLLConstants.Q_PRIME_VALUE) | entry.getValue();
-          writeVulong(out, prev);
-        } else {
-          int curr = (entry.getKey() << HLLConstants.Q_PRIME_VALUE) | entry.getValue();
-          int delta = curr - prev;
-          writeVulong(out, delta);
-          prev = curr;
+      writeSparseRegister(out, hll);
+    }
+  }
+
+  private static void writeSparseRegister(OutputStream out, HyperLogLog hll)
+      throws IOException {
+    Map<Integer, Byte> sparseMap = hll.getHLLSparseRegister().getSparseMap();
+
+    // write the number of elements in sparse map (required for
+    // reconstruction)
+    writeVulong(out, sparseMap.size());
+
+    // compute deltas and write the values as varints
+    int prev = 0;
+    for (Map.Entry<Integer, Byte> entry : sparseMap.entrySet()) {
+      if (prev == 0) {
+        prev = (entry.getKey() << HLLConstants.Q_PRIME_VALUE) | entry.getValue();
+        writeVulong(out, prev);
+      } else {
+        int curr = (entry.getKey() << HLLConstants.Q_PRIME_VALUE) | entry.getValue();
+        int delta = curr - prev;
+        writeVulong(out, delta);
+        prev = curr;
+      }
+    }
+  }
+
+  /**
+   * HyperLogLog is serialized using format v2 like below
+   * 
+   * <pre>
+   * |-4 byte-|-1 byte-|-1 byte-|------varlong----|-8 byte-----------|----------|
+   * -------------------------------------------------------------------------------
+   * | header |   p    | flags  | estimated-count | martingale (opt) | register |
+   * -------------------------------------------------------------------------------
+   * 
+   * <b>4 byte header</b> is encoded like below
+   * 3 bytes - HLL magic string to identify serialized stream
+   * 4 bits  - lower 4 bits of p (not used, p is stored in the next byte)
+   * 1       - spare bit (always 1 for format v2)
+   * 3 bits  - encoding (000 - sparse, 001 - bit packing, 010 - offset, 011 - huffman,
+   *           100 - exact)
+   * 
+   * <b>flags</b> - 0x01 if bit packing is disabled for the hyperloglog
+   *         0x02 if followed by martingale estimate (big endian double)
+   * 
+   * Sparse registers are stored like format v1. Exact sets are stored as
+   * varint threshold and varint number of hashcodes followed by the sorted
+   * hashcodes (8 bytes each, big endian). Dense registers are stored as
+   * varint length followed by the encoded registers
+   * bit packing - 1 byte bit width (1..6 or 8) followed by bit packed registers
+   * offset      - refer HLLRegisterCodec
+   * huffman     - refer HLLRegisterCodec
+   * </pre>
+   * @param out
+   *          - output stream to write to
+   * @param hll
+   *          - hyperloglog that needs to be serialized
+   * @param codec
+   *          - codec for dense registers
+   * @throws IOException - thrown by OutputStream
+   */
+  public static void serializeHLL(OutputStream out, HyperLogLog hll, DenseCodec codec)
+      throws IOException {
+    serialize(out, hll, o -> writeHLLV2(o, hll, codec));
+  }
+
+  private static void writeHLLV2(OutputStream out, HyperLogLog hll, DenseCodec codec)
+      throws IOException {
+    int p = hll.getNumRegisterIndexBits();
+    EncodingType enc = hll.getEncoding();
+
+    int encoding = enc.equals(EncodingType.EXACT) ? V2_EXACT : V2_SPARSE;
+    ByteArrayOutputStream payload = null;
+    if (enc.equals(EncodingType.DENSE)) {
+      byte[] register = hll.getHLLDenseRegister().getRegister();
+      if (codec == DenseCodec.SMALLEST) {
+        for (DenseCodec c : new DenseCodec[] { DenseCodec.BITPACK, DenseCodec.OFFSET,
+            DenseCodec.HUFFMAN }) {
+          ByteArrayOutputStream encoded = encodeDenseRegister(hll, register, c);
+          if (payload == null || encoded.size() < payload.size()) {
+            payload = encoded;
+            encoding = getV2Encoding(c);
+          }
         }
+      } else {
+        payload = encodeDenseRegister(hll, register, codec);
+        encoding = getV2Encoding(codec);
+      }
+    }
+
+    // write header
+    out.write(MAGIC);
+    out.write(((p & 0xf) << 4) | V2_FLAG | encoding);
+    out.write(p);
+    int flags = hll.isBitPackingEnabled() ? 0 : V2_FLAG_NO_BIT_PACKING;
+    if (hll.hasMartingaleEstimate()) {
+      flags |= V2_FLAG_MARTINGALE;
+    }
+    out.write(flags);
+
+    // write estimated count
+    writeVulong(out, hll.count());
+    if (hll.hasMartingaleEstimate()) {
+      writeLong(out, Double.doubleToLongBits(hll.getMartingaleEstimate()));
+    }
+
+    if (payload != null) {
+      writeVulong(out, payload.size());
+      payload.writeTo(out);
+    } else if (encoding == V2_EXACT) {
+      writeExactSet(out, hll);
+    } else {
+      writeSparseRegister(out, hll);
+    }
+    out.flush();
+  }
+
+  private static void writeExactSet(OutputStream out, HyperLogLog hll) throws IOException {
+    long[] hashcodes = hll.getHLLExactSet().getHashcodes();
+    writeVulong(out, hll.getExactSetThreshold());
+    writeVulong(out, hashcodes.length);
+    byte[] bytes = new byte[hashcodes.length * Long.BYTES];
+    for (int i = 0; i < hashcodes.length; i++) {
+      long hashcode = hashcodes[i];
+      for (int j = Long.BYTES - 1; j >= 0; j--) {
+        bytes[i * Long.BYTES + j] = (byte) hashcode;
+        hashcode >>>= 8;
+      }
+    }
+    out.write(bytes);
+  }
+
+  private static int getV2Encoding(DenseCodec codec) {
+    switch (codec) {
+    case BITPACK:
+      return V2_BITPACK;
+    case OFFSET:
+      return V2_OFFSET;
+    case HUFFMAN:
+      return V2_HUFFMAN;
+    default:
+      throw new IllegalArgumentException("Unsupported codec: " + codec);
+    }
+  }
+
+  private static ByteArrayOutputStream encodeDenseRegister(HyperLogLog hll, byte[] register,
+      DenseCodec codec) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    switch (codec) {
+    case BITPACK:
+      int bitWidth = Math.max(1, getBitWidth(hll.getHLLDenseRegister().getMaxRegisterValue()));
+      if (bitWidth > 6) {
+        bitWidth = 8;
       }
+      out.write(bitWidth);
+      bitpackHLLRegister(out, register, bitWidth);
+      break;
+    case OFFSET:
+      HLLRegisterCodec.encodeOffset(register, out);
+      break;
+    case HUFFMAN:
+      HLLRegisterCodec.encodeHuffman(register, out);
+      break;
+    default:
+      throw new IllegalArgumentException("Unsupported codec: " + codec);
     }
+    return out;
+  }
+
+  /**
+   * Serialize hyperloglog (format v1) in a frame. Refer
+   * serializeFramedHLL(OutputStream, HyperLogLog, DenseCodec) for frame format.
+   * @param out
+   *          - output stream to write to
+   * @param hll
+   *          - hyperloglog that needs to be serialized
+   * @throws IOException - thrown by OutputStream
+   */
+  public static void serializeFramedHLL(OutputStream out, HyperLogLog hll) throws IOException {
+    serialize(out, hll, o -> {
+      ByteArrayOutputStream payload = new ByteArrayOutputStream();
+      writeHLL(payload, hll);
+      writeFrame(o, payload);
+    });
+  }
+
+  /**
+   * Serialize hyperloglog (format v2) in a frame. Frames have explicit length
+   * and checksum which allows skipping sketches in concatenated streams
+   * without decoding them and detecting corruption.
+   * 
+   * <pre>
+   * |-3 byte-|-1 byte--|-varint-|-4 byte-|---------|
+   * ------------------------------------------------
+   * | magic  | version | length | crc32c | payload |
+   * ------------------------------------------------
+   * 
+   * magic   - "HLF"
+   * version - frame version (1)
+   * length  - length of payload in bytes
+   * crc32c  - CRC32C checksum of payload (big endian)
+   * payload - hyperloglog serialized using format v1 or v2
+   * </pre>
+   * @param out
+   *          - output stream to write to
+   * @param hll
+   *          - hyperloglog that needs to be serialized
+   * @param codec
+   *          - codec for dense registers
+   * @throws IOException - thrown by OutputStream
+   */
+  public static void serializeFramedHLL(OutputStream out, HyperLogLog hll, DenseCodec codec)
+      throws IOException {
+    serialize(out, hll, o -> {
+      ByteArrayOutputStream payload = new ByteArrayOutputStream();
+      writeHLLV2(payload, hll, codec);
+      writeFrame(o, payload);
+    });
+  }
+
+  private interface HLLWriter {
+    void write(OutputStream out) throws IOException;
+  }
+
+  // reports serialized size and time to metrics of the hyperloglog (if enabled)
+  private static void serialize(OutputStream out, HyperLogLog hll, HLLWriter writer)
+      throws IOException {
+    HyperLogLogMetrics metrics = hll.getMetrics();
+    if (metrics == null) {
+      writer.write(out);
+      return;
+    }
+    long start = System.nanoTime();
+    CountingOutputStream counting = new CountingOutputStream(out);
+    writer.write(counting);
+    metrics.onSerialize(counting.count, System.nanoTime() - start);
+  }
+
+  private static void writeFrame(OutputStream out, ByteArrayOutputStream payload)
+      throws IOException {
+    byte[] bytes = payload.toByteArray();
+    Crc32c crc = new Crc32c();
+    crc.update(bytes, 0, bytes.length);
+    int checksum = (int) crc.getValue();
+
+    out.write(FRAME_MAGIC);
+    out.write(FRAME_VERSION);
+    writeVulong(out, bytes.length);
+    out.write(checksum >>> 24);
+    out.write(checksum >>> 16);
+    out.write(checksum >>> 8);
+    out.write(checksum);
+    out.write(bytes);
+    out.flush();
   }
 
   /**
@@ -128,13 +423,19 @@ public class HyperLogLogUtils {
    * deserializes the serialized hyperloglogs
    * @param in
    *          - input stream
+   * Framed hyperloglogs are verified against their checksum.
    * @return deserialized hyperloglog
-   * @throws IOException - thrown by InputStream
+   * @throws IOException - thrown by InputStream or when checksum does not match
    */
   public static HyperLogLog deserializeHLL(InputStream in) throws IOException {
-    checkMagicString(in);
+    if (checkMagicString(in)) {
+      return deserializeFramedHLL(in);
+    }
     int fourthByte = in.read() & 0xff;
-    int p = fourthByte >>> 4;
+    if ((fourthByte & V2_FLAG) != 0) {
+      return deserializeHLLV2(in, fourthByte);
+    }
+    int p = getV1P(fourthByte);
 
     // read type of encoding
     int enc = fourthByte & 7;
@@ -158,24 +459,7 @@ public class HyperLogLogUtils {
     if (encoding.equals(EncodingType.SPARSE)) {
       result = HyperLogLog.builder().setNumRegisterIndexBits(p)
           .setEncoding(EncodingType.SPARSE).build();
-      int numRegisterEntries = (int) readVulong(in);
-      int[] reg = new int[numRegisterEntries];
-      int prev = 0;
-
-      // reconstruct the sparse map from delta encoded and varint input stream
-      if (numRegisterEntries > 0) {
-        prev = (int) readVulong(in);
-        reg[0] = prev;
-      }
-      int delta = 0;
-      int curr = 0;
-      for (int i = 1; i < numRegisterEntries; i++) {
-        delta = (int) readVulong(in);
-        curr = prev + delta;
-        reg[i] = curr;
-        prev = curr;
-      }
-      result.setHLLSparseRegister(reg);
+      readSparseRegister(in, result);
     } else {
 
       // explicitly disable bit packing
@@ -188,7 +472,7 @@ public class HyperLogLogUtils {
       }
       int m = 1 << p;
       byte[] register = unpackHLLRegister(in, m, bitSize);
-      result.setHLLDenseRegister(register);
+      result.setHLLDenseRegisterArray(register);
     }
 
     result.setCount(estCount);
@@ -196,46 +480,241 @@ public class HyperLogLogUtils {
     return result;
   }
 
-  private static void bitpackHLLRegister(OutputStream out, byte[] register, int bitWidth)
+  /**
+   * Same as deserializeHLL(InputStream) and reports deserialized size and time
+   * to the specified metrics. Metrics are also set on the deserialized
+   * hyperloglog.
+   * @param in
+   *          - input stream
+   * @param metrics
+   *          - metrics listener (null to disable metrics)
+   * @return deserialized hyperloglog
+   * @throws IOException - thrown by InputStream or when checksum does not match
+   */
+  public static HyperLogLog deserializeHLL(InputStream in, HyperLogLogMetrics metrics)
       throws IOException {
-    int bitsLeft = 8;
-    byte current = 0;
+    if (metrics == null) {
+      return deserializeHLL(in);
+    }
+    long start = System.nanoTime();
+    CountingInputStream counting = new CountingInputStream(in);
+    HyperLogLog result = deserializeHLL(counting);
+    result.setMetrics(metrics);
+    metrics.onDeserialize(counting.count, System.nanoTime() - start);
+    return result;
+  }
 
-    if (bitWidth == 8) {
-      fastPathWrite(out, register);
-      return;
+  private static HyperLogLog deserializeFramedHLL(InputStream in) throws IOException {
+    int length = readFrameHeader(in);
+    long checksum = ((long) readByte(in) << 24) | (readByte(in) << 16) | (readByte(in) << 8)
+        | readByte(in);
+    byte[] payload = new byte[length];
+    readFully(in, payload);
+    Crc32c crc = new Crc32c();
+    crc.update(payload, 0, length);
+    if (crc.getValue() != checksum) {
+      throw new IOException("Checksum mismatch for framed HyperLogLog. Expected: " + checksum
+          + " Actual: " + crc.getValue());
+    }
+    return deserializeHLL(new ByteArrayInputStream(payload));
+  }
+
+  // reads frame version and payload length
+  private static int readFrameHeader(InputStream in) throws IOException {
+    int version = readByte(in);
+    if (version != FRAME_VERSION) {
+      throw new IOException("Unsupported frame version: " + version);
+    }
+    long length = readVulong(in);
+    if (length > Integer.MAX_VALUE) {
+      throw new IOException("Invalid frame length: " + length);
     }
+    return (int) length;
+  }
+
+  private static HyperLogLog deserializeHLLV2(InputStream in, int fourthByte)
+      throws IOException {
+    int encoding = fourthByte & 7;
+    int p = readByte(in);
+    int flags = readByte(in);
+    long estCount = readVulong(in);
+    boolean martingale = (flags & V2_FLAG_MARTINGALE) != 0;
+    double martingaleEstimate = martingale ? Double.longBitsToDouble(readLong(in)) : 0;
 
-    // write the blob
-    for (byte value : register) {
-      int bitsToWrite = bitWidth;
-      while (bitsToWrite > bitsLeft) {
-        // add the bits to the bottom of the current word
-        current |= value >>> (bitsToWrite - bitsLeft);
-        // subtract out the bits we just added
-        bitsToWrite -= bitsLeft;
-        // zero out the bits above bitsToWrite
-        value &= (1 << bitsToWrite) - 1;
-        out.write(current);
-        current = 0;
-        bitsLeft = 8;
+    HyperLogLog.HyperLogLogBuilder builder = HyperLogLog.builder().setNumRegisterIndexBits(p)
+        .enableBitPacking((flags & V2_FLAG_NO_BIT_PACKING) == 0);
+    if (martingale) {
+      builder.enableMartingaleEstimator();
+    }
+    HyperLogLog result;
+    if (encoding == V2_SPARSE) {
+      result = builder.setEncoding(EncodingType.SPARSE).build();
+      readSparseRegister(in, result);
+    } else if (encoding == V2_EXACT) {
+      long threshold = readVulong(in);
+      long numHashcodes = readVulong(in);
+      if (threshold < 1 || threshold > HLLConstants.EXACT_SET_MAX_THRESHOLD
+          || numHashcodes > threshold) {
+        throw new IOException("Invalid exact set in serialized HyperLogLog. threshold: "
+            + threshold + " size: " + numHashcodes);
       }
-      bitsLeft -= bitsToWrite;
-      current |= value << bitsLeft;
-      if (bitsLeft == 0) {
-        out.write(current);
-        current = 0;
-        bitsLeft = 8;
+      result = builder.setEncoding(EncodingType.EXACT).setExactSetThreshold((int) threshold)
+          .build();
+      byte[] bytes = new byte[(int) numHashcodes * Long.BYTES];
+      readFully(in, bytes);
+      for (int i = 0; i < bytes.length; i += Long.BYTES) {
+        long hashcode = 0;
+        for (int j = 0; j < Long.BYTES; j++) {
+          hashcode = (hashcode << 8) | (bytes[i + j] & 0xff);
+        }
+        result.add(hashcode);
       }
+    } else {
+      result = builder.setEncoding(EncodingType.DENSE).build();
+      byte[] payload = new byte[(int) readVulong(in)];
+      readFully(in, payload);
+      ByteArrayInputStream encoded = new ByteArrayInputStream(payload);
+      int m = 1 << p;
+      byte[] register;
+      switch (encoding) {
+      case V2_BITPACK:
+        int bitSize = readByte(encoded);
+        if (bitSize < 1 || (bitSize > 6 && bitSize != 8)) {
+          throw new IOException("Invalid bit width in serialized HyperLogLog: " + bitSize);
+        }
+        register = unpackHLLRegister(encoded, m, bitSize);
+        break;
+      case V2_OFFSET:
+        register = new byte[m];
+        HLLRegisterCodec.decodeOffset(encoded, register);
+        break;
+      case V2_HUFFMAN:
+        register = new byte[m];
+        HLLRegisterCodec.decodeHuffman(encoded, register);
+        break;
+      default:
+        throw new IOException("Unsupported encoding in serialized HyperLogLog: " + encoding);
+      }
+      result.setHLLDenseRegisterArray(register);
+    }
+
+    result.setCount(estCount);
+    if (martingale) {
+      result.setMartingaleEstimate(martingaleEstimate);
     }
 
+    return result;
+  }
+
+  private static void readSparseRegister(InputStream in, HyperLogLog result)
+      throws IOException {
+    int numRegisterEntries = (int) readVulong(in);
+    int[] reg = new int[numRegisterEntries];
+    int prev = 0;
+
+    // reconstruct the sparse map from delta encoded and varint input stream
+    if (numRegisterEntries > 0) {
+      prev = (int) readVulong(in);
+      reg[0] = prev;
+    }
+    int delta = 0;
+    int curr = 0;
+    for (int i = 1; i < numRegisterEntries; i++) {
+      delta = (int) readVulong(in);
+      curr = prev + delta;
+      reg[i] = curr;
+      prev = curr;
+    }
+    result.setHLLSparseRegister(reg);
+  }
+
+  /**
+   * UltraLogLog is serialized using the following format
+   * 
+   * <pre>
+   * |-3 byte-|-1 byte--|-1 byte-|-1 byte-|-varlong--------|-varint-|-----------|
+   * ------------------------------------------------------------------------------
+   * | magic  | version |   p    | flags  | estimated-count| length | registers |
+   * ------------------------------------------------------------------------------
+   * 
+   * magic     - "ULL"
+   * version   - 1
+   * flags     - 0x01 if lower 2 bits of registers are unknown (converted from
+   *             HyperLogLog)
+   * registers - huffman encoded registers (refer HLLRegisterCodec)
+   * </pre>
+   * @param out
+   *          - output stream to write to
+   * @param ull
+   *          - UltraLogLog that needs to be serialized
+   * @throws IOException - thrown by OutputStream
+   */
+  public static void serializeULL(OutputStream out, UltraLogLog ull) throws IOException {
+    ByteArrayOutputStream payload = new ByteArrayOutputStream();
+    HLLRegisterCodec.encodeHuffman(ull.getRegister(), payload);
+    out.write(ULL_MAGIC);
+    out.write(ULL_VERSION);
+    out.write(ull.getNumRegisterIndexBits());
+    out.write(ull.hasKnownLowerBits() ? 0 : ULL_FLAG_UNKNOWN_LOWER_BITS);
+    writeVulong(out, ull.count());
+    writeVulong(out, payload.size());
+    payload.writeTo(out);
     out.flush();
   }
 
-  private static void fastPathWrite(OutputStream out, byte[] register) throws IOException {
-    for (byte b : register) {
-      out.write(b);
+  /**
+   * Refer serializeULL() for format of serialization.
+   * @param in
+   *          - input stream
+   * @return deserialized UltraLogLog
+   * @throws IOException - thrown by InputStream or when the input is corrupt
+   */
+  public static UltraLogLog deserializeULL(InputStream in) throws IOException {
+    byte[] magic = new byte[ULL_MAGIC.length];
+    readFully(in, magic);
+    if (!Arrays.equals(magic, ULL_MAGIC)) {
+      throw new IllegalArgumentException("The input stream is not an UltraLogLog stream.");
+    }
+    int version = readByte(in);
+    if (version != ULL_VERSION) {
+      throw new IOException("Unsupported UltraLogLog version: " + version);
+    }
+    int p = readByte(in);
+    if (p < HLLConstants.MIN_P_VALUE || p > HLLConstants.MAX_P_VALUE) {
+      throw new IOException("Invalid p in serialized UltraLogLog: " + p);
+    }
+    int flags = readByte(in);
+    // estimated count is computed again from registers
+    readVulong(in);
+    byte[] payload = new byte[(int) readVulong(in)];
+    readFully(in, payload);
+    UltraLogLog result = UltraLogLog.builder().setNumRegisterIndexBits(p).build();
+    byte[] register = new byte[1 << p];
+    HLLRegisterCodec.decodeHuffman(new ByteArrayInputStream(payload), register);
+    result.setRegister(register, (flags & ULL_FLAG_UNKNOWN_LOWER_BITS) == 0);
+    return result;
+  }
+
+  // p = 16 is stored as 0 (p = 0 is invalid)
+  private static int getV1P(int fourthByte) {
+    int p = fourthByte >>> 4;
+    return p == 0 ? V1_MAX_P_VALUE : p;
+  }
+
+  private static int readByte(InputStream in) throws IOException {
+    int b = in.read();
+    if (b < 0) {
+      throw new EOFException("Reading HyperLogLog past EOF");
     }
+    return b;
+  }
+
+  private static void bitpackHLLRegister(OutputStream out, byte[] register, int bitWidth)
+      throws IOException {
+    byte[] packed = new byte[HLLRegisterPacker.packedLength(register.length, bitWidth)];
+    HLLRegisterPacker.pack(register, bitWidth, packed);
+    out.write(packed);
+    out.flush();
   }
 
   /**
@@ -243,48 +722,33 @@ public class HyperLogLogUtils {
    * @param in
    *          - input stream
    * @param length
-   *          - serialized length
+   *          - number of registers
+   * @param bitSize
+   *          - bits per register
    * @return unpacked HLL register
    * @throws IOException
    */
   private static byte[] unpackHLLRegister(InputStream in, int length, int bitSize)
       throws IOException {
-    int mask = (1 << bitSize) - 1;
-    int bitsLeft = 8;
-
+    byte[] packed = new byte[HLLRegisterPacker.packedLength(length, bitSize)];
+    readFully(in, packed);
     if (bitSize == 8) {
-      return fastPathRead(in, length);
+      return packed;
     }
-
-    byte current = (byte) (0xff & in.read());
-
     byte[] output = new byte[length];
-    for (int i = 0; i < output.length; i++) {
-      byte result = 0;
-      int bitsLeftToRead = bitSize;
-      while (bitsLeftToRead > bitsLeft) {
-        result <<= bitsLeft;
-        result |= current & ((1 << bitsLeft) - 1);
-        bitsLeftToRead -= bitsLeft;
-        current = (byte) (0xff & in.read());
-        bitsLeft = 8;
-      }
-      if (bitsLeftToRead > 0) {
-        result <<= bitsLeftToRead;
-        bitsLeft -= bitsLeftToRead;
-        result |= (current >>> bitsLeft) & ((1 << bitsLeftToRead) - 1);
-      }
-      output[i] = (byte) (result & mask);
-    }
+    HLLRegisterPacker.unpack(packed, bitSize, output);
     return output;
   }
 
-  private static byte[] fastPathRead(InputStream in, int length) throws IOException {
-    byte[] result = new byte[length];
-    for (int i = 0; i < length; i++) {
-      result[i] = (byte) in.read();
+  private static void readFully(InputStream in, byte[] buffer) throws IOException {
+    int offset = 0;
+    while (offset < buffer.length) {
+      int read = in.read(buffer, offset, buffer.length - offset);
+      if (read < 0) {
+        throw new EOFException("Reading registers past EOF");
+      }
+      offset += read;
     }
-    return result;
   }
 
   /**
@@ -295,26 +759,160 @@ public class HyperLogLogUtils {
    * @throws IOException - thrown by InputStream
    */
   public static long getEstimatedCountFromSerializedHLL(InputStream in) throws IOException {
-    checkMagicString(in);
-    in.read();
+    if (checkMagicString(in)) {
+      // skip frame header (checksum is not verified)
+      readFrameHeader(in);
+      skipFully(in, 4);
+      return getEstimatedCountFromSerializedHLL(in);
+    }
+    int fourthByte = in.read();
+    if ((fourthByte & V2_FLAG) != 0) {
+      // skip p and flags
+      readByte(in);
+      readByte(in);
+    }
     return readVulong(in);
   }
 
+  /**
+   * Skip the serialized hyperloglog (framed or unframed) without decoding the
+   * registers. Framed hyperloglogs are skipped using the payload length.
+   * @param in
+   *          - input stream positioned at the start of serialized hyperloglog
+   * @return number of bytes skipped
+   * @throws IOException - thrown by InputStream
+   */
+  public static long skipHLL(InputStream in) throws IOException {
+    CountingInputStream cin = new CountingInputStream(in);
+    if (checkMagicString(cin)) {
+      int length = readFrameHeader(cin);
+      skipFully(cin, 4 + (long) length);
+      return cin.count;
+    }
+    int fourthByte = readByte(cin);
+    int p = getV1P(fourthByte);
+    int enc = fourthByte & 7;
+    if ((fourthByte & V2_FLAG) != 0) {
+      p = readByte(cin);
+      int flags = readByte(cin);
+      readVulong(cin);
+      if ((flags & V2_FLAG_MARTINGALE) != 0) {
+        skipFully(cin, Long.BYTES);
+      }
+      if (enc == V2_SPARSE) {
+        skipSparseRegister(cin);
+      } else if (enc == V2_EXACT) {
+        readVulong(cin);
+        skipFully(cin, readVulong(cin) * Long.BYTES);
+      } else {
+        skipFully(cin, readVulong(cin));
+      }
+    } else {
+      readVulong(cin);
+      if (enc == 0) {
+        skipSparseRegister(cin);
+      } else {
+        int bitSize = enc < 7 ? enc : 8;
+        skipFully(cin, HLLRegisterPacker.packedLength(1 << p, bitSize));
+      }
+    }
+    return cin.count;
+  }
+
+  private static void skipSparseRegister(InputStream in) throws IOException {
+    long numRegisterEntries = readVulong(in);
+    for (long i = 0; i < numRegisterEntries; i++) {
+      readVulong(in);
+    }
+  }
+
+  private static void skipFully(InputStream in, long n) throws IOException {
+    while (n > 0) {
+      long skipped = in.skip(n);
+      if (skipped <= 0) {
+        // skip() may not detect EOF
+        readByte(in);
+        skipped = 1;
+      }
+      n -= skipped;
+    }
+  }
+
+  // counts bytes read from the underlying stream
+  private static class CountingInputStream extends FilterInputStream {
+    private long count;
+
+    CountingInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = in.read();
+      if (b >= 0) {
+        count++;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int read = in.read(b, off, len);
+      if (read > 0) {
+        count += read;
+      }
+      return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = in.skip(n);
+      count += skipped;
+      return skipped;
+    }
+  }
+
+  // counts bytes written to the underlying stream
+  private static class CountingOutputStream extends FilterOutputStream {
+    private long count;
+
+    CountingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      count += len;
+    }
+  }
+
   /**
    * Check if the specified input stream is actually a HLL stream
    * @param in
    *          - input stream
+   * @return true if the stream is a framed HLL stream
    * @throws IOException
    */
-  private static void checkMagicString(InputStream in) throws IOException {
+  private static boolean checkMagicString(InputStream in) throws IOException {
     byte[] magic = new byte[3];
     magic[0] = (byte) in.read();
     magic[1] = (byte) in.read();
     magic[2] = (byte) in.read();
 
+    if (Arrays.equals(magic, FRAME_MAGIC)) {
+      return true;
+    }
     if (!Arrays.equals(magic, MAGIC)) {
       throw new IllegalArgumentException("The input stream is not a HyperLogLog stream.");
     }
+    return false;
   }
 
   /**
@@ -353,7 +951,7 @@ public class HyperLogLogUtils {
    *          - long
    * @throws IOException
    */
-  private static void writeVulong(OutputStream output, long value) throws IOException {
+  static void writeVulong(OutputStream output, long value) throws IOException {
     while (true) {
       if ((value & ~0x7f) == 0) {
         output.write((byte) value);
@@ -372,7 +970,7 @@ public class HyperLogLogUtils {
    * @return decoded long value
    * @throws IOException
    */
-  private static long readVulong(InputStream in) throws IOException {
+  static long readVulong(InputStream in) throws IOException {
     long result = 0;
     long b;
     int offset = 0;
@@ -387,4 +985,19 @@ public class HyperLogLogUtils {
     return result;
   }
 
+  // 8 byte big endian long
+  private static void writeLong(OutputStream out, long value) throws IOException {
+    for (int shift = 56; shift >= 0; shift -= 8) {
+      out.write((int) (value >>> shift));
+    }
+  }
+
+  private static long readLong(InputStream in) throws IOException {
+    long result = 0;
+    for (int i = 0; i < Long.BYTES; i++) {
+      result = (result << 8) | readByte(in);
+    }
+    return result;
+  }
+
 }
@@ -0,0 +1,185 @@
+/**
+ * Copyright 2017 Prasanth Jayachandran
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.prasanthj.hll;
+
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+import com.github.prasanthj.hll.HyperLogLog.EncodingType;
+
+/**
+ * Utilities for operating on many hyperloglogs at once.
+ */
+public class HyperLogLogs {
+
+  private HyperLogLogs() {
+  }
+
+  // estimators shared by groups of DENSE hyperloglogs with the same p
+  private static final CardinalityEstimator[] GROUP_ESTIMATORS = {
+      new HLLPlusPlusEstimator(false), new HLLPlusPlusEstimator(true),
+      new ErtlImprovedEstimator() };
+
+  // group of hyperloglogs that are not evaluated in batches
+  private static final int DIRECT_GROUP = 0;
+
+  /**
+   * Estimates cardinality of all the specified hyperloglogs.
+   * @param hlls
+   *          - hyperloglogs to count
+   * @param out
+   *          - output array to store the estimated cardinalities in the
+   *          iteration order of the collection
+   */
+  public static void countAll(Collection<HyperLogLog> hlls, long[] out) {
+    countAll(hlls, out, null, 1);
+  }
+
+  /**
+   * Estimates cardinality of all the specified hyperloglogs. DENSE
+   * hyperloglogs are grouped by p and estimator, and every group is evaluated
+   * by a single CardinalityEstimator.estimateAll() call on the histograms of
+   * register values (which are maintained by the registers, so no register
+   * scan is needed). SPARSE, EXACT and hyperloglogs with martingale estimate
+   * are evaluated the same way as count(). Cached counts are not used. When an executor is
+   * specified the hyperloglogs are split into parallelism chunks that are
+   * evaluated concurrently (the calling thread evaluates one of the chunks).
+   * A hyperloglog instance must not be present more than once in the
+   * collection when evaluated in parallel.
+   * @param hlls
+   *          - hyperloglogs to count
+   * @param out
+   *          - output array to store the estimated cardinalities in the
+   *          iteration order of the collection
+   * @param executor
+   *          - executor for parallel evaluation (null for evaluating in the
+   *          calling thread)
+   * @param parallelism
+   *          - number of chunks to evaluate concurrently, usually the
+   *          parallelism of the executor
+   */
+  public static void countAll(Collection<HyperLogLog> hlls, long[] out, Executor executor,
+    int parallelism) {
+    if (out.length < hlls.size()) {
+      throw new IllegalArgumentException("Output array length " + out.length
+        + " is less than the number of hyperloglogs " + hlls.size());
+    }
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("Parallelism should be at least 1. parallelism: "
+        + parallelism);
+    }
+
+    final HyperLogLog[] sketches = hlls.toArray(new HyperLogLog[hlls.size()]);
+    final int[] groups = new int[sketches.length];
+    for (int i = 0; i < sketches.length; i++) {
+      groups[i] = groupOf(sketches[i]);
+    }
+    final int[] order = orderByGroup(groups);
+    final int[][] histograms = new int[order.length][];
+    final long[] estimates = new long[order.length];
+    final int numChunks = executor == null ? 1 : Math.min(sketches.length, parallelism);
+    if (numChunks <= 1) {
+      countRange(sketches, groups, order, 0, order.length, histograms, estimates, out);
+      return;
+    }
+
+    // chunks of equal number of hyperloglogs (DENSE groups split at chunk
+    // boundaries are evaluated as separate batches)
+    CompletableFuture<?>[] futures = new CompletableFuture<?>[numChunks - 1];
+    for (int c = 0; c < numChunks - 1; c++) {
+      final int from = (int) ((long) c * order.length / numChunks);
+      final int to = (int) ((long) (c + 1) * order.length / numChunks);
+      futures[c] = CompletableFuture.runAsync(
+        () -> countRange(sketches, groups, order, from, to, histograms, estimates, out),
+        executor);
+    }
+    countRange(sketches, groups, order,
+      (int) ((long) (numChunks - 1) * order.length / numChunks), order.length, histograms,
+      estimates, out);
+    CompletableFuture.allOf(futures).join();
+  }
+
+  private static void countRange(HyperLogLog[] sketches, int[] groups, int[] order, int from,
+    int to, int[][] histograms, long[] estimates, long[] out) {
+    int i = from;
+    while (i < to) {
+      final int group = groups[order[i]];
+      if (group == DIRECT_GROUP) {
+        out[order[i]] = sketches[order[i]].estimateCount();
+        i++;
+        continue;
+      }
+
+      // batch of DENSE hyperloglogs with same p and estimator
+      int end = i;
+      while (end < to && groups[order[end]] == group) {
+        histograms[end] = sketches[order[end]].getHLLDenseRegister().getRegisterHistogram();
+        end++;
+      }
+      final int numEstimators = GROUP_ESTIMATORS.length;
+      final int p = (group - 1) / numEstimators + HLLConstants.MIN_P_VALUE;
+      GROUP_ESTIMATORS[(group - 1) % numEstimators].estimateAll(p, histograms, i, end,
+        estimates);
+      for (int k = i; k < end; k++) {
+        out[order[k]] = estimates[k];
+      }
+      i = end;
+    }
+  }
+
+  /**
+   * Indices of hyperloglogs ordered by group.
+   */
+  private static int[] orderByGroup(int[] groups) {
+    final int numP = HLLConstants.MAX_P_VALUE - HLLConstants.MIN_P_VALUE + 1;
+    final int numGroups = 1 + numP * GROUP_ESTIMATORS.length;
+    int[] offsets = new int[numGroups + 1];
+    for (int group : groups) {
+      offsets[group + 1]++;
+    }
+    for (int i = 0; i < numGroups; i++) {
+      offsets[i + 1] += offsets[i];
+    }
+    int[] order = new int[groups.length];
+    for (int i = 0; i < groups.length; i++) {
+      order[offsets[groups[i]]++] = i;
+    }
+    return order;
+  }
+
+  /**
+   * Group of DENSE hyperloglogs evaluated in a batch by one of the shared
+   * estimators or DIRECT_GROUP.
+   */
+  private static int groupOf(HyperLogLog hll) {
+    if (hll.getEncoding() != EncodingType.DENSE || hll.hasMartingaleEstimate()) {
+      return DIRECT_GROUP;
+    }
+    final CardinalityEstimator estimator = hll.getCardinalityEstimator();
+    final int kind;
+    if (estimator.getClass() == HLLPlusPlusEstimator.class) {
+      kind = ((HLLPlusPlusEstimator) estimator).isNoBias() ? 1 : 0;
+    } else if (estimator.getClass() == ErtlImprovedEstimator.class) {
+      kind = 2;
+    } else {
+      return DIRECT_GROUP;
+    }
+    return 1 + (hll.getNumRegisterIndexBits() - HLLConstants.MIN_P_VALUE)
+      * GROUP_ESTIMATORS.length + kind;
+  }
+}
@@ -43,7 +43,7 @@ public class Murmur3 {
   private static final int N1 = 0x52dce729;
   private static final int N2 = 0x38495ab5;
 
-  private static final int DEFAULT_SEED = 123;
+  public static final int DEFAULT_SEED = 123;
 
   /**
    * Murmur3 32-bit variant.
@@ -185,6 +185,61 @@ public class Murmur3 {
     return hash;
   }
 
+  /**
+   * Murmur3 64-bit variant of a long. Same as hash64() of the 8 big-endian
+   * bytes of the long, but does not need a byte array.
+   *
+   * @param data - input long
+   * @return - hashcode
+   */
+  public static long hash64(long data) {
+    long hash = DEFAULT_SEED;
+    long k = Long.reverseBytes(data);
+    // mix functions
+    k *= C1;
+    k = Long.rotateLeft(k, R1);
+    k *= C2;
+    hash ^= k;
+    hash = Long.rotateLeft(hash, R2) * M + N1;
+    // finalization
+    hash ^= Long.BYTES;
+    return fmix64(hash);
+  }
+
+  /**
+   * Murmur3 64-bit variant of an int. Same as hash64() of the 4 big-endian
+   * bytes of the int.
+   *
+   * @param data - input int
+   * @return - hashcode
+   */
+  public static long hash64(int data) {
+    return hash64Tail(Integer.reverseBytes(data) & 0xffffffffL, Integer.BYTES);
+  }
+
+  /**
+   * Murmur3 64-bit variant of a short. Same as hash64() of the 2 big-endian
+   * bytes of the short.
+   *
+   * @param data - input short
+   * @return - hashcode
+   */
+  public static long hash64(short data) {
+    return hash64Tail(Short.reverseBytes(data) & 0xffffL, Short.BYTES);
+  }
+
+  // hash64() of less than 8 bytes, k1 is the little-endian value of the bytes
+  private static long hash64Tail(long k1, int length) {
+    long hash = DEFAULT_SEED;
+    k1 *= C1;
+    k1 = Long.rotateLeft(k1, R1);
+    k1 *= C2;
+    hash ^= k1;
+    // finalization
+    hash ^= length;
+    return fmix64(hash);
+  }
+
   /**
    * Murmur3 128-bit variant.
    *
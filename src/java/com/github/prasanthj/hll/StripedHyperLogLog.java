@@ -0,0 +1,245 @@
+/**
+ * Copyright 2017 Prasanth Jayachandran
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.prasanthj.hll;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Thread-safe hyperloglog for many concurrent writers. Adds are routed to one
+ * of N internal hyperloglog shards chosen by a per-thread probe, as in the
+ * cells of java.util.concurrent.atomic.LongAdder. A writer locks its shard
+ * with a CAS on a lock word that no other writer touches, and when the shard
+ * is busy with another writer the probe of the thread is rehashed to move it
+ * to another shard, so writers settle on shards of their own instead of
+ * waiting for each other. Shards are created on first write and stay SPARSE
+ * until their own encoding switch threshold, so hyperloglogs with low
+ * cardinality or few writers do not take N times the memory.
+ *
+ * Shards are merged only when read (count(), toHyperLogLog()). The merged
+ * hyperloglog is cached until the next write to any shard.
+ */
+public class StripedHyperLogLog {
+
+  // shard probe of each thread, rehashed on contention
+  private static final ThreadLocal<int[]> PROBE = ThreadLocal.withInitial(
+      () -> new int[] { ThreadLocalRandom.current().nextInt() | 1 });
+
+  private final HyperLogLog.HyperLogLogBuilder builder;
+  private final int shardMask;
+  private final AtomicReferenceArray<Shard> shards;
+
+  // merged hyperloglog and versions of shards it was merged from, guarded by
+  // this
+  private final HyperLogLog merged;
+  private final long[] mergedVersions;
+
+  private static final class Shard {
+    private static final AtomicIntegerFieldUpdater<Shard> BUSY = AtomicIntegerFieldUpdater
+        .newUpdater(Shard.class, "busy");
+
+    // padding so that lock words of shards allocated next to each other are
+    // not in the same cache line
+    long p0, p1, p2, p3, p4, p5, p6;
+
+    final HyperLogLog hll;
+    // incremented on every add, guarded by busy
+    long version;
+    // 1 while a writer or the reader holds the shard
+    volatile int busy;
+
+    Shard(HyperLogLog hll) {
+      this.hll = hll;
+    }
+
+    boolean tryLock() {
+      return busy == 0 && BUSY.compareAndSet(this, 0, 1);
+    }
+
+    void lock() {
+      while (!tryLock()) {
+        Thread.yield();
+      }
+    }
+
+    void unlock() {
+      busy = 0;
+    }
+  }
+
+  /**
+   * Striped hyperloglog with number of shards equal to the number of
+   * processors (rounded up to power of 2).
+   * @param builder
+   *          - builder for shards
+   */
+  public StripedHyperLogLog(HyperLogLog.HyperLogLogBuilder builder) {
+    this(builder, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * @param builder
+   *          - builder for shards (and the merged hyperloglog). The
+   *          configuration is copied, later changes to the builder do not
+   *          affect this hyperloglog.
+   * @param numShards
+   *          - number of shards (rounded up to power of 2)
+   */
+  public StripedHyperLogLog(HyperLogLog.HyperLogLogBuilder builder, int numShards) {
+    if (numShards < 1 || numShards > (1 << 16)) {
+      throw new IllegalArgumentException("Number of shards should be between 1 and 65536."
+          + " numShards: " + numShards);
+    }
+    int n = Integer.highestOneBit(numShards);
+    if (n < numShards) {
+      n <<= 1;
+    }
+    this.builder = builder.copy();
+    this.shardMask = n - 1;
+    this.shards = new AtomicReferenceArray<Shard>(n);
+    this.merged = this.builder.build();
+    this.mergedVersions = new long[n];
+  }
+
+  public int getNumShards() {
+    return shards.length();
+  }
+
+  private Shard shard(int idx) {
+    Shard shard = shards.get(idx);
+    if (shard == null) {
+      shard = new Shard(builder.build());
+      if (!shards.compareAndSet(idx, null, shard)) {
+        shard = shards.get(idx);
+      }
+    }
+    return shard;
+  }
+
+  public void add(long hashcode) {
+    final int[] probe = PROBE.get();
+    int h = probe[0];
+    for (int attempt = 1;; attempt++) {
+      Shard shard = shard(h & shardMask);
+      if (shard.tryLock()) {
+        try {
+          shard.hll.add(hashcode);
+          shard.version++;
+        } finally {
+          shard.unlock();
+        }
+        return;
+      }
+
+      // shard is busy, rehash (xorshift) to move this thread to another shard
+      h ^= h << 13;
+      h ^= h >>> 17;
+      h ^= h << 5;
+      probe[0] = h;
+      if (attempt % shards.length() == 0) {
+        // all shards are likely busy (more writers than shards or a merge)
+        Thread.yield();
+      }
+    }
+  }
+
+  public void addInt(int val) {
+    add(Murmur3.hash64(val));
+  }
+
+  public void addLong(long val) {
+    add(Murmur3.hash64(val));
+  }
+
+  public void addBytes(byte[] val) {
+    add(Murmur3.hash64(val));
+  }
+
+  /**
+   * Java's default charset will be used for strings.
+   * @param val
+   *          - input string
+   */
+  public void addString(String val) {
+    add(Murmur3.hash64(val.getBytes()));
+  }
+
+  public void addString(String val, Charset charset) {
+    add(Murmur3.hash64(val.getBytes(charset)));
+  }
+
+  /**
+   * Merges the shards if any of them was updated after the last merge.
+   * @return merged hyperloglog, must be accessed only while holding the lock
+   *         on this
+   */
+  private HyperLogLog mergeShards() {
+    boolean changed = false;
+    for (int i = 0; i < shards.length() && !changed; i++) {
+      Shard shard = shards.get(i);
+      if (shard != null) {
+        shard.lock();
+        try {
+          changed = shard.version != mergedVersions[i];
+        } finally {
+          shard.unlock();
+        }
+      }
+    }
+    if (changed) {
+      merged.reset();
+      for (int i = 0; i < shards.length(); i++) {
+        Shard shard = shards.get(i);
+        if (shard != null) {
+          shard.lock();
+          try {
+            merged.merge(shard.hll);
+            mergedVersions[i] = shard.version;
+          } finally {
+            shard.unlock();
+          }
+        }
+      }
+    }
+    return merged;
+  }
+
+  /**
+   * @return estimated cardinality of all shards
+   */
+  public synchronized long count() {
+    return mergeShards().count();
+  }
+
+  /**
+   * Merges all shards into a single hyperloglog, for serialization
+   * (HyperLogLogUtils.serializeHLL()) or merging into other hyperloglogs. The
+   * returned hyperloglog is a snapshot and is not affected by later writes.
+   * @return merged hyperloglog
+   */
+  public synchronized HyperLogLog toHyperLogLog() {
+    return mergeShards().snapshot();
+  }
+
+  @Override
+  public String toString() {
+    return "StripedHyperLogLog - numShards: " + shards.length() + " p: "
+        + merged.getNumRegisterIndexBits();
+  }
+}
@@ -0,0 +1,429 @@
+/**
+ * Copyright 2017 Prasanth Jayachandran
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.prasanthj.hll;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * <pre>
+ * UltraLogLog sketch from Otmar Ertl's "UltraLogLog: A Practical and More
+ * Space-Efficient Alternative to HyperLogLog for Approximate Distinct
+ * Counting" https://arxiv.org/abs/2308.16862
+ *
+ * Like HyperLogLog, the LSB p bits of the 64 bit hashcode select the register
+ * and the update value is the number of trailing zeroes of the remaining
+ * 64 - p bits plus one (so register values are compatible with DENSE
+ * HyperLogLog registers). In addition to the max update value u, every
+ * register also records if the update values u - 1 and u - 2 were seen.
+ *
+ * |--6 bits--|----1 bit----|----1 bit----|
+ * |    u     | u - 1 seen  | u - 2 seen  |
+ *
+ * Register value 0 means empty register. The cardinality is estimated by
+ * maximum likelihood estimation over the histogram of register values (no
+ * bias tables). For the same number of registers, the standard error is
+ * about 0.78/sqrt(m) compared to 1.04/sqrt(m) of HyperLogLog, so UltraLogLog
+ * needs about 28% less space than HyperLogLog with 6 bit registers for the
+ * same error. add() and merge() are as cheap as HyperLogLog.
+ *
+ * UltraLogLog converted from a SPARSE or DENSE HyperLogLog does not know
+ * the lower 2 bits of the registers, the estimate of such sketches (and
+ * sketches merged with them) ignores the lower bits and has the accuracy of
+ * HyperLogLog.
+ * </pre>
+ */
+public class UltraLogLog {
+
+  // number of bits to address registers
+  private final int p;
+
+  private final byte[] register;
+
+  // number of registers for each of the 256 register values, maintained on
+  // every register update so that count() does not scan registers
+  private final int[] registerHistogram;
+
+  // false if lower 2 bits of registers are unknown (converted from
+  // HyperLogLog)
+  private boolean knownLowerBits;
+
+  private long cachedCount;
+  private boolean invalidateCount;
+
+  private UltraLogLog(int p, boolean knownLowerBits) {
+    if (p < HLLConstants.MIN_P_VALUE || p > HLLConstants.MAX_P_VALUE) {
+      throw new IllegalArgumentException("p value should be between " + HLLConstants.MIN_P_VALUE
+        + " to " + HLLConstants.MAX_P_VALUE);
+    }
+    this.p = p;
+    this.register = new byte[1 << p];
+    this.registerHistogram = new int[256];
+    this.registerHistogram[0] = register.length;
+    this.knownLowerBits = knownLowerBits;
+    this.cachedCount = 0;
+    this.invalidateCount = false;
+  }
+
+  private UltraLogLog(UltraLogLog other) {
+    this.p = other.p;
+    this.register = other.register.clone();
+    this.registerHistogram = other.registerHistogram.clone();
+    this.knownLowerBits = other.knownLowerBits;
+    this.cachedCount = other.cachedCount;
+    this.invalidateCount = other.invalidateCount;
+  }
+
+  public static UltraLogLogBuilder builder() {
+    return new UltraLogLogBuilder();
+  }
+
+  public static class UltraLogLogBuilder {
+    private int numRegisterIndexBits = 14;
+
+    public UltraLogLogBuilder() {
+    }
+
+    public UltraLogLogBuilder setNumRegisterIndexBits(int b) {
+      this.numRegisterIndexBits = b;
+      return this;
+    }
+
+    public UltraLogLog build() {
+      return new UltraLogLog(numRegisterIndexBits, true);
+    }
+  }
+
+  /**
+   * Converts the hyperloglog to UltraLogLog with the same p. Hashcodes of
+   * EXACT hyperloglogs are added as such. Registers of SPARSE and DENSE
+   * hyperloglogs are copied without the lower 2 bits.
+   * @param hll
+   *          - hyperloglog to convert
+   * @return UltraLogLog with the same registers
+   */
+  public static UltraLogLog fromHyperLogLog(HyperLogLog hll) {
+    final int p = hll.getNumRegisterIndexBits();
+    if (hll.getEncoding() == HyperLogLog.EncodingType.EXACT) {
+      final UltraLogLog ull = new UltraLogLog(p, true);
+      hll.getHLLExactSet().forEach(ull::add);
+      return ull;
+    }
+    final UltraLogLog ull = new UltraLogLog(p, false);
+    if (hll.getEncoding() == HyperLogLog.EncodingType.DENSE) {
+      final byte[] hllRegister = hll.getHLLDenseRegister().getRegister();
+      for (int i = 0; i < hllRegister.length; i++) {
+        ull.setMax(i, hllRegister[i]);
+      }
+    } else {
+      // sparse values are relative to p
+      final int pMask = (1 << p) - 1;
+      for (Map.Entry<Integer, Byte> entry : hll.getHLLSparseRegister().getSparseMap()
+        .entrySet()) {
+        ull.setMax(entry.getKey() & pMask, entry.getValue());
+      }
+    }
+    return ull;
+  }
+
+  // sets the max update value of a register if larger (lower bits are unknown)
+  private void setMax(int idx, byte value) {
+    final int u = Math.min(value, 64 - p + 1);
+    if (u > (register[idx] & 0xff) >>> 2) {
+      update(idx, (byte) (u << 2));
+    }
+  }
+
+  public void addBoolean(boolean val) {
+    add(Murmur3.hash64(new byte[] { (byte) (val ? 1 : 0) }));
+  }
+
+  public void addByte(byte val) {
+    add(Murmur3.hash64(new byte[] { val }));
+  }
+
+  public void addBytes(byte[] val) {
+    add(Murmur3.hash64(val));
+  }
+
+  public void addShort(short val) {
+    add(Murmur3.hash64(val));
+  }
+
+  public void addInt(int val) {
+    add(Murmur3.hash64(val));
+  }
+
+  public void addLong(long val) {
+    add(Murmur3.hash64(val));
+  }
+
+  public void addFloat(float val) {
+    add(Murmur3.hash64(Float.floatToRawIntBits(val)));
+  }
+
+  public void addDouble(double val) {
+    add(Murmur3.hash64(Double.doubleToRawLongBits(val)));
+  }
+
+  public void addChar(char val) {
+    add(Murmur3.hash64((short) val));
+  }
+
+  /**
+   * Java's default charset will be used for strings.
+   * @param val
+   *          - input string
+   */
+  public void addString(String val) {
+    add(Murmur3.hash64(val.getBytes()));
+  }
+
+  public void addString(String val, Charset charset) {
+    add(Murmur3.hash64(val.getBytes(charset)));
+  }
+
+  /**
+   * Same hashcodes as HyperLogLog.add().
+   * @param hashcode
+   *          - 64 bit hashcode
+   */
+  public void add(long hashcode) {
+    final int idx = (int) (hashcode & (register.length - 1));
+    final long w = hashcode >>> p;
+    // update value in [1, 64 - p + 1]
+    final int u = (w == 0 ? 64 - p : Long.numberOfTrailingZeros(w)) + 1;
+    final byte oldValue = register[idx];
+    final byte newValue = pack(unpack(oldValue) | (1L << u));
+    if (newValue != oldValue) {
+      update(idx, newValue);
+    }
+  }
+
+  private void update(int idx, byte newValue) {
+    registerHistogram[register[idx] & 0xff]--;
+    registerHistogram[newValue & 0xff]++;
+    register[idx] = newValue;
+    invalidateCount = true;
+  }
+
+  // bit v of the result is set if update value v was seen
+  static long unpack(byte value) {
+    final int r = value & 0xff;
+    if (r == 0) {
+      return 0;
+    }
+    final int u = r >>> 2;
+    return (1L << u) | ((long) (r & 3) << u >>> 2);
+  }
+
+  static byte pack(long updateValues) {
+    if (updateValues == 0) {
+      return 0;
+    }
+    final int u = 63 - Long.numberOfLeadingZeros(updateValues);
+    return (byte) ((u << 2) | (int) ((updateValues << 2 >>> u) & 3));
+  }
+
+  /**
+   * Merge the specified UltraLogLog with the same p.
+   * @param ull
+   *          - UltraLogLog to be merged
+   * @throws IllegalArgumentException - thrown if p is different
+   */
+  public void merge(UltraLogLog ull) {
+    if (p != ull.p) {
+      throw new IllegalArgumentException("UltraLogLog cannot be merged as p is different. "
+        + "Current: " + toString() + " Provided: " + ull.toString());
+    }
+    final byte[] other = ull.register;
+    for (int i = 0; i < register.length; i++) {
+      if (other[i] != 0 && other[i] != register[i]) {
+        final byte newValue = pack(unpack(register[i]) | unpack(other[i]));
+        if (newValue != register[i]) {
+          update(i, newValue);
+        }
+      }
+    }
+    knownLowerBits &= ull.knownLowerBits;
+    invalidateCount = true;
+  }
+
+  public long count() {
+    if (invalidateCount) {
+      cachedCount = estimate(p, registerHistogram, knownLowerBits);
+      invalidateCount = false;
+    }
+    return cachedCount;
+  }
+
+  /**
+   * <pre>
+   * Maximum likelihood estimate from the histogram of register values.
+   * Assuming the number of elements per register is poisson distributed with
+   * rate x, update value k (k &lt;= 64 - p) is seen with rate x * 2^-k and
+   * 64 - p + 1 is seen with rate x * 2^-(64 - p). A register with max update
+   * value u contributes
+   *   (1 - exp(-x * rate(u))) * exp(-x * sum of rates > u)
+   * and a factor (1 - exp(-x * rate(v))) or exp(-x * rate(v)) for v = u - 1
+   * and u - 2 depending on the lower bits. The log likelihood over all
+   * registers has the form
+   *   -a * x + sum_k b_k * ln(1 - exp(-x * 2^-k))
+   * which is concave and its derivative is solved for x with safeguarded
+   * newton iterations. The estimate is m * x.
+   * </pre>
+   */
+  static long estimate(int p, int[] registerHistogram, boolean knownLowerBits) {
+    final int m = 1 << p;
+    final int q = 64 - p;
+    if (registerHistogram[0] == m) {
+      return 0;
+    }
+    double a = registerHistogram[0];
+    final double[] b = new double[q + 1];
+    for (int r = 4; r < registerHistogram.length; r++) {
+      final int n = registerHistogram[r];
+      if (n == 0) {
+        continue;
+      }
+      final int u = r >>> 2;
+      b[Math.min(u, q)] += n;
+      if (u <= q) {
+        a += n * Math.scalb(1.0, -u);
+      }
+      if (knownLowerBits) {
+        for (int d = 1; d <= 2 && u - d >= 1; d++) {
+          if ((r & (1 << (2 - d))) != 0) {
+            b[u - d] += n;
+          } else {
+            a += n * Math.scalb(1.0, d - u);
+          }
+        }
+      }
+    }
+    if (a == 0) {
+      // all registers are saturated
+      return Long.MAX_VALUE;
+    }
+
+    double sumB = 0;
+    for (int k = 1; k <= q; k++) {
+      sumB += b[k];
+    }
+    double x = sumB / a;
+    double lo = 0;
+    double hi = Double.POSITIVE_INFINITY;
+    for (int i = 0; i < 200; i++) {
+      double f = -a;
+      double df = 0;
+      for (int k = 1; k <= q; k++) {
+        if (b[k] != 0) {
+          final double rate = Math.scalb(1.0, -k);
+          final double y = x * rate;
+          final double e = Math.exp(-y);
+          final double em1 = -Math.expm1(-y);
+          f += b[k] * rate * e / em1;
+          df -= b[k] * rate * rate * e / (em1 * em1);
+        }
+      }
+      if (f > 0) {
+        lo = x;
+      } else {
+        hi = x;
+      }
+      double next = x - f / df;
+      if (!(next > lo && next < hi)) {
+        next = hi == Double.POSITIVE_INFINITY ? 2 * x : 0.5 * (lo + hi);
+      }
+      if (Math.abs(next - x) <= 1e-12 * x) {
+        x = next;
+        break;
+      }
+      x = next;
+    }
+    return Math.round(m * x);
+  }
+
+  // refer paper
+  public double getStandardError() {
+    return (knownLowerBits ? 0.78 : 1.04) / Math.sqrt(register.length);
+  }
+
+  public int getNumRegisterIndexBits() {
+    return p;
+  }
+
+  /**
+   * @return register array (not a copy)
+   */
+  public byte[] getRegister() {
+    return register;
+  }
+
+  /**
+   * @return false if lower 2 bits of the registers are unknown
+   */
+  public boolean hasKnownLowerBits() {
+    return knownLowerBits;
+  }
+
+  /**
+   * Reconstruct registers from byte array (used by deserialization).
+   * @param reg
+   *          - register values of length 2^p
+   * @param known
+   *          - false if lower 2 bits of the registers are unknown
+   */
+  void setRegister(byte[] reg, boolean known) {
+    if (reg.length != register.length) {
+      throw new IllegalArgumentException("Register length should be " + register.length
+        + ". length: " + reg.length);
+    }
+    System.arraycopy(reg, 0, register, 0, reg.length);
+    Arrays.fill(registerHistogram, 0);
+    for (byte b : register) {
+      registerHistogram[b & 0xff]++;
+    }
+    knownLowerBits = known;
+    invalidateCount = true;
+  }
+
+  public UltraLogLog copy() {
+    return new UltraLogLog(this);
+  }
+
+  @Override
+  public String toString() {
+    return "UltraLogLog p: " + p + ", estimatedCardinality: " + count();
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (!(obj instanceof UltraLogLog)) {
+      return false;
+    }
+    UltraLogLog other = (UltraLogLog) obj;
+    return p == other.p && knownLowerBits == other.knownLowerBits
+      && Arrays.equals(register, other.register);
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * p + Arrays.hashCode(register);
+  }
+}
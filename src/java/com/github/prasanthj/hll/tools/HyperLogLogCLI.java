@@ -16,13 +16,15 @@
 
 package com.github.prasanthj.hll.tools;
 
+import com.github.prasanthj.hll.HLLConstants;
 import com.github.prasanthj.hll.HyperLogLog;
 import com.github.prasanthj.hll.HyperLogLogUtils;
+import com.github.prasanthj.hll.Murmur3;
 
 import java.io.*;
-import java.util.HashSet;
 import java.util.Random;
-import java.util.Set;
+
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 
 import org.apache.commons.cli.BasicParser;
 import org.apache.commons.cli.CommandLine;
@@ -34,6 +36,11 @@ import org.apache.commons.cli.ParseException;
 public class HyperLogLogCLI {
 
   public static void main(String[] args) {
+    if (args.length > 0 && SketchFileCommands.isCommand(args[0])) {
+      SketchFileCommands.run(args);
+      return;
+    }
+
     Options options = new Options();
     addOptions(options);
 
@@ -47,6 +54,7 @@ public class HyperLogLogCLI {
     boolean noBias = true;
     boolean printRelativeError = false;
     int unique = -1;
+    int numWorkers = 1;
     String filePath = null;
     BufferedReader br = null;
     String outFile = null;
@@ -61,8 +69,11 @@ public class HyperLogLogCLI {
       if (!(cli.hasOption('n') || cli.hasOption('f') || cli.hasOption('d') || cli.hasOption('t'))) {
         System.out.println("Example usage: hll -n 1000\n"
                 + "          <OR> hll -f /tmp/input.txt\n"
+                + "          <OR> hll -f /tmp/input.txt -w 8\n"
                 + "          <OR> hll -d -i /tmp/out.hll\n"
-                + "          <OR> cat file | hll -t\n");
+                + "          <OR> cat file | hll -t\n"
+                + "          <OR> hll count|inspect /tmp/sketches\n"
+                + "          <OR> hll merge -o /tmp/merged.hll '/tmp/sketches/*.hll'\n");
         usage(options);
         return;
       }
@@ -75,12 +86,14 @@ public class HyperLogLogCLI {
         String value = cli.getOptionValue('e');
         if (value.equals(HyperLogLog.EncodingType.DENSE.name())) {
           enc = HyperLogLog.EncodingType.DENSE;
+        } else if (value.equals(HyperLogLog.EncodingType.EXACT.name())) {
+          enc = HyperLogLog.EncodingType.EXACT;
         }
       }
 
       if (cli.hasOption('p')) {
         p = Integer.parseInt(cli.getOptionValue('p'));
-        if (p < 4 && p > 16) {
+        if (p < HLLConstants.MIN_P_VALUE || p > HLLConstants.MAX_P_VALUE) {
           System.out.println("Warning! Out-of-range value specified for p. Using to p=14.");
           p = 14;
         }
@@ -94,9 +107,19 @@ public class HyperLogLogCLI {
         bitPack = Boolean.parseBoolean(cli.getOptionValue('b'));
       }
 
+      if (cli.hasOption('w')) {
+        numWorkers = Integer.parseInt(cli.getOptionValue('w'));
+        if (numWorkers < 1) {
+          System.out.println("Warning! Invalid number of workers specified. Using 1 worker.");
+          numWorkers = 1;
+        }
+      }
+
       if (cli.hasOption('f')) {
         filePath = cli.getOptionValue('f');
-        br = new BufferedReader(new FileReader(new File(filePath)));
+        if (numWorkers == 1) {
+          br = new BufferedReader(new FileReader(new File(filePath)));
+        }
       }
 
       if (filePath != null && cli.hasOption('n')) {
@@ -147,23 +170,43 @@ public class HyperLogLogCLI {
       }
 
       // construct hll and serialize it if required
-      HyperLogLog hll = HyperLogLog.builder().enableBitPacking(bitPack).enableNoBias(noBias)
-          .setEncoding(enc).setNumRegisterIndexBits(p).build();
+      HyperLogLog.HyperLogLogBuilder builder = HyperLogLog.builder().enableBitPacking(bitPack)
+          .enableNoBias(noBias).setEncoding(enc).setNumRegisterIndexBits(p);
+      HyperLogLog hll = null;
 
-      if (br != null) {
-        Set<String> hashset = new HashSet<String>();
+      if (filePath != null && numWorkers > 1) {
+        // memory map the file and ingest lines in parallel
+        long start = System.nanoTime();
+        ParallelFileIngest.Result result = ParallelFileIngest.ingest(new File(filePath), builder,
+            numWorkers, printRelativeError);
+        printThroughput(result.numBytes, result.numLines, System.nanoTime() - start);
+        hll = result.hll;
+        n = result.numDistinct;
+      } else if (br != null) {
+        hll = builder.build();
+        // exact count is tracked using 64-bit hashes of lines instead of lines
+        LongOpenHashSet hashset = printRelativeError ? new LongOpenHashSet() : null;
+        long numLines = 0;
+        long numBytes = 0;
+        long start = System.nanoTime();
         String line;
         while ((line = br.readLine()) != null) {
-          hll.addString(line);
+          byte[] bytes = line.getBytes();
+          long hash = Murmur3.hash64(bytes);
+          hll.add(hash);
+          numLines++;
+          numBytes += bytes.length + 1;
 
           //ignore hashset overhead if no relative error needed
-          if(printRelativeError) {
-            hashset.add(line);
+          if (hashset != null) {
+            hashset.add(hash);
           }
         }
+        printThroughput(numBytes, numLines, System.nanoTime() - start);
 
-        n = hashset.size();
+        n = hashset != null ? hashset.size() : 0;
       } else {
+        hll = builder.build();
         Random rand = new Random(seed);
         for (int i = 0; i < n; i++) {
           if (unique < 0) {
@@ -208,9 +251,9 @@ public class HyperLogLogCLI {
 
   private static void addOptions(Options options) {
     options.addOption("p", "num-register-bits", true, "number of bits from "
-        + "hashcode used as register index between 4 and 16 (both inclusive). " + "default = 14");
-    options.addOption("e", "encoding", true, "specify encoding to use (SPARSE "
-        + "or DENSE). default = SPARSE");
+        + "hashcode used as register index between 4 and 20 (both inclusive). " + "default = 14");
+    options.addOption("e", "encoding", true, "specify encoding to use (EXACT, "
+        + "SPARSE or DENSE). default = SPARSE");
     options.addOption("b", "enable-bitpacking", true, "enable bit-packing of"
         + " registers. default = true");
     options.addOption("c", "no-bias", true, "use bias correction table "
@@ -225,6 +268,15 @@ public class HyperLogLogCLI {
     options.addOption("i", "input-file", true, "specify input file for deserialization");
     options.addOption("t", "standard-in", false, "read data from standard in");
     options.addOption("r", "relative-error", false, "print relative error calculation");
+    options.addOption("w", "num-workers", true, "number of worker threads to read input file"
+        + " (-f) in parallel. default = 1");
+  }
+
+  private static void printThroughput(long numBytes, long numLines, long elapsedNanos) {
+    double seconds = Math.max(elapsedNanos, 1) / 1_000_000_000.0;
+    System.out.println(String.format("Ingested %d lines (%d bytes) in %d ms. Throughput: %.2f MB/s,"
+        + " %.0f lines/s", numLines, numBytes, elapsedNanos / 1_000_000,
+        numBytes / (1024.0 * 1024.0) / seconds, numLines / seconds));
   }
 
   static void usage(Options options) {
@@ -0,0 +1,220 @@
+/**
+ * Copyright 2017 Prasanth Jayachandran
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.prasanthj.hll.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.github.prasanthj.hll.HyperLogLog;
+import com.github.prasanthj.hll.Murmur3;
+
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+
+/**
+ * Ingests lines of a file into a hyperloglog using multiple threads. The file
+ * is memory mapped and split at newline boundaries into one range per worker.
+ * Each worker hashes the raw bytes of every line (without decoding them to
+ * strings) into its own hyperloglog and the worker hyperloglogs are merged at
+ * the end. For UTF-8 encoded files with UTF-8 as default charset this
+ * produces the same hyperloglog as adding every line with addString().
+ */
+class ParallelFileIngest {
+
+  // max bytes mapped at once by a worker
+  private static final int MAX_MAP_SIZE = 256 << 20;
+
+  // result of ingestion
+  static class Result {
+    HyperLogLog hll;
+    long numLines;
+    long numBytes;
+    // exact number of distinct line hashes (-1 if not tracked)
+    long numDistinct = -1;
+  }
+
+  private ParallelFileIngest() {
+  }
+
+  /**
+   * Ingest the lines of the specified file.
+   * @param file
+   *          - input file
+   * @param builder
+   *          - builder for worker hyperloglogs
+   * @param numWorkers
+   *          - number of worker threads
+   * @param exactCount
+   *          - track exact number of distinct lines using 64-bit hashes
+   * @return merged hyperloglog and ingest stats
+   * @throws IOException - thrown when reading the file
+   */
+  static Result ingest(File file, HyperLogLog.HyperLogLogBuilder builder, int numWorkers,
+    boolean exactCount) throws IOException {
+    Result result = new Result();
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+        FileChannel channel = raf.getChannel()) {
+      long[] splits = findSplits(channel, numWorkers);
+      ExecutorService executor = Executors.newFixedThreadPool(numWorkers);
+      try {
+        List<Future<Worker>> futures = new ArrayList<Future<Worker>>();
+        for (int i = 0; i < numWorkers; i++) {
+          final Worker worker = new Worker(channel, splits[i], splits[i + 1], builder.build(),
+            exactCount);
+          futures.add(executor.submit(() -> {
+            worker.run();
+            return worker;
+          }));
+        }
+
+        LongOpenHashSet hashes = exactCount ? new LongOpenHashSet() : null;
+        for (Future<Worker> future : futures) {
+          Worker worker = future.get();
+          if (result.hll == null) {
+            result.hll = worker.hll;
+          } else {
+            result.hll.merge(worker.hll);
+          }
+          result.numLines += worker.numLines;
+          if (hashes != null) {
+            hashes.addAll(worker.hashes);
+          }
+        }
+        if (hashes != null) {
+          result.numDistinct = hashes.size();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while reading file.", e);
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof IOException) {
+          throw (IOException) e.getCause();
+        }
+        throw new IOException("Exception occured while reading file.", e.getCause());
+      } finally {
+        executor.shutdownNow();
+      }
+      result.numBytes = channel.size();
+    }
+    return result;
+  }
+
+  /**
+   * Split the file into ranges that start at line boundaries. Range i is
+   * [splits[i], splits[i + 1]).
+   */
+  private static long[] findSplits(FileChannel channel, int numWorkers) throws IOException {
+    long size = channel.size();
+    long[] splits = new long[numWorkers + 1];
+    ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+    for (int i = 1; i < numWorkers; i++) {
+      // start of next line at or after the approximate split point
+      long pos = Math.max(splits[i - 1], size / numWorkers * i - 1);
+      long split = size;
+      while (pos < size && split == size) {
+        buffer.clear();
+        int read = channel.read(buffer, pos);
+        if (read <= 0) {
+          break;
+        }
+        for (int j = 0; j < read; j++) {
+          if (buffer.get(j) == '\n') {
+            split = pos + j + 1;
+            break;
+          }
+        }
+        pos += read;
+      }
+      splits[i] = Math.max(split, splits[i - 1]);
+    }
+    splits[numWorkers] = size;
+    return splits;
+  }
+
+  private static class Worker {
+    private final FileChannel channel;
+    private final long start;
+    private final long end;
+    private final HyperLogLog hll;
+    private final LongOpenHashSet hashes;
+    private long numLines;
+    private byte[] line = new byte[256];
+
+    Worker(FileChannel channel, long start, long end, HyperLogLog hll, boolean exactCount) {
+      this.channel = channel;
+      this.start = start;
+      this.end = end;
+      this.hll = hll;
+      this.hashes = exactCount ? new LongOpenHashSet() : null;
+    }
+
+    void run() throws IOException {
+      long pos = start;
+      while (pos < end) {
+        int mapSize = (int) Math.min(MAX_MAP_SIZE, end - pos);
+        boolean lastWindow = pos + mapSize == end;
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, pos, mapSize);
+        int lineStart = 0;
+        for (int i = 0; i < mapSize; i++) {
+          if (buffer.get(i) == '\n') {
+            addLine(buffer, lineStart, i);
+            lineStart = i + 1;
+          }
+        }
+        if (lastWindow) {
+          // last line without trailing newline
+          if (lineStart < mapSize) {
+            addLine(buffer, lineStart, mapSize);
+          }
+          lineStart = mapSize;
+        } else if (lineStart == 0) {
+          throw new IOException("Line at offset " + pos + " is longer than " + MAX_MAP_SIZE
+            + " bytes.");
+        }
+        pos += lineStart;
+      }
+    }
+
+    private void addLine(MappedByteBuffer buffer, int from, int to) {
+      // strip carriage return of \r\n line endings
+      if (to > from && buffer.get(to - 1) == '\r') {
+        to--;
+      }
+      int length = to - from;
+      if (length > line.length) {
+        line = new byte[Math.max(length, line.length * 2)];
+      }
+      buffer.position(from);
+      buffer.get(line, 0, length);
+      long hash = Murmur3.hash64(line, length, Murmur3.DEFAULT_SEED);
+      hll.add(hash);
+      if (hashes != null) {
+        hashes.add(hash);
+      }
+      numLines++;
+    }
+  }
+}
@@ -0,0 +1,322 @@
+/**
+ * Copyright 2017 Prasanth Jayachandran
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.prasanthj.hll.tools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.cli.BasicParser;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import com.github.prasanthj.hll.HyperLogLog;
+import com.github.prasanthj.hll.HyperLogLogUtils;
+
+/**
+ * <pre>
+ * Sub-commands of hll tool that operate on many serialized hyperloglogs.
+ * Input is a directory (all regular files in it) or a glob pattern.
+ *
+ * count   - estimated count of every file read only from the serialized
+ *           header (registers are not deserialized)
+ * inspect - deserializes every file and prints encoding, p and register stats
+ * merge   - deserializes and merges all files in parallel and serializes the
+ *           merged hyperloglog to the output file (-o)
+ * </pre>
+ */
+class SketchFileCommands {
+
+  static final List<String> COMMANDS = Arrays.asList("count", "inspect", "merge");
+
+  // header is 4 bytes followed by estimated count as varlong (max 10 bytes)
+  private static final int HEADER_BUFFER_SIZE = 16;
+
+  private SketchFileCommands() {
+  }
+
+  static boolean isCommand(String arg) {
+    return COMMANDS.contains(arg);
+  }
+
+  static void run(String[] args) {
+    String command = args[0];
+    Options options = new Options();
+    options.addOption("o", "output-file", true, "output file for merged hyperloglog (merge)");
+    options.addOption("w", "num-workers", true, "number of worker threads. default = number"
+        + " of processors");
+    options.addOption("q", "quiet", false, "do not print per-file stats");
+
+    try {
+      CommandLine cli = new BasicParser().parse(options, Arrays.copyOfRange(args, 1, args.length));
+      if (cli.getArgs().length == 0) {
+        usage(command, options);
+        return;
+      }
+      int numWorkers = Runtime.getRuntime().availableProcessors();
+      if (cli.hasOption('w')) {
+        numWorkers = Math.max(1, Integer.parseInt(cli.getOptionValue('w')));
+      }
+      boolean printFileStats = !cli.hasOption('q');
+
+      List<Path> files = new ArrayList<Path>();
+      for (String input : cli.getArgs()) {
+        files.addAll(listFiles(input));
+      }
+      if (files.isEmpty()) {
+        System.err.println("No files found.");
+        return;
+      }
+
+      long start = System.nanoTime();
+      if (command.equals("count")) {
+        count(files, numWorkers, printFileStats);
+      } else if (command.equals("inspect")) {
+        inspect(files, numWorkers);
+      } else {
+        if (!cli.hasOption('o')) {
+          System.err.println("Specify output file. Example usage: hll merge -o /tmp/out.hll /tmp/in");
+          usage(command, options);
+          return;
+        }
+        merge(files, numWorkers, printFileStats, new File(cli.getOptionValue('o')));
+      }
+      long elapsed = System.nanoTime() - start;
+
+      long totalBytes = 0;
+      for (Path file : files) {
+        totalBytes += Files.size(file);
+      }
+      double seconds = Math.max(elapsed, 1) / 1_000_000_000.0;
+      System.out.println(String.format("Processed %d files (%d bytes) in %d ms. Throughput: %.0f"
+          + " files/s, %.2f MB/s", files.size(), totalBytes, elapsed / 1_000_000,
+          files.size() / seconds, totalBytes / (1024.0 * 1024.0) / seconds));
+    } catch (ParseException e) {
+      System.err.println("Invalid parameter.");
+      usage(command, options);
+    } catch (NumberFormatException e) {
+      System.err.println("Invalid type for parameter.");
+      usage(command, options);
+    } catch (IOException e) {
+      System.err.println("Exception occured while reading files. " + e.getMessage());
+    }
+  }
+
+  private static void count(List<Path> files, int numWorkers, boolean printFileStats)
+      throws IOException {
+    List<Long> counts = forEach(files, numWorkers, file -> {
+      // fast path: only the header is read from the file
+      try (InputStream in = new BufferedInputStream(new FileInputStream(file.toFile()),
+          HEADER_BUFFER_SIZE)) {
+        return HyperLogLogUtils.getEstimatedCountFromSerializedHLL(in);
+      }
+    });
+    long total = 0;
+    for (int i = 0; i < files.size(); i++) {
+      if (printFileStats) {
+        System.out.println(files.get(i) + "\t" + counts.get(i));
+      }
+      total += counts.get(i);
+    }
+    System.out.println("Sum of estimated counts: " + total);
+  }
+
+  private static void inspect(List<Path> files, int numWorkers) throws IOException {
+    List<String> stats = forEach(files, numWorkers, file -> {
+      HyperLogLog hll = deserialize(file);
+      StringBuilder sb = new StringBuilder();
+      sb.append(file).append("\t");
+      sb.append("size: ").append(Files.size(file)).append(" bytes, ");
+      sb.append(hll.toString());
+      if (hll.getEncoding() == HyperLogLog.EncodingType.DENSE) {
+        sb.append(", numZeroes: ").append(hll.getHLLDenseRegister().getNumZeroes());
+        sb.append(", maxRegisterValue: ").append(hll.getHLLDenseRegister().getMaxRegisterValue());
+      } else if (hll.getEncoding() == HyperLogLog.EncodingType.EXACT) {
+        sb.append(", exactEntries: ").append(hll.getHLLExactSet().size());
+      } else {
+        sb.append(", sparseEntries: ").append(hll.getHLLSparseRegister().getSize());
+      }
+      return sb.toString();
+    });
+    for (String stat : stats) {
+      System.out.println(stat);
+    }
+  }
+
+  private static void merge(List<Path> files, int numWorkers, boolean printFileStats,
+      File outFile) throws IOException {
+    // each worker merges a contiguous slice of files into its own hyperloglog
+    int numSlices = Math.min(numWorkers, files.size());
+    List<List<Path>> slices = new ArrayList<List<Path>>();
+    for (int i = 0; i < numSlices; i++) {
+      int from = (int) ((long) files.size() * i / numSlices);
+      int to = (int) ((long) files.size() * (i + 1) / numSlices);
+      slices.add(files.subList(from, to));
+    }
+    final List<String> fileStats = Collections.synchronizedList(new ArrayList<String>());
+    List<HyperLogLog> partials = forEach(slices, numWorkers, slice -> {
+      HyperLogLog merged = null;
+      for (Path file : slice) {
+        HyperLogLog hll = deserialize(file);
+        if (printFileStats) {
+          fileStats.add(file + "\t" + hll.toString());
+        }
+        merged = merge(merged, hll);
+      }
+      return merged;
+    });
+
+    HyperLogLog result = null;
+    for (HyperLogLog partial : partials) {
+      result = merge(result, partial);
+    }
+    if (printFileStats) {
+      Collections.sort(fileStats);
+      for (String stat : fileStats) {
+        System.out.println(stat);
+      }
+    }
+
+    try (OutputStream out = new BufferedOutputStream(new FileOutputStream(outFile))) {
+      HyperLogLogUtils.serializeHLL(out, result);
+    }
+    System.out.println("Merged: " + result.toString());
+    System.out.println("Serialized merged hyperloglog to " + outFile + " (" + outFile.length()
+        + " bytes)");
+  }
+
+  /**
+   * Merge two hyperloglogs. Since hyperloglog with larger p can only be merged
+   * into hyperloglog with smaller p, the one with smaller p is returned.
+   */
+  private static HyperLogLog merge(HyperLogLog merged, HyperLogLog hll) {
+    if (merged == null) {
+      return hll;
+    }
+    if (hll.getNumRegisterIndexBits() < merged.getNumRegisterIndexBits()) {
+      hll.merge(merged);
+      return hll;
+    }
+    merged.merge(hll);
+    return merged;
+  }
+
+  private static HyperLogLog deserialize(Path file) throws IOException {
+    try (InputStream in = new BufferedInputStream(new FileInputStream(file.toFile()))) {
+      return HyperLogLogUtils.deserializeHLL(in);
+    }
+  }
+
+  private interface FileTask<I, O> {
+    O apply(I input) throws IOException;
+  }
+
+  /**
+   * Applies the task to all inputs using numWorkers threads and returns the
+   * results in the order of inputs.
+   */
+  private static <I, O> List<O> forEach(List<I> inputs, int numWorkers, FileTask<I, O> task)
+      throws IOException {
+    ExecutorService executor = Executors.newFixedThreadPool(Math.min(numWorkers, inputs.size()));
+    try {
+      List<Future<O>> futures = new ArrayList<Future<O>>();
+      for (I input : inputs) {
+        futures.add(executor.submit(() -> task.apply(input)));
+      }
+      List<O> results = new ArrayList<O>();
+      for (Future<O> future : futures) {
+        results.add(future.get());
+      }
+      return results;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while processing files.", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause().getMessage(), e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Lists regular files in a directory or files matching a glob pattern
+   * (like /tmp/sketches/*.hll) in sorted order.
+   */
+  static List<Path> listFiles(String input) throws IOException {
+    List<Path> result = new ArrayList<Path>();
+    Path dir;
+    String glob = "*";
+    int globIdx = indexOfGlob(input);
+    if (globIdx >= 0) {
+      int sepIdx = input.lastIndexOf(File.separatorChar, globIdx);
+      dir = sepIdx >= 0 ? Paths.get(input.substring(0, sepIdx + 1)) : Paths.get(".");
+      glob = input.substring(sepIdx + 1);
+    } else {
+      dir = Paths.get(input);
+      if (Files.isRegularFile(dir)) {
+        result.add(dir);
+        return result;
+      }
+    }
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, glob)) {
+      for (Path path : stream) {
+        if (Files.isRegularFile(path)) {
+          result.add(path);
+        }
+      }
+    }
+    Collections.sort(result);
+    return result;
+  }
+
+  private static int indexOfGlob(String input) {
+    for (int i = 0; i < input.length(); i++) {
+      char c = input.charAt(i);
+      if (c == '*' || c == '?' || c == '[' || c == '{') {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static void usage(String command, Options options) {
+    HelpFormatter formatter = new HelpFormatter();
+    formatter.printHelp("hll " + command + " [options] <directory or glob>...", options);
+  }
+}
@@ -0,0 +1,74 @@
+/**
+ * Copyright 2017 Prasanth Jayachandran
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.prasanthj.hll;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Random;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import com.github.prasanthj.hll.HyperLogLog.EncodingType;
+
+@RunWith(value = Parameterized.class)
+public class TestErtlImprovedEstimator {
+
+  private int size;
+
+  public TestErtlImprovedEstimator(int n) {
+    this.size = n;
+  }
+
+  @Parameters
+  public static Collection<Object[]> data() {
+    // includes values around the HLL++ linear counting threshold for p = 14
+    Object[][] data = new Object[][] { { 0 }, { 1 }, { 10 }, { 100 }, { 1000 }, { 10000 },
+        { 11500 }, { 30000 }, { 81920 }, { 100000 }, { 1000000 } };
+    return Arrays.asList(data);
+  }
+
+  @Test
+  public void testDenseEstimate() {
+    Random rand = new Random(size);
+    HyperLogLog hll = HyperLogLog.builder().setEncoding(EncodingType.DENSE)
+        .setCardinalityEstimator(new ErtlImprovedEstimator()).build();
+    for (int i = 0; i < size; i++) {
+      hll.addLong(rand.nextLong());
+    }
+    // 3 times standard error (and at least 1 for small counts)
+    double delta = Math.max(1, 3 * hll.getStandardError() * size);
+    assertEquals((double) size, (double) hll.count(), delta);
+  }
+
+  @Test
+  public void testEmptyAndSquash() {
+    CardinalityEstimator estimator = new ErtlImprovedEstimator();
+    int[] histogram = new int[HLLConstants.NUM_REGISTER_VALUES];
+    histogram[0] = 1 << 14;
+    assertEquals(0, estimator.estimate(14, histogram));
+
+    // estimator switch should be carried over to squashed hyperloglogs
+    HyperLogLog hll = HyperLogLog.builder().setNumRegisterIndexBits(14)
+        .setCardinalityEstimator(estimator).build();
+    assertEquals(estimator, hll.squash(10).getCardinalityEstimator());
+  }
+}
@@ -0,0 +1,95 @@
+/**
+ * Copyright 2017 Prasanth Jayachandran
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.prasanthj.hll;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.github.prasanthj.hll.HyperLogLog.EncodingType;
+
+public class TestHLLBiasData {
+
+  @Test
+  public void testReadBiasData() {
+    int maxP = HLLConstants.MIN_P_VALUE + HLLConstants.thresholdData.length - 1;
+    for (int p = HLLConstants.MIN_P_VALUE; p <= maxP; p++) {
+      double[][] data = HLLPlusPlusEstimator.readBiasData(p);
+      assertEquals(2, data.length);
+      assertEquals(data[0].length, data[1].length);
+      assertTrue(data[0].length >= 79);
+    }
+
+    // first and last entries of some tables
+    double[][] data = HLLPlusPlusEstimator.readBiasData(4);
+    assertEquals(79, data[0].length);
+    assertEquals(11, data[0][0], 0.0);
+    assertEquals(11.717, data[0][1], 0.0);
+    assertEquals(77.2394, data[0][78], 0.0);
+    data = HLLPlusPlusEstimator.readBiasData(10);
+    assertEquals(738.1256, data[0][0], 0.0);
+    data = HLLPlusPlusEstimator.readBiasData(maxP);
+    assertEquals(-713.308999999892, data[1][data[1].length - 1], 0.0);
+  }
+
+  @Test
+  @SuppressWarnings("deprecation")
+  public void testDeprecatedAccessors() {
+    int maxP = HLLConstants.MIN_P_VALUE + HLLConstants.thresholdData.length - 1;
+    for (int p = HLLConstants.MIN_P_VALUE; p <= maxP; p++) {
+      double[][] data = HLLPlusPlusEstimator.readBiasData(p);
+      assertArrayEquals(data[0], HLLConstants.getRawEstimateData(p), 0.0);
+      assertArrayEquals(data[1], HLLConstants.getBiasData(p), 0.0);
+    }
+
+    // returned arrays are copies
+    HLLConstants.getRawEstimateData(10)[0] = -1;
+    assertEquals(738.1256, HLLConstants.getRawEstimateData(10)[0], 0.0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testReadBiasDataInvalidP() {
+    HLLPlusPlusEstimator.readBiasData(HLLConstants.MIN_P_VALUE + HLLConstants.thresholdData.length);
+  }
+
+  @Test
+  public void testInversePow2Data() {
+    assertEquals(Byte.MAX_VALUE + 1, HLLConstants.inversePow2Data.length);
+    for (int v = 0; v < HLLConstants.inversePow2Data.length; v++) {
+      assertEquals(Math.pow(2, -v), HLLConstants.inversePow2Data[v], 0.0);
+    }
+  }
+
+  @Test
+  public void testBiasCorrection() {
+    // short range estimates use the bias tables of each p
+    Random rand = new Random(HLLConstants.MAX_BIAS_P_VALUE);
+    for (int p = HLLConstants.MIN_P_VALUE; p <= HLLConstants.MAX_BIAS_P_VALUE; p++) {
+      int size = 3 << p;
+      HyperLogLog hll = HyperLogLog.builder().setNumRegisterIndexBits(p)
+          .setEncoding(EncodingType.DENSE).build();
+      for (int i = 0; i < size; i++) {
+        hll.addLong(rand.nextLong());
+      }
+      assertEquals(size, hll.count(), 4 * hll.getStandardError() * size);
+    }
+  }
+}
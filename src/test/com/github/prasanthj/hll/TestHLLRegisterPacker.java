@@ -0,0 +1,109 @@
+/**
+ * Copyright 2017 Prasanth Jayachandran
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.prasanthj.hll;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Random;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+@RunWith(value = Parameterized.class)
+public class TestHLLRegisterPacker {
+
+  private int bitWidth;
+
+  public TestHLLRegisterPacker(int bitWidth) {
+    this.bitWidth = bitWidth;
+  }
+
+  @Parameters
+  public static Collection<Object[]> data() {
+    Object[][] data = new Object[][] { { 1 }, { 2 }, { 3 }, { 4 }, { 5 }, { 6 }, { 8 } };
+    return Arrays.asList(data);
+  }
+
+  private byte[] randomRegister(int length, long seed) {
+    Random rand = new Random(seed);
+    byte[] register = new byte[length];
+    int bound = bitWidth == 8 ? 66 : 1 << bitWidth;
+    for (int i = 0; i < length; i++) {
+      register[i] = (byte) rand.nextInt(bound);
+    }
+    return register;
+  }
+
+  // bit at a time packing used by serialization format v1
+  private static byte[] referencePack(byte[] register, int bitWidth) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    int bitsLeft = 8;
+    byte current = 0;
+    for (byte value : register) {
+      int bitsToWrite = bitWidth;
+      while (bitsToWrite > bitsLeft) {
+        current |= value >>> (bitsToWrite - bitsLeft);
+        bitsToWrite -= bitsLeft;
+        value &= (1 << bitsToWrite) - 1;
+        out.write(current);
+        current = 0;
+        bitsLeft = 8;
+      }
+      bitsLeft -= bitsToWrite;
+      current |= value << bitsLeft;
+      if (bitsLeft == 0) {
+        out.write(current);
+        current = 0;
+        bitsLeft = 8;
+      }
+    }
+    if (bitsLeft < 8) {
+      out.write(current);
+    }
+    return out.toByteArray();
+  }
+
+  @Test
+  public void testPackSameAsReference() {
+    for (int p = 4; p <= 16; p++) {
+      byte[] register = randomRegister(1 << p, p);
+      byte[] packed = new byte[HLLRegisterPacker.packedLength(register.length, bitWidth)];
+      HLLRegisterPacker.pack(register, bitWidth, packed);
+      assertArrayEquals(referencePack(register, bitWidth), packed);
+    }
+  }
+
+  @Test
+  public void testRoundTrip() {
+    // lengths that are not multiple of 8 exercise the trailing group
+    int[] lengths = { 1, 7, 8, 9, 15, 16, 17, 100, 1023, 1 << 16 };
+    for (int length : lengths) {
+      byte[] register = randomRegister(length, length);
+      byte[] packed = new byte[HLLRegisterPacker.packedLength(length, bitWidth)];
+      HLLRegisterPacker.pack(register, bitWidth, packed);
+      assertArrayEquals(referencePack(register, bitWidth), packed);
+      byte[] unpacked = new byte[length];
+      HLLRegisterPacker.unpack(packed, bitWidth, unpacked);
+      assertArrayEquals(register, unpacked);
+    }
+  }
+}
@@ -19,8 +19,11 @@
 package com.github.prasanthj.hll;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import com.github.prasanthj.hll.HyperLogLog.EncodingType;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
@@ -265,4 +268,56 @@ public class TestHLLSerialization {
     assertEquals(hashset.size(), hll.count(), delta);
     assertEquals(hashset.size(), deserializedHLL.count(), delta);
   }
+
+  @Test
+  public void testHLLSerializationV2() throws IOException {
+    EncodingType[] encodings = { EncodingType.SPARSE, EncodingType.DENSE };
+    boolean[] bitPackings = { true, false };
+    for (EncodingType enc : encodings) {
+      for (boolean bitPacking : bitPackings) {
+        HyperLogLog hll = HyperLogLog.builder().setEncoding(enc).enableBitPacking(bitPacking)
+            .build();
+        Random rand = new Random(SEED);
+        for (int i = 0; i < size; i++) {
+          hll.addLong(rand.nextLong());
+        }
+        ByteArrayOutputStream v1 = new ByteArrayOutputStream();
+        HyperLogLogUtils.serializeHLL(v1, hll);
+        for (HyperLogLogUtils.DenseCodec codec : HyperLogLogUtils.DenseCodec.values()) {
+          ByteArrayOutputStream v2 = new ByteArrayOutputStream();
+          HyperLogLogUtils.serializeHLL(v2, hll, codec);
+          HyperLogLog deserializedHLL = HyperLogLogUtils.deserializeHLL(
+              new ByteArrayInputStream(v2.toByteArray()));
+          assertEquals(hll, deserializedHLL);
+          assertEquals(hll.toString(), deserializedHLL.toString());
+          assertEquals(hll.toStringExtended(), deserializedHLL.toStringExtended());
+          assertEquals(hll.hashCode(), deserializedHLL.hashCode());
+          assertEquals(hll.count(), deserializedHLL.count());
+          assertEquals(hll.count(), HyperLogLogUtils.getEstimatedCountFromSerializedHLL(
+              new ByteArrayInputStream(v2.toByteArray())));
+          if (codec == HyperLogLogUtils.DenseCodec.SMALLEST && bitPacking) {
+            // v2 has 2 more header bytes and varint payload length
+            assertTrue(v2.size() <= v1.size() + 5);
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testHLLDenseHuffmanSize() throws IOException {
+    HyperLogLog hll = HyperLogLog.builder().setEncoding(EncodingType.DENSE).build();
+    Random rand = new Random(SEED);
+    for (int i = 0; i < size; i++) {
+      hll.addLong(rand.nextLong());
+    }
+    ByteArrayOutputStream v1 = new ByteArrayOutputStream();
+    HyperLogLogUtils.serializeHLL(v1, hll);
+    ByteArrayOutputStream v2 = new ByteArrayOutputStream();
+    HyperLogLogUtils.serializeHLL(v2, hll, HyperLogLogUtils.DenseCodec.HUFFMAN);
+    // skewed register values need ~3 bits per register on average
+    if (size >= 100000) {
+      assertTrue(v2.size() < 0.7 * v1.size());
+    }
+  }
 }
@@ -17,8 +17,12 @@
 package com.github.prasanthj.hll;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import com.github.prasanthj.hll.HyperLogLog.EncodingType;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
 import org.junit.Test;
 
 public class TestHyperLogLog {
@@ -109,10 +113,10 @@ public class TestHyperLogLog {
     assertEquals((double) 3 * size, (double) hll.count(), delta);
     assertEquals(EncodingType.SPARSE, hll.getEncoding());
 
-    // valid merge -- register set size gets bigger & dense automatically
+    // valid merge -- larger p is downscaled and sparse stays sparse below threshold
     hll.merge(hll4);
     assertEquals((double) 4 * size, (double) hll.count(), delta4);
-    assertEquals(EncodingType.DENSE, hll.getEncoding());
+    assertEquals(EncodingType.SPARSE, hll.getEncoding());
     
     // invalid merge -- smaller register merge to bigger
     hll.merge(hll5);
@@ -199,10 +203,10 @@ public class TestHyperLogLog {
     assertEquals((double) 3 * size, (double) hll.count(), delta);
     assertEquals(EncodingType.DENSE, hll.getEncoding());
 
-    // merge should convert hll3 to DENSE
+    // merge of larger p should keep hll3 SPARSE
     hll3.merge(hll4);
     assertEquals((double) 2 * size, (double) hll3.count(), delta);
-    assertEquals(EncodingType.DENSE, hll3.getEncoding());
+    assertEquals(EncodingType.SPARSE, hll3.getEncoding());
 
     // invalid merge -- smaller register merge to bigger
     hll.merge(hll5);
@@ -245,10 +249,10 @@ public class TestHyperLogLog {
     assertEquals((double) 3 * size, (double) hll.count(), delta);
     assertEquals(EncodingType.DENSE, hll.getEncoding());
 
-    // merge should convert hll2 to DENSE
+    // merge of larger p should keep hll2 SPARSE
     hll2.merge(hll4);
     assertEquals((double) 2 * size, (double) hll2.count(), delta);
-    assertEquals(EncodingType.DENSE, hll2.getEncoding());
+    assertEquals(EncodingType.SPARSE, hll2.getEncoding());
 
     // invalid merge -- smaller register merge to bigger
     hll.merge(hll5);
@@ -331,4 +335,46 @@ public class TestHyperLogLog {
     p14HLL.squash(p10HLL.getNumRegisterIndexBits());
     assertEquals((double) size, p14HLL.count(), longRangeTolerance * size / 100.0);
   }
+
+  @Test
+  public void testHLLSparseSquash() throws IOException {
+    int[] sizes = new int[] { 10, 100, 500, 1000 };
+    for (final int size : sizes) {
+      HyperLogLog p16HLL = HyperLogLog.builder().setEncoding(EncodingType.SPARSE)
+          .setNumRegisterIndexBits(16).build();
+      for (int i = 0; i < size; i++) {
+        p16HLL.addLong(i);
+      }
+      for (int p0 = 10; p0 < 16; p0++) {
+        HyperLogLog expected = HyperLogLog.builder().setEncoding(EncodingType.SPARSE)
+            .setNumRegisterIndexBits(p0).build();
+        for (int i = 0; i < size; i++) {
+          expected.addLong(i);
+        }
+        HyperLogLog squashed = p16HLL.squash(p0);
+        assertEquals(p0, squashed.getNumRegisterIndexBits());
+        // squashed hyperloglog should be same as the one built with p0
+        assertEquals(expected.getEncoding(), squashed.getEncoding());
+        assertEquals(expected.count(), squashed.count());
+        if (squashed.getEncoding() == EncodingType.SPARSE) {
+          assertEquals(expected.getHLLSparseRegister().getSparseMap(),
+              squashed.getHLLSparseRegister().getSparseMap());
+          // linear counting using p' indices
+          assertEquals((double) size, (double) squashed.count(), size * 0.01);
+
+          // serialized size compared to DENSE encoding (which squash used to return)
+          HyperLogLog dense = HyperLogLog.builder().setEncoding(EncodingType.DENSE)
+              .setNumRegisterIndexBits(p0).build();
+          dense.merge(squashed);
+          ByteArrayOutputStream sparseOut = new ByteArrayOutputStream();
+          HyperLogLogUtils.serializeHLL(sparseOut, squashed);
+          ByteArrayOutputStream denseOut = new ByteArrayOutputStream();
+          HyperLogLogUtils.serializeHLL(denseOut, dense);
+          if (size * 16 <= (1 << p0)) {
+            assertTrue(sparseOut.size() < denseOut.size());
+          }
+        }
+      }
+    }
+  }
 }
@@ -0,0 +1,100 @@
+/**
+ * Copyright 2017 Prasanth Jayachandran
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.prasanthj.hll;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+
+import org.junit.Test;
+
+import com.github.prasanthj.hll.HyperLogLog.EncodingType;
+
+public class TestHyperLogLogCollectors {
+
+  @Test
+  public void testParallelStream() {
+    final int size = 200000;
+    List<String> keys = new ArrayList<String>();
+    HyperLogLog expected = HyperLogLog.builder().setEncoding(EncodingType.DENSE).build();
+    for (int i = 0; i < size; i++) {
+      keys.add("key" + (i % (size / 2)));
+      expected.addString(keys.get(i));
+    }
+    HyperLogLog hll = keys.parallelStream()
+        .collect(HyperLogLogCollectors.toHyperLogLog(s -> Murmur3.hash64(s.getBytes()),
+            HyperLogLog.builder().setEncoding(EncodingType.DENSE)));
+    assertEquals(expected, hll);
+    assertEquals(expected.count(), hll.count());
+
+    HyperLogLog sequential = keys.stream()
+        .collect(HyperLogLogCollectors.toHyperLogLog(s -> Murmur3.hash64(s.getBytes()), 14));
+    double err = Math.abs(sequential.count() - size / 2) * 100.0 / (size / 2);
+    assertTrue(err < 2.0);
+  }
+
+  @Test
+  public void testPrimitiveStreams() {
+    final int size = 100000;
+    HyperLogLog expectedLongs = HyperLogLog.builder().setNumRegisterIndexBits(12).build();
+    HyperLogLog expectedInts = HyperLogLog.builder().setNumRegisterIndexBits(12).build();
+    for (int i = 0; i < size; i++) {
+      expectedLongs.addLong(i * 31L);
+      expectedInts.addInt(i * 31);
+    }
+    HyperLogLog longs = HyperLogLogCollectors.toHyperLogLog(
+        LongStream.range(0, size).parallel().map(i -> i * 31L), 12);
+    HyperLogLog ints = HyperLogLogCollectors.toHyperLogLog(
+        IntStream.range(0, size).parallel().map(i -> i * 31), 12);
+    // DENSE after promotion
+    assertEquals(expectedLongs, longs);
+    assertEquals(expectedInts, ints);
+  }
+
+  @Test
+  public void testConcurrentPrimitiveAdds() throws InterruptedException {
+    // addLong() etc. must not share hashing buffers between hyperloglogs
+    final int numThreads = 4;
+    final int size = 100000;
+    final HyperLogLog[] hlls = new HyperLogLog[numThreads];
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int t = 0; t < numThreads; t++) {
+      final HyperLogLog hll = HyperLogLog.builder().setEncoding(EncodingType.DENSE).build();
+      hlls[t] = hll;
+      Thread thread = new Thread(() -> {
+        for (int i = 0; i < size; i++) {
+          hll.addLong(i);
+          hll.addInt(i);
+          hll.addShort((short) i);
+          hll.addDouble(i);
+        }
+      });
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    for (HyperLogLog hll : hlls) {
+      assertEquals(hlls[0], hll);
+    }
+  }
+}
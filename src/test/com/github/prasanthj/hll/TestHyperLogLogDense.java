@@ -16,6 +16,7 @@
 
 package com.github.prasanthj.hll;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 
 import java.util.Arrays;
@@ -78,4 +79,61 @@ public class TestHyperLogLogDense {
     assertEquals((double) hashset.size(), (double) hll.count(), delta);
   }
 
+  @Test
+  public void testHLLRegisterHistogram() {
+    Random rand = new Random(size);
+    HyperLogLog hll = HyperLogLog.builder().setEncoding(HyperLogLog.EncodingType.DENSE).build();
+    HyperLogLog hll2 = HyperLogLog.builder().setEncoding(HyperLogLog.EncodingType.DENSE).build();
+    for (int i = 0; i < size; i++) {
+      hll.addLong(rand.nextLong());
+      hll2.addLong(rand.nextLong());
+    }
+    hll.merge(hll2);
+
+    // maintained histogram should match a scan of the registers
+    HLLDenseRegister register = hll.getHLLDenseRegister();
+    int[] expected = new int[HLLConstants.NUM_REGISTER_VALUES];
+    double sum = 0;
+    for (byte b : register.getRegister()) {
+      expected[b]++;
+      sum += Math.pow(2, -b);
+    }
+    assertArrayEquals(expected, register.getRegisterHistogram());
+    assertEquals(expected[0], register.getNumZeroes());
+    assertEquals(sum, register.getSumInversePow2(), 1e-9);
+  }
+
+  @Test
+  public void testSetHLLDenseRegister() {
+    Random rand = new Random(size);
+    HyperLogLog hll = HyperLogLog.builder().setEncoding(HyperLogLog.EncodingType.DENSE).build();
+    HyperLogLog hll2 = HyperLogLog.builder().setEncoding(HyperLogLog.EncodingType.DENSE).build();
+    HyperLogLog expected = HyperLogLog.builder().setEncoding(HyperLogLog.EncodingType.DENSE)
+        .build();
+    for (int i = 0; i < size; i++) {
+      long l1 = rand.nextLong();
+      long l2 = rand.nextLong();
+      hll.addLong(l1);
+      hll2.addLong(l2);
+      expected.addLong(l1);
+      expected.addLong(l2);
+    }
+
+    // registers are copied retaining the larger value of each register
+    byte[] reg = hll2.getHLLDenseRegister().getRegister().clone();
+    byte[] regCopy = reg.clone();
+    hll.setHLLDenseRegister(reg);
+    assertArrayEquals(expected.getHLLDenseRegister().getRegister(),
+        hll.getHLLDenseRegister().getRegister());
+    assertArrayEquals(expected.getHLLDenseRegister().getRegisterHistogram(),
+        hll.getHLLDenseRegister().getRegisterHistogram());
+    assertEquals(expected.count(), hll.count());
+
+    // the caller's array is not used as register array
+    for (int i = 0; i < size; i++) {
+      hll.addLong(rand.nextLong());
+    }
+    hll.reset();
+    assertArrayEquals(regCopy, reg);
+  }
 }
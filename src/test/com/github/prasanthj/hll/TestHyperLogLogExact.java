@@ -0,0 +1,271 @@
+/**
+ * Copyright 2017 Prasanth Jayachandran
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.prasanthj.hll;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import com.github.prasanthj.hll.HyperLogLog.EncodingType;
+import com.github.prasanthj.hll.HyperLogLogUtils.DenseCodec;
+
+public class TestHyperLogLogExact {
+
+  private static HyperLogLog newExactHLL(int p) {
+    return HyperLogLog.builder().setNumRegisterIndexBits(p).setEncoding(EncodingType.EXACT)
+        .build();
+  }
+
+  @Test
+  public void testExactCount() {
+    HyperLogLog hll = newExactHLL(14);
+    assertEquals(0, hll.count());
+    for (int i = 0; i < HLLConstants.EXACT_SET_DEFAULT_THRESHOLD; i++) {
+      hll.addInt(i);
+      hll.addInt(i);
+      assertEquals(i + 1, hll.count());
+    }
+    hll.add(0);
+    hll.add(0);
+    assertEquals(EncodingType.SPARSE, hll.getEncoding());
+    assertEquals(HLLConstants.EXACT_SET_DEFAULT_THRESHOLD + 1, hll.count());
+    assertEquals(HLLConstants.EXACT_SET_DEFAULT_THRESHOLD + 1,
+        hll.getHLLSparseRegister().getSize());
+  }
+
+  @Test
+  public void testSwitchToSparseAndDense() {
+    HyperLogLog exact = HyperLogLog.builder().setEncoding(EncodingType.EXACT)
+        .setExactSetThreshold(500).build();
+    HyperLogLog sparse = HyperLogLog.builder().build();
+    for (int i = 0; i < 500; i++) {
+      exact.addString("key" + i);
+      sparse.addString("key" + i);
+    }
+    assertEquals(EncodingType.EXACT, exact.getEncoding());
+    assertEquals(500, exact.count());
+    exact.addString("key" + 500);
+    sparse.addString("key" + 500);
+    assertEquals(EncodingType.SPARSE, exact.getEncoding());
+    assertEquals(sparse.count(), exact.count());
+    assertEquals(sparse.getHLLSparseRegister().getSparseMap(),
+        exact.getHLLSparseRegister().getSparseMap());
+
+    // switch threshold of p = 4 is smaller than the exact set threshold
+    HyperLogLog small = newExactHLL(4);
+    HyperLogLog dense = HyperLogLog.builder().setNumRegisterIndexBits(4)
+        .setEncoding(EncodingType.DENSE).build();
+    for (int i = 0; i <= HLLConstants.EXACT_SET_DEFAULT_THRESHOLD; i++) {
+      small.addLong(i);
+      dense.addLong(i);
+    }
+    assertEquals(EncodingType.DENSE, small.getEncoding());
+    assertEquals(dense, small);
+  }
+
+  @Test
+  public void testMerge() {
+    HyperLogLog dense = HyperLogLog.builder().setNumRegisterIndexBits(10)
+        .setEncoding(EncodingType.DENSE).build();
+    HyperLogLog exact1 = newExactHLL(10);
+    HyperLogLog exact2 = newExactHLL(12);
+    for (int i = 0; i < 40; i++) {
+      exact1.addInt(i);
+      exact2.addInt(i + 40);
+      dense.addInt(i);
+      dense.addInt(i + 40);
+    }
+
+    // exact sets of different p are merged exactly
+    HyperLogLog union = exact1.copy();
+    union.merge(exact2);
+    assertEquals(EncodingType.SPARSE, union.getEncoding());
+    HyperLogLog unionExact = HyperLogLog.builder().setNumRegisterIndexBits(10)
+        .setEncoding(EncodingType.EXACT).setExactSetThreshold(100).build();
+    unionExact.merge(exact1);
+    unionExact.merge(exact2);
+    assertEquals(EncodingType.EXACT, unionExact.getEncoding());
+    assertEquals(80, unionExact.count());
+    assertEquals(80, new HyperLogLogSetOps().unionCount(exact1, exact2));
+
+    // exact into dense
+    HyperLogLog target = HyperLogLog.builder().setNumRegisterIndexBits(10)
+        .setEncoding(EncodingType.DENSE).build();
+    target.merge(exact1);
+    target.merge(exact2);
+    assertEquals(dense, target);
+
+    // dense into exact
+    HyperLogLog exact = exact1.copy();
+    exact.merge(dense);
+    assertEquals(EncodingType.DENSE, exact.getEncoding());
+    assertEquals(dense, exact);
+
+    // exact into sparse and sparse into exact
+    HyperLogLog sparse = HyperLogLog.builder().setNumRegisterIndexBits(10).build();
+    sparse.merge(exact1);
+    sparse.merge(exact2);
+    exact = exact1.copy();
+    exact.merge(sparse);
+    assertEquals(EncodingType.SPARSE, exact.getEncoding());
+    assertEquals(sparse.getHLLSparseRegister().getSparseMap(),
+        exact.getHLLSparseRegister().getSparseMap());
+    assertEquals(union.getHLLSparseRegister().getSparseMap(),
+        exact.getHLLSparseRegister().getSparseMap());
+
+    // squash keeps hashcodes
+    HyperLogLog squashed = exact2.squash(8);
+    assertEquals(EncodingType.EXACT, squashed.getEncoding());
+    assertEquals(exact2.getHLLExactSet(), squashed.getHLLExactSet());
+  }
+
+  @Test
+  public void testSetOps() {
+    HyperLogLogSetOps setOps = new HyperLogLogSetOps();
+    HyperLogLog exact1 = newExactHLL(10);
+    HyperLogLog exact2 = newExactHLL(10);
+    HyperLogLog dense1 = HyperLogLog.builder().setNumRegisterIndexBits(10)
+        .setEncoding(EncodingType.DENSE).build();
+    HyperLogLog dense2 = HyperLogLog.builder().setNumRegisterIndexBits(10)
+        .setEncoding(EncodingType.DENSE).build();
+    // hashcode 0 is tracked outside of the table
+    for (long hashcode : new long[] { 0, Murmur3.hash64(1) }) {
+      exact1.add(hashcode);
+      exact2.add(hashcode);
+      dense1.add(hashcode);
+      dense2.add(hashcode);
+    }
+    for (int i = 0; i < 30; i++) {
+      exact1.addInt(i + 10);
+      dense1.addInt(i + 10);
+      exact2.addInt(i + 30);
+      dense2.addInt(i + 30);
+    }
+    assertEquals(EncodingType.EXACT, exact1.getEncoding());
+    assertEquals(52, setOps.unionCount(exact1, exact2));
+
+    // registers of exact sets are same as DENSE registers
+    assertEquals(setOps.unionCount(dense1, dense2), setOps.unionCount(exact1, dense2));
+    // likelihood maximization starts from the (exact) counts, so results
+    // differ slightly
+    double[] expected = new double[3];
+    double[] actual = new double[3];
+    setOps.estimateJoint(dense1, dense2, expected);
+    setOps.estimateJoint(exact1, exact2, actual);
+    assertArrayEquals(expected, actual, 0.01);
+    setOps.estimateJoint(dense1, exact2, actual);
+    assertArrayEquals(expected, actual, 0.01);
+  }
+
+  @Test
+  public void testSerialization() throws IOException {
+    HyperLogLog hll = HyperLogLog.builder().setEncoding(EncodingType.EXACT)
+        .setExactSetThreshold(100).build();
+    for (int i = 0; i < 50; i++) {
+      hll.addString("key" + i);
+    }
+    hll.add(0);
+
+    for (int format = 0; format < 3; format++) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      if (format == 0) {
+        HyperLogLogUtils.serializeHLL(out, hll);
+      } else if (format == 1) {
+        HyperLogLogUtils.serializeHLL(out, hll, DenseCodec.SMALLEST);
+      } else {
+        HyperLogLogUtils.serializeFramedHLL(out, hll, DenseCodec.SMALLEST);
+      }
+      byte[] bytes = out.toByteArray();
+      assertTrue(bytes.length < 51 * Long.BYTES + 32);
+      HyperLogLog deserialized = HyperLogLogUtils.deserializeHLL(new ByteArrayInputStream(bytes));
+      assertEquals(hll, deserialized);
+      assertEquals(100, deserialized.getExactSetThreshold());
+      assertEquals(51, HyperLogLogUtils.getEstimatedCountFromSerializedHLL(
+          new ByteArrayInputStream(bytes)));
+      ByteArrayInputStream in = new ByteArrayInputStream(bytes);
+      assertEquals(bytes.length, HyperLogLogUtils.skipHLL(in));
+      assertEquals(0, in.available());
+    }
+  }
+
+  @Test
+  public void testReset() {
+    HyperLogLogPool pool = new HyperLogLogPool();
+    HyperLogLog hll = pool.borrow(10, EncodingType.EXACT, true);
+    for (int i = 0; i < 1000; i++) {
+      hll.addInt(i);
+    }
+    assertEquals(EncodingType.DENSE, hll.getEncoding());
+    pool.release(hll);
+    assertEquals(EncodingType.EXACT, hll.getEncoding());
+    assertEquals(0, hll.count());
+    assertEquals(hll, pool.borrow(10, EncodingType.EXACT, true));
+    // pool keys of different encodings do not collide
+    assertEquals(EncodingType.SPARSE, pool.borrow(10).getEncoding());
+
+    HyperLogLog dense = HyperLogLog.builder().setNumRegisterIndexBits(10)
+        .setEncoding(EncodingType.DENSE).build();
+    for (int round = 0; round < 2; round++) {
+      for (int i = 0; i < 1000; i++) {
+        hll.addInt(i);
+        if (round == 0) {
+          dense.addInt(i);
+        }
+      }
+      assertEquals(dense, hll);
+      hll.reset();
+    }
+  }
+
+  @Test
+  public void testExactSet() {
+    HLLExactSet set = new HLLExactSet();
+    HLLExactSet other = new HLLExactSet();
+    for (long i = 0; i < 100; i++) {
+      assertTrue(set.add(i << 32));
+      assertFalse(set.add(i << 32));
+      other.add((99 - i) << 32);
+    }
+    assertEquals(100, set.size());
+    assertTrue(set.contains(0));
+    assertFalse(set.contains(1));
+    assertEquals(set, other);
+    assertEquals(set.hashCode(), other.hashCode());
+    long[] hashcodes = set.getHashcodes();
+    for (int i = 0; i < hashcodes.length; i++) {
+      assertEquals((long) i << 32, hashcodes[i]);
+    }
+    other.add(1);
+    assertNotEquals(set, other);
+    set.clear();
+    assertEquals(0, set.size());
+    assertFalse(set.contains(0));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidThreshold() {
+    HyperLogLog.builder().setExactSetThreshold(HLLConstants.EXACT_SET_MAX_THRESHOLD + 1).build();
+  }
+}
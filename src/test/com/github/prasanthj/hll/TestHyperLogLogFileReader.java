@@ -0,0 +1,201 @@
+/**
+ * Copyright 2017 Prasanth Jayachandran
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.prasanthj.hll;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.github.prasanthj.hll.HyperLogLog.EncodingType;
+import com.github.prasanthj.hll.HyperLogLogUtils.DenseCodec;
+
+public class TestHyperLogLogFileReader {
+
+  private File testFile = new File("./TestHyperLogLogFileReader.hll");
+
+  @After
+  public void close() {
+    if (testFile.exists()) {
+      testFile.delete();
+    }
+  }
+
+  private List<HyperLogLog> buildHLLs() {
+    List<HyperLogLog> hlls = new ArrayList<HyperLogLog>();
+    int[] sizes = { 0, 10, 1000, 100000 };
+    for (int p = 10; p <= 14; p += 2) {
+      for (int size : sizes) {
+        for (EncodingType enc : EncodingType.values()) {
+          HyperLogLog hll = HyperLogLog.builder().setNumRegisterIndexBits(p).setEncoding(enc)
+              .build();
+          for (int i = 0; i < size; i++) {
+            hll.addLong(i * 31L + p);
+          }
+          hlls.add(hll);
+        }
+      }
+    }
+    return hlls;
+  }
+
+  // serialize using all formats (unframed v1, unframed v2 and framed)
+  private void serialize(ByteArrayOutputStream out, HyperLogLog hll, int i) throws IOException {
+    switch (i % 4) {
+    case 0:
+      HyperLogLogUtils.serializeHLL(out, hll);
+      break;
+    case 1:
+      HyperLogLogUtils.serializeHLL(out, hll, DenseCodec.HUFFMAN);
+      break;
+    case 2:
+      HyperLogLogUtils.serializeFramedHLL(out, hll);
+      break;
+    default:
+      HyperLogLogUtils.serializeFramedHLL(out, hll, DenseCodec.SMALLEST);
+      break;
+    }
+  }
+
+  @Test
+  public void testCrc32c() {
+    Crc32c crc = new Crc32c();
+    byte[] bytes = "123456789".getBytes(StandardCharsets.US_ASCII);
+    crc.update(bytes, 0, bytes.length);
+    assertEquals(0xE3069283L, crc.getValue());
+    crc.reset();
+    for (byte b : bytes) {
+      crc.update(b);
+    }
+    assertEquals(0xE3069283L, crc.getValue());
+    crc.reset();
+    crc.update(new byte[32], 0, 32);
+    assertEquals(0x8A9136AAL, crc.getValue());
+  }
+
+  @Test
+  public void testFramedSerialization() throws IOException {
+    for (HyperLogLog hll : buildHLLs()) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      HyperLogLogUtils.serializeFramedHLL(out, hll, DenseCodec.SMALLEST);
+      byte[] bytes = out.toByteArray();
+      assertEquals(hll, HyperLogLogUtils.deserializeHLL(new ByteArrayInputStream(bytes)));
+      assertEquals(hll.count(),
+          HyperLogLogUtils.getEstimatedCountFromSerializedHLL(new ByteArrayInputStream(bytes)));
+      assertEquals(bytes.length, HyperLogLogUtils.skipHLL(new ByteArrayInputStream(bytes)));
+    }
+  }
+
+  @Test
+  public void testChecksumMismatch() throws IOException {
+    HyperLogLog hll = HyperLogLog.builder().setEncoding(EncodingType.DENSE).build();
+    for (int i = 0; i < 10000; i++) {
+      hll.addLong(i);
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    HyperLogLogUtils.serializeFramedHLL(out, hll);
+    byte[] bytes = out.toByteArray();
+    bytes[bytes.length / 2] ^= 0x10;
+    try {
+      HyperLogLogUtils.deserializeHLL(new ByteArrayInputStream(bytes));
+      fail("Expected checksum mismatch");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testSkipHLL() throws IOException {
+    List<HyperLogLog> hlls = buildHLLs();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    List<Integer> lengths = new ArrayList<Integer>();
+    for (int i = 0; i < hlls.size(); i++) {
+      int before = out.size();
+      serialize(out, hlls.get(i), i);
+      lengths.add(out.size() - before);
+    }
+    ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+    for (int i = 0; i < hlls.size(); i++) {
+      if (i % 3 == 0) {
+        assertEquals(hlls.get(i), HyperLogLogUtils.deserializeHLL(in));
+      } else {
+        assertEquals((long) lengths.get(i), HyperLogLogUtils.skipHLL(in));
+      }
+    }
+    assertEquals(0, in.available());
+  }
+
+  @Test
+  public void testFileReader() throws IOException {
+    List<HyperLogLog> hlls = buildHLLs();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (int i = 0; i < hlls.size(); i++) {
+      serialize(out, hlls.get(i), i);
+    }
+    try (FileOutputStream fos = new FileOutputStream(testFile)) {
+      out.writeTo(fos);
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try (HyperLogLogFileReader reader = new HyperLogLogFileReader(testFile)) {
+      assertEquals(hlls.size(), reader.getNumHLLs());
+      // random access in reverse order
+      for (int i = hlls.size() - 1; i >= 0; i--) {
+        assertEquals(hlls.get(i), reader.read(i));
+      }
+      HyperLogLog[] all = reader.readAll(executor);
+      for (int i = 0; i < hlls.size(); i++) {
+        assertEquals(hlls.get(i), all[i]);
+        assertEquals(hlls.get(i).count(), all[i].count());
+      }
+      for (int parallelism : new int[] { 1, 2, hlls.size() + 1 }) {
+        all = reader.readAll(executor, parallelism);
+        for (int i = 0; i < hlls.size(); i++) {
+          assertEquals(hlls.get(i), all[i]);
+        }
+      }
+      assertEquals(out.size(), reader.getOffset(hlls.size() - 1)
+          + reader.getLength(hlls.size() - 1));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidParallelism() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    serialize(out, buildHLLs().get(0), 0);
+    try (FileOutputStream fos = new FileOutputStream(testFile)) {
+      out.writeTo(fos);
+    }
+    try (HyperLogLogFileReader reader = new HyperLogLogFileReader(testFile)) {
+      reader.readAll(null, 0);
+    }
+  }
+}
@@ -0,0 +1,144 @@
+/**
+ * Copyright 2017 Prasanth Jayachandran
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.prasanthj.hll;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.github.prasanthj.hll.HyperLogLog.EncodingType;
+
+public class TestHyperLogLogHighPrecision {
+
+  private static HyperLogLog newHLL(int p, EncodingType encoding) {
+    return HyperLogLog.builder().setNumRegisterIndexBits(p).setEncoding(encoding).build();
+  }
+
+  @Test
+  public void testAccuracy() {
+    Random rand = new Random(HLLConstants.MAX_P_VALUE);
+    for (int p = HLLConstants.MAX_BIAS_P_VALUE + 1; p <= HLLConstants.MAX_P_VALUE; p++) {
+      for (int size : new int[] { 1000, 50000, 500000 }) {
+        HyperLogLog hll = newHLL(p, EncodingType.SPARSE);
+        HyperLogLog dense = newHLL(p, EncodingType.DENSE);
+        long[] batch = new long[1024];
+        int n = 0;
+        for (int i = 0; i < size; i++) {
+          long hashcode = rand.nextLong();
+          hll.add(hashcode);
+          batch[n++] = hashcode;
+          if (n == batch.length) {
+            dense.addAll(batch, 0, n);
+            n = 0;
+          }
+        }
+        dense.addAll(batch, 0, n);
+        double threshold = 4 * hll.getStandardError() * size;
+        assertEquals(size, hll.count(), threshold);
+        assertEquals(size, dense.count(), threshold);
+      }
+    }
+  }
+
+  @Test
+  public void testSparseTempList() {
+    // every hashcode is retained when the temp list is merged
+    HyperLogLog hll = newHLL(HLLConstants.MAX_P_VALUE, EncodingType.SPARSE);
+    HLLSparseRegister register = hll.getHLLSparseRegister();
+    Set<Integer> keys = new HashSet<Integer>();
+    for (int i = 0; i < 10 * HLLConstants.TEMP_LIST_DEFAULT_SIZE; i++) {
+      long hashcode = Murmur3.hash64(i);
+      hll.add(hashcode);
+      keys.add(register.encodeHash(hashcode) & ((1 << HLLConstants.P_PRIME_VALUE) - 1));
+    }
+    assertEquals(EncodingType.SPARSE, hll.getEncoding());
+    assertEquals(keys.size(), register.getSparseMap().size());
+  }
+
+  @Test
+  public void testSerialization() throws IOException {
+    for (int p = HLLConstants.MAX_BIAS_P_VALUE; p <= HLLConstants.MAX_P_VALUE; p++) {
+      for (EncodingType encoding : new EncodingType[] { EncodingType.SPARSE,
+          EncodingType.DENSE }) {
+        HyperLogLog hll = newHLL(p, encoding);
+        for (int i = 0; i < 20000; i++) {
+          hll.addInt(i);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        HyperLogLogUtils.serializeHLL(out, hll);
+        byte[] bytes = out.toByteArray();
+        HyperLogLog deserialized = HyperLogLogUtils
+            .deserializeHLL(new ByteArrayInputStream(bytes));
+        assertEquals(p, deserialized.getNumRegisterIndexBits());
+        assertEquals(hll, deserialized);
+        assertEquals(bytes.length, HyperLogLogUtils.skipHLL(new ByteArrayInputStream(bytes)));
+      }
+    }
+  }
+
+  @Test
+  public void testParallelScan() {
+    final int p = 18;
+    final int m = 1 << p;
+    Random rand = new Random(p);
+    HLLDenseRegister register1 = new HLLDenseRegister(p);
+    HLLDenseRegister register2 = new HLLDenseRegister(p);
+    for (int i = 0; i < 2 * m; i++) {
+      register1.add(rand.nextLong());
+      register2.add(rand.nextLong());
+    }
+
+    // scan of single register is the histogram
+    int[] result = HLLDenseRegister.scanRegisters(register1.getRegister(), null, false);
+    assertArrayEquals(register1.getRegisterHistogram(),
+        Arrays.copyOf(result, HLLConstants.NUM_REGISTER_VALUES));
+    assertEquals(register1.getMaxRegisterValue(), result[HLLConstants.NUM_REGISTER_VALUES]);
+
+    // scan with write is same as merge
+    HLLDenseRegister merged = register1.copy();
+    merged.merge(register2);
+    byte[] union = register1.getRegister().clone();
+    result = HLLDenseRegister.scanRegisters(union, register2.getRegister(), true);
+    assertArrayEquals(merged.getRegister(), union);
+    assertArrayEquals(merged.getRegisterHistogram(),
+        Arrays.copyOf(result, HLLConstants.NUM_REGISTER_VALUES));
+
+    HyperLogLog hll1 = newHLL(p, EncodingType.DENSE);
+    HyperLogLog hll2 = newHLL(p, EncodingType.DENSE);
+    hll1.setHLLDenseRegister(register1.getRegister().clone());
+    hll2.setHLLDenseRegister(register2.getRegister().clone());
+    long unionCount = new HyperLogLogSetOps().unionCount(hll1, hll2);
+    hll1.merge(hll2);
+    assertEquals(hll1.count(), unionCount);
+    assertTrue(Math.abs(unionCount - 4.0 * m) < 0.01 * 4 * m);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidP() {
+    newHLL(HLLConstants.MAX_P_VALUE + 1, EncodingType.SPARSE);
+  }
+}
@@ -0,0 +1,179 @@
+/**
+ * Copyright 2017 Prasanth Jayachandran
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.prasanthj.hll;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import com.github.prasanthj.hll.HyperLogLog.EncodingType;
+
+@RunWith(value = Parameterized.class)
+public class TestHyperLogLogIngestPipeline {
+
+  private int numWorkers;
+
+  public TestHyperLogLogIngestPipeline(int numWorkers) {
+    this.numWorkers = numWorkers;
+  }
+
+  @Parameters
+  public static Collection<Object[]> data() {
+    Object[][] data = new Object[][] { { 1 }, { 3 }, { 8 } };
+    return Arrays.asList(data);
+  }
+
+  @Test
+  public void testSameAsAdd() throws InterruptedException {
+    final int p = 16;
+    final int numProducers = 4;
+    final long[][] batches = new long[numProducers * 20][];
+    Random rand = new Random(numWorkers);
+    HyperLogLog expected = HyperLogLog.builder().setNumRegisterIndexBits(p)
+        .setEncoding(EncodingType.DENSE).build();
+    for (int b = 0; b < batches.length; b++) {
+      batches[b] = new long[5000];
+      for (int i = 0; i < batches[b].length; i++) {
+        batches[b][i] = rand.nextLong();
+        expected.add(batches[b][i]);
+      }
+    }
+
+    try (final HyperLogLogIngestPipeline pipeline = new HyperLogLogIngestPipeline(p,
+        numWorkers)) {
+      assertEquals(0, pipeline.count());
+      List<Thread> producers = new ArrayList<Thread>();
+      for (int t = 0; t < numProducers; t++) {
+        final int producer = t;
+        Thread thread = new Thread(() -> {
+          try {
+            for (int b = producer; b < batches.length; b += numProducers) {
+              pipeline.submit(batches[b]);
+              if (b % 7 == 0) {
+                pipeline.count();
+              }
+            }
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        });
+        producers.add(thread);
+        thread.start();
+      }
+      for (Thread thread : producers) {
+        thread.join();
+      }
+
+      pipeline.flush();
+      assertEquals(expected.count(), pipeline.count());
+      assertEquals(expected, pipeline.toHyperLogLog());
+
+      // submitted range of a batch
+      HyperLogLog copy = pipeline.toHyperLogLog();
+      long[] batch = { 0, 1L << 20, rand.nextLong(), rand.nextLong() };
+      pipeline.submit(batch, 2, 2);
+      pipeline.close();
+      copy.add(batch[2]);
+      copy.add(batch[3]);
+      assertEquals(copy, pipeline.toHyperLogLog());
+      assertEquals(copy.count(), pipeline.count());
+    }
+  }
+
+  @Test
+  public void testClosed() throws InterruptedException {
+    HyperLogLogIngestPipeline pipeline = new HyperLogLogIngestPipeline(10, numWorkers);
+    pipeline.submit(new long[] { 1, 2, 3 });
+    pipeline.close();
+    pipeline.close();
+    assertTrue(pipeline.count() > 0);
+    try {
+      pipeline.submit(new long[] { 4 });
+      throw new AssertionError("Expected IllegalStateException");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testCloseWhileSubmitting() throws InterruptedException {
+    // tiny queues, so producers are often blocked on full queues at close
+    HyperLogLog.HyperLogLogBuilder builder = HyperLogLog.builder().setNumRegisterIndexBits(12);
+    final HyperLogLogIngestPipeline pipeline = new HyperLogLogIngestPipeline(builder, numWorkers,
+        1);
+    assertEquals(EncodingType.SPARSE, builder.build().getEncoding());
+    final int numProducers = 4;
+    final List<List<long[]>> accepted = new ArrayList<List<long[]>>();
+    List<Thread> producers = new ArrayList<Thread>();
+    for (int t = 0; t < numProducers; t++) {
+      final List<long[]> batches = new ArrayList<long[]>();
+      final Random rand = new Random(t);
+      accepted.add(batches);
+      Thread producer = new Thread(() -> {
+        try {
+          while (true) {
+            long[] batch = new long[64];
+            for (int i = 0; i < batch.length; i++) {
+              batch[i] = rand.nextLong();
+            }
+            pipeline.submit(batch);
+            batches.add(batch);
+          }
+        } catch (IllegalStateException e) {
+          // closed
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+      });
+      producers.add(producer);
+      producer.start();
+    }
+    Thread.sleep(50);
+    pipeline.close();
+    for (Thread producer : producers) {
+      producer.join(10000);
+      assertTrue(!producer.isAlive());
+    }
+
+    // every accepted batch is applied
+    HyperLogLog expected = HyperLogLog.builder().setNumRegisterIndexBits(12)
+        .setEncoding(EncodingType.DENSE).build();
+    for (List<long[]> batches : accepted) {
+      for (long[] batch : batches) {
+        for (long hashcode : batch) {
+          expected.add(hashcode);
+        }
+      }
+    }
+    assertEquals(expected, pipeline.toHyperLogLog());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidNumWorkers() {
+    new HyperLogLogIngestPipeline(4, 17);
+  }
+}
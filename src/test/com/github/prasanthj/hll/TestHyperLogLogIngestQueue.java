@@ -0,0 +1,159 @@
+/**
+ * Copyright 2017 Prasanth Jayachandran
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.prasanthj.hll;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import com.github.prasanthj.hll.HyperLogLog.EncodingType;
+import com.github.prasanthj.hll.HyperLogLogIngestQueue.OverflowPolicy;
+
+@RunWith(value = Parameterized.class)
+public class TestHyperLogLogIngestQueue {
+
+  private OverflowPolicy policy;
+  private int capacity;
+
+  public TestHyperLogLogIngestQueue(OverflowPolicy policy, int capacity) {
+    this.policy = policy;
+    this.capacity = capacity;
+  }
+
+  @Parameters
+  public static Collection<Object[]> data() {
+    List<Object[]> data = new ArrayList<Object[]>();
+    for (OverflowPolicy policy : OverflowPolicy.values()) {
+      data.add(new Object[] { policy, 4 });
+      data.add(new Object[] { policy, 4096 });
+    }
+    return data;
+  }
+
+  private static HyperLogLog newDenseHLL() {
+    return HyperLogLog.builder().setEncoding(EncodingType.DENSE).build();
+  }
+
+  @Test
+  public void testConcurrentProducers() throws InterruptedException {
+    final int numProducers = 4;
+    final int perProducer = 50000;
+    final HyperLogLogIngestQueue queue = new HyperLogLogIngestQueue(newDenseHLL(), capacity,
+        policy);
+    assertTrue(queue.getCapacity() >= capacity);
+    List<Thread> producers = new ArrayList<Thread>();
+    for (int t = 0; t < numProducers; t++) {
+      final int offset = t * perProducer / 2;
+      Thread thread = new Thread(() -> {
+        for (int i = offset; i < offset + perProducer; i++) {
+          queue.addLong(i);
+        }
+      });
+      producers.add(thread);
+      thread.start();
+    }
+    for (Thread thread : producers) {
+      thread.join();
+    }
+
+    HyperLogLog expected = newDenseHLL();
+    for (int i = 0; i < (numProducers - 1) * perProducer / 2 + perProducer; i++) {
+      expected.addLong(i);
+    }
+    long count = queue.count();
+    assertEquals(0, queue.getQueueDepth());
+    if (queue.getNumDropped() == 0) {
+      assertEquals(expected.count(), count);
+      assertEquals(expected, queue.toHyperLogLog());
+    } else {
+      assertEquals(OverflowPolicy.DROP, policy);
+      assertTrue(count <= expected.count());
+    }
+    if (policy != OverflowPolicy.INLINE) {
+      assertEquals(0, queue.getNumInlineAdds());
+    }
+    assertTrue(queue.getNumDrains() > 0);
+    assertTrue(queue.getDrainNanos() > 0);
+    queue.close();
+  }
+
+  @Test
+  public void testSparseToDense() {
+    // batches are applied with addAll() across the switch to DENSE
+    HyperLogLogIngestQueue queue = new HyperLogLogIngestQueue(
+        HyperLogLog.builder().build(), capacity, policy);
+    HyperLogLog expected = HyperLogLog.builder().build();
+    for (int i = 0; i < 20000; i++) {
+      queue.addLong(i);
+      expected.addLong(i);
+    }
+    long count = queue.count();
+    assertEquals(0, queue.getQueueDepth());
+    if (queue.getNumDropped() == 0) {
+      HyperLogLog hll = queue.toHyperLogLog();
+      assertEquals(EncodingType.DENSE, hll.getEncoding());
+      assertEquals(expected, hll);
+      assertEquals(expected.count(), count);
+    }
+    long numDrains = queue.getNumDrains();
+    assertTrue(numDrains > 0);
+
+    // idle consumer does not drain empty batches
+    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(5));
+    assertEquals(numDrains, queue.getNumDrains());
+    queue.close();
+  }
+
+  @Test
+  public void testClose() {
+    HyperLogLogIngestQueue queue = new HyperLogLogIngestQueue(
+        HyperLogLog.builder().build(), capacity, policy);
+    for (int i = 0; i < 100; i++) {
+      queue.addString("key" + i);
+    }
+    queue.close();
+    queue.close();
+    HyperLogLog expected = HyperLogLog.builder().build();
+    for (int i = 0; i < 100; i++) {
+      expected.addString("key" + i);
+    }
+    if (queue.getNumDropped() == 0) {
+      assertEquals(expected.count(), queue.count());
+    }
+    try {
+      queue.add(1);
+      throw new AssertionError("Expected IllegalStateException");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidCapacity() {
+    new HyperLogLogIngestQueue(HyperLogLog.builder().build(), 1, policy);
+  }
+}
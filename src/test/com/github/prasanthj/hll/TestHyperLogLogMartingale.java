@@ -0,0 +1,176 @@
+/**
+ * Copyright 2017 Prasanth Jayachandran
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.prasanthj.hll;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.github.prasanthj.hll.HyperLogLog.EncodingType;
+import com.github.prasanthj.hll.HyperLogLogUtils.DenseCodec;
+
+public class TestHyperLogLogMartingale {
+
+  private static HyperLogLog newMartingaleHLL(int p, EncodingType encoding) {
+    return HyperLogLog.builder().setNumRegisterIndexBits(p).setEncoding(encoding)
+        .enableMartingaleEstimator().build();
+  }
+
+  @Test
+  public void testAccuracy() {
+    final int p = 10;
+    final int trials = 100;
+    final int size = 50000;
+    Random rand = new Random(p);
+    double martingaleSquaredError = 0;
+    double squaredError = 0;
+    for (int t = 0; t < trials; t++) {
+      HyperLogLog martingale = newMartingaleHLL(p, EncodingType.SPARSE);
+      HyperLogLog hll = HyperLogLog.builder().setNumRegisterIndexBits(p).build();
+      for (int i = 0; i < size; i++) {
+        long hashcode = rand.nextLong();
+        martingale.add(hashcode);
+        hll.add(hashcode);
+      }
+      assertEquals(EncodingType.DENSE, martingale.getEncoding());
+      assertEquals(hll.getHLLDenseRegister(), martingale.getHLLDenseRegister());
+      double martingaleError = (martingale.count() - size) / (double) size;
+      double error = (hll.count() - size) / (double) size;
+      martingaleSquaredError += martingaleError * martingaleError;
+      squaredError += error * error;
+    }
+    assertTrue(martingaleSquaredError < squaredError);
+    assertTrue(Math.sqrt(martingaleSquaredError / trials) < 1.2
+        * newMartingaleHLL(p, EncodingType.DENSE).getStandardError());
+  }
+
+  @Test
+  public void testEncodings() {
+    for (EncodingType encoding : EncodingType.values()) {
+      HyperLogLog hll = newMartingaleHLL(14, encoding);
+      for (int i = 0; i < 1000; i++) {
+        hll.addInt(i);
+        hll.addInt(i);
+      }
+      assertTrue(hll.hasMartingaleEstimate());
+      assertEquals(1000, hll.count(), 1000 * 3 * hll.getStandardError());
+      if (encoding != EncodingType.DENSE) {
+        // sparse map has p' index bits and is near exact
+        assertEquals(EncodingType.SPARSE, hll.getEncoding());
+        assertEquals(1000, hll.count(), 2);
+        HyperLogLog sparse = HyperLogLog.builder().build();
+        for (int i = 0; i < 1000; i++) {
+          sparse.addInt(i);
+        }
+        assertEquals(sparse.getHLLSparseRegister().getSparseMap(),
+            hll.getHLLSparseRegister().getSparseMap());
+      }
+    }
+  }
+
+  @Test
+  public void testMergeFallback() {
+    HyperLogLog hll = newMartingaleHLL(12, EncodingType.SPARSE);
+    HyperLogLog other = HyperLogLog.builder().setNumRegisterIndexBits(12).build();
+    HyperLogLog expected = HyperLogLog.builder().setNumRegisterIndexBits(12).build();
+    for (int i = 0; i < 10000; i++) {
+      hll.addLong(i);
+      other.addLong(i + 5000);
+      expected.addLong(i);
+      expected.addLong(i + 5000);
+    }
+    assertTrue(hll.hasMartingaleEstimate());
+    hll.merge(other);
+    assertTrue(hll.isMartingaleEstimatorEnabled());
+    assertFalse(hll.hasMartingaleEstimate());
+    assertEquals(expected, hll);
+    assertEquals(1.04 / Math.sqrt(1 << 12), hll.getStandardError(), 0.0);
+
+    // martingale estimate is valid again after reset
+    hll.reset();
+    assertTrue(hll.hasMartingaleEstimate());
+    assertEquals(0, hll.count());
+    hll.addLong(1);
+    assertEquals(1, hll.count());
+  }
+
+  @Test
+  public void testCopy() {
+    HyperLogLog hll = newMartingaleHLL(10, EncodingType.SPARSE);
+    for (int i = 0; i < 5000; i++) {
+      hll.addInt(i);
+    }
+    HyperLogLog copy = hll.copy();
+    HyperLogLog snapshot = hll.snapshot();
+    for (int i = 5000; i < 10000; i++) {
+      hll.addInt(i);
+      copy.addInt(i);
+    }
+    assertEquals(hll, copy);
+    assertEquals(hll.count(), copy.count());
+    assertTrue(snapshot.count() < hll.count());
+  }
+
+  @Test
+  public void testSerialization() throws IOException {
+    for (EncodingType encoding : EncodingType.values()) {
+      for (int size : new int[] { 10, 1000, 100000 }) {
+        HyperLogLog hll = newMartingaleHLL(12, encoding);
+        for (int i = 0; i < size; i++) {
+          hll.addInt(i);
+        }
+        for (int format = 0; format < 3; format++) {
+          ByteArrayOutputStream out = new ByteArrayOutputStream();
+          if (format == 0) {
+            HyperLogLogUtils.serializeHLL(out, hll);
+          } else if (format == 1) {
+            HyperLogLogUtils.serializeHLL(out, hll, DenseCodec.HUFFMAN);
+          } else {
+            HyperLogLogUtils.serializeFramedHLL(out, hll);
+          }
+          byte[] bytes = out.toByteArray();
+          HyperLogLog deserialized = HyperLogLogUtils
+              .deserializeHLL(new ByteArrayInputStream(bytes));
+          assertTrue(deserialized.hasMartingaleEstimate());
+          assertEquals(hll, deserialized);
+          assertEquals(hll.count(), HyperLogLogUtils
+              .getEstimatedCountFromSerializedHLL(new ByteArrayInputStream(bytes)));
+          ByteArrayInputStream in = new ByteArrayInputStream(bytes);
+          assertEquals(bytes.length, HyperLogLogUtils.skipHLL(in));
+
+          // running estimate continues after deserialization
+          for (int i = size; i < 2 * size; i++) {
+            deserialized.addInt(i);
+          }
+          HyperLogLog continued = hll.copy();
+          for (int i = size; i < 2 * size; i++) {
+            continued.addInt(i);
+          }
+          assertEquals(continued.getMartingaleEstimate(), deserialized.getMartingaleEstimate(),
+              1e-6 * size);
+        }
+      }
+    }
+  }
+}
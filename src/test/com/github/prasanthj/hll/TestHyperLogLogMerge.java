@@ -16,6 +16,7 @@
 
 package com.github.prasanthj.hll;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 
 import java.util.Arrays;
@@ -145,4 +146,41 @@ public class TestHyperLogLogMerge {
     assertEquals(expected, actual, delta);
   }
 
+  @Test
+  public void testHLLMergeDifferentP() {
+    // registers after merging larger p should be same as adding all values to smaller p
+    EncodingType[] encodings = { EncodingType.SPARSE, EncodingType.DENSE };
+    for (EncodingType targetEnc : encodings) {
+      for (EncodingType sourceEnc : encodings) {
+        HyperLogLog target = HyperLogLog.builder().setNumRegisterIndexBits(12)
+            .setEncoding(targetEnc).build();
+        HyperLogLog expected = HyperLogLog.builder().setNumRegisterIndexBits(12)
+            .setEncoding(targetEnc).build();
+        HyperLogLog source = HyperLogLog.builder().setNumRegisterIndexBits(16)
+            .setEncoding(sourceEnc).build();
+        for (int i = 0; i < size; i++) {
+          expected.addLong(i);
+          if (i < size / 2) {
+            target.addLong(i);
+          } else {
+            source.addLong(i);
+          }
+        }
+        target.merge(source);
+        if (target.getEncoding() == EncodingType.DENSE) {
+          if (expected.getEncoding() == EncodingType.SPARSE) {
+            expected.merge(HyperLogLog.builder().setNumRegisterIndexBits(12)
+                .setEncoding(EncodingType.DENSE).build());
+          }
+          assertArrayEquals(expected.getHLLDenseRegister().getRegister(),
+              target.getHLLDenseRegister().getRegister());
+        } else {
+          assertEquals(EncodingType.SPARSE, expected.getEncoding());
+          assertEquals(expected.getHLLSparseRegister().getSparseMap(),
+              target.getHLLSparseRegister().getSparseMap());
+        }
+        assertEquals(expected.count(), target.count());
+      }
+    }
+  }
 }
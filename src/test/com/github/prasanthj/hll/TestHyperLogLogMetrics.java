@@ -0,0 +1,157 @@
+/**
+ * Copyright 2017 Prasanth Jayachandran
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.prasanthj.hll;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+import com.github.prasanthj.hll.HyperLogLog.EncodingType;
+import com.github.prasanthj.hll.HyperLogLogUtils.DenseCodec;
+
+public class TestHyperLogLogMetrics {
+
+  @Test
+  public void testAddAndPromotion() {
+    HyperLogLogStats stats = new HyperLogLogStats();
+    HyperLogLog hll = HyperLogLog.builder().setMetrics(stats).build();
+    HyperLogLog expected = HyperLogLog.builder().build();
+    assertNull(expected.getMetrics());
+    int size = 100000;
+    for (int i = 0; i < size; i++) {
+      hll.addLong(i);
+      expected.addLong(i);
+    }
+    // metrics must not change the hyperloglog
+    assertEquals(expected, hll);
+    assertEquals(expected.count(), hll.count());
+
+    assertEquals(size, stats.getSparseAdds() + stats.getDenseAdds());
+    assertTrue(stats.getSparseAdds() > 0);
+    assertTrue(stats.getDenseAdds() > 0);
+    assertTrue(stats.getRegisterUpdates() > 0 && stats.getRegisterUpdates() < size);
+    assertTrue(stats.getTempListMerges() > 0);
+    assertEquals(1, stats.getPromotions());
+    assertTrue(stats.getAvgSparseEntriesAtPromotion() > 0);
+
+    // metrics survive reset and snapshot
+    hll.reset();
+    hll.snapshot().addLong(1);
+    assertEquals(size + 1, stats.getSparseAdds() + stats.getDenseAdds());
+
+    stats.reset();
+    assertEquals(0, stats.getSparseAdds() + stats.getDenseAdds());
+    assertEquals(0, stats.getPromotions());
+  }
+
+  @Test
+  public void testDuplicateSparseAdds() {
+    HyperLogLogStats stats = new HyperLogLogStats();
+    HyperLogLog hll = HyperLogLog.builder().setMetrics(stats).build();
+    int size = 1000;
+    for (int i = 0; i < size; i++) {
+      hll.addLong(42);
+    }
+    assertEquals(1, hll.count());
+    assertEquals(EncodingType.SPARSE, hll.getEncoding());
+    assertEquals(size, stats.getSparseAdds());
+    // only the first add updated the sparse map
+    assertEquals(1, stats.getRegisterUpdates());
+
+    // merges of a full temp list
+    stats.reset();
+    for (int i = 0; i < 3 * HLLConstants.TEMP_LIST_DEFAULT_SIZE; i++) {
+      hll.addLong(i % 10);
+    }
+    assertEquals(11, hll.count());
+    assertEquals(10, stats.getRegisterUpdates());
+    assertTrue(stats.getTempListMerges() >= 3);
+  }
+
+  @Test
+  public void testMerge() {
+    HyperLogLogStats stats = new HyperLogLogStats();
+    HyperLogLog hll = HyperLogLog.builder().setMetrics(stats).build();
+    HyperLogLog other = HyperLogLog.builder().setEncoding(EncodingType.DENSE).build();
+    for (int i = 0; i < 1000; i++) {
+      other.addLong(i);
+    }
+    hll.merge(other);
+    assertEquals(1, stats.getMerges());
+    // SPARSE to DENSE switch while merging
+    assertEquals(1, stats.getPromotions());
+    assertEquals(0, stats.getSparseAdds() + stats.getDenseAdds());
+  }
+
+  @Test
+  public void testSerDe() throws IOException {
+    HyperLogLogStats stats = new HyperLogLogStats();
+    HyperLogLog hll = HyperLogLog.builder().setMetrics(stats).build();
+    for (int i = 0; i < 10000; i++) {
+      hll.addLong(i);
+    }
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    HyperLogLogUtils.serializeHLL(out, hll);
+    HyperLogLogUtils.serializeHLL(out, hll, DenseCodec.HUFFMAN);
+    HyperLogLogUtils.serializeFramedHLL(out, hll);
+    assertEquals(3, stats.getSerializations());
+    assertEquals(out.size(), stats.getSerializedBytes());
+
+    ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+    for (int i = 0; i < 3; i++) {
+      HyperLogLog result = HyperLogLogUtils.deserializeHLL(in, stats);
+      assertEquals(hll, result);
+      assertSame(stats, result.getMetrics());
+    }
+    assertEquals(3, stats.getDeserializations());
+    assertEquals(out.size(), stats.getDeserializedBytes());
+
+    // deserialized hyperloglog reports to metrics
+    long adds = stats.getDenseAdds();
+    HyperLogLogUtils.deserializeHLL(new ByteArrayInputStream(out.toByteArray()), stats)
+        .addLong(1);
+    assertEquals(adds + 1, stats.getDenseAdds());
+  }
+
+  @Test
+  public void testMBean() throws JMException {
+    HyperLogLogStats stats = new HyperLogLogStats();
+    ObjectName name = stats.register("test");
+    try {
+      HyperLogLog hll = HyperLogLog.builder().setMetrics(stats).build();
+      for (int i = 0; i < 100; i++) {
+        hll.addLong(i);
+      }
+      assertEquals(100L, ManagementFactory.getPlatformMBeanServer()
+          .getAttribute(name, "SparseAdds"));
+    } finally {
+      HyperLogLogStats.unregister(name);
+    }
+  }
+}
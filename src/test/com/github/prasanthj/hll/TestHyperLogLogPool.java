@@ -0,0 +1,167 @@
+/**
+ * Copyright 2017 Prasanth Jayachandran
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.prasanthj.hll;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import com.github.prasanthj.hll.HyperLogLog.EncodingType;
+
+public class TestHyperLogLogPool {
+
+  private static void addRange(HyperLogLog hll, int from, int to) {
+    for (int i = from; i < to; i++) {
+      hll.addLong(i);
+    }
+  }
+
+  @Test
+  public void testResetSparse() {
+    HyperLogLog hll = HyperLogLog.builder().build();
+    addRange(hll, 0, 100);
+    hll.reset();
+    assertEquals(EncodingType.SPARSE, hll.getEncoding());
+    assertEquals(0, hll.count());
+
+    HyperLogLog expected = HyperLogLog.builder().build();
+    addRange(hll, 1000, 1100);
+    addRange(expected, 1000, 1100);
+    assertEquals(expected, hll);
+    assertEquals(expected.count(), hll.count());
+  }
+
+  @Test
+  public void testResetDense() {
+    HyperLogLog hll = HyperLogLog.builder().build();
+    addRange(hll, 0, 100000);
+    assertEquals(EncodingType.DENSE, hll.getEncoding());
+    byte[] register = hll.getHLLDenseRegister().getRegister();
+    hll.reset();
+    assertEquals(EncodingType.SPARSE, hll.getEncoding());
+    assertEquals(0, hll.count());
+
+    // dense register is reused when switching to DENSE again
+    HyperLogLog expected = HyperLogLog.builder().build();
+    addRange(hll, 200000, 300000);
+    addRange(expected, 200000, 300000);
+    assertEquals(EncodingType.DENSE, hll.getEncoding());
+    assertSame(register, hll.getHLLDenseRegister().getRegister());
+    assertEquals(expected, hll);
+    assertEquals(expected.count(), hll.count());
+
+    // sparse register is reused after the second reset
+    HLLSparseRegister sparse = null;
+    for (int round = 0; round < 3; round++) {
+      hll.reset();
+      if (sparse != null) {
+        assertSame(sparse, hll.getHLLSparseRegister());
+      }
+      sparse = hll.getHLLSparseRegister();
+      addRange(hll, 0, 100000);
+      assertSame(register, hll.getHLLDenseRegister().getRegister());
+    }
+  }
+
+  @Test
+  public void testResetDenseEncoding() {
+    HyperLogLog hll = HyperLogLog.builder().setEncoding(EncodingType.DENSE)
+        .enableBitPacking(false).build();
+    addRange(hll, 0, 100000);
+    hll.reset();
+    assertEquals(EncodingType.DENSE, hll.getEncoding());
+    assertEquals(0, hll.count());
+
+    HyperLogLog expected = HyperLogLog.builder().setEncoding(EncodingType.DENSE)
+        .enableBitPacking(false).build();
+    addRange(hll, 10, 20);
+    addRange(expected, 10, 20);
+    assertEquals(expected, hll);
+    assertEquals(expected.count(), hll.count());
+  }
+
+  @Test
+  public void testPool() {
+    HyperLogLogPool pool = new HyperLogLogPool(2);
+    HyperLogLog hll1 = pool.borrow(12);
+    HyperLogLog hll2 = pool.borrow(12);
+    HyperLogLog hll3 = pool.borrow(12);
+    HyperLogLog dense = pool.borrow(12, EncodingType.DENSE, false);
+    assertNotSame(hll1, hll2);
+    addRange(hll1, 0, 100000);
+    addRange(dense, 0, 100);
+    pool.release(hll1);
+    pool.release(hll2);
+    pool.release(hll3);
+    pool.release(dense);
+    assertEquals(3, pool.getNumIdle());
+
+    // instances are handed out only for the same (p, encoding, bitPacking)
+    HyperLogLog borrowed = pool.borrow(12);
+    assertSame(hll2, borrowed);
+    assertEquals(0, borrowed.count());
+    assertSame(hll1, pool.borrow(12));
+    assertEquals(EncodingType.SPARSE, hll1.getEncoding());
+    assertEquals(0, hll1.count());
+    assertNotSame(hll3, pool.borrow(12));
+    assertNotSame(dense, pool.borrow(14, EncodingType.DENSE, false));
+    assertNotSame(dense, pool.borrow(12, EncodingType.DENSE, true));
+    assertSame(dense, pool.borrow(12, EncodingType.DENSE, false));
+    assertEquals(0, dense.count());
+    assertEquals(0, pool.getNumIdle());
+  }
+
+  @Test
+  public void testPoolConfig() {
+    HyperLogLogPool pool = new HyperLogLogPool();
+    HyperLogLogStats stats = new HyperLogLogStats();
+    HyperLogLog[] configured = new HyperLogLog[] {
+        HyperLogLog.builder().enableMartingaleEstimator().setMetrics(stats).build(),
+        HyperLogLog.builder().enableMartingaleEstimator().build(),
+        HyperLogLog.builder().setMetrics(stats).build(),
+        HyperLogLog.builder().enableNoBias(false).build(),
+        HyperLogLog.builder().setCardinalityEstimator(new ErtlImprovedEstimator()).build(),
+        HyperLogLog.builder().setExactSetThreshold(16).build() };
+    for (HyperLogLog hll : configured) {
+      addRange(hll, 0, 100);
+      pool.release(hll);
+    }
+    // hyperloglogs with other settings are not handed out by borrow()
+    assertEquals(0, pool.getNumIdle());
+    HyperLogLog borrowed = pool.borrow(14);
+    for (HyperLogLog hll : configured) {
+      assertNotSame(hll, borrowed);
+    }
+    assertNull(borrowed.getMetrics());
+    assertFalse(borrowed.isMartingaleEstimatorEnabled());
+
+    // default settings set explicitly are pooled
+    HyperLogLog hll = HyperLogLog.builder().enableNoBias(true)
+        .setCardinalityEstimator(new HLLPlusPlusEstimator(true)).build();
+    pool.release(hll);
+    assertSame(hll, pool.borrow(14));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidMaxIdle() {
+    new HyperLogLogPool(-1);
+  }
+}
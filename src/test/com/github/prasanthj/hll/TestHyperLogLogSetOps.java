@@ -0,0 +1,124 @@
+/**
+ * Copyright 2017 Prasanth Jayachandran
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.prasanthj.hll;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import com.github.prasanthj.hll.HyperLogLog.EncodingType;
+
+@RunWith(Parameterized.class)
+public class TestHyperLogLogSetOps {
+  // 5% tolerance for estimated count
+  private float longRangeTolerance = 5.0f;
+  private float shortRangeTolerance = 2.0f;
+
+  private int size;
+
+  @Parameterized.Parameters
+  public static Collection<Object[]> data() {
+    return Arrays.asList(new Object[][] {
+      { 1_000 }, { 10_000 }, { 100_000 }, { 1_000_000 }
+    });
+  }
+
+  public TestHyperLogLogSetOps(int size) {
+    this.size = size;
+  }
+
+  private HyperLogLog build(int p, EncodingType enc, int start, int end) {
+    HyperLogLog hll = HyperLogLog.builder().setNumRegisterIndexBits(p).setEncoding(enc).build();
+    for (int i = start; i < end; i++) {
+      hll.addLong(i);
+    }
+    return hll;
+  }
+
+  @Test
+  public void testUnionSameAsMerge() {
+    HyperLogLogSetOps setOps = new HyperLogLogSetOps();
+    EncodingType[] encodings = { EncodingType.SPARSE, EncodingType.DENSE };
+    for (EncodingType enc1 : encodings) {
+      for (EncodingType enc2 : encodings) {
+        HyperLogLog hll1 = build(14, enc1, 0, size);
+        HyperLogLog hll2 = build(14, enc2, size / 2, size + size / 2);
+        long union = setOps.unionCount(hll1, hll2);
+        hll1.merge(hll2);
+        assertEquals(hll1.count(), union);
+      }
+    }
+  }
+
+  @Test
+  public void testUnionDifferentP() {
+    HyperLogLogSetOps setOps = new HyperLogLogSetOps();
+    HyperLogLog hll1 = build(12, EncodingType.DENSE, 0, size);
+    HyperLogLog hll2 = build(16, EncodingType.SPARSE, size / 2, size + size / 2);
+    long union = setOps.unionCount(hll1, hll2);
+    assertEquals(union, setOps.unionCount(hll2, hll1));
+    hll1.merge(hll2);
+    double threshold = size > 40000 ? longRangeTolerance : shortRangeTolerance;
+    assertEquals((double) hll1.count(), (double) union, threshold * size / 100);
+  }
+
+  @Test
+  public void testIntersectionAndJaccard() {
+    HyperLogLogSetOps setOps = new HyperLogLogSetOps();
+    // 50% overlap
+    HyperLogLog hll1 = build(14, EncodingType.DENSE, 0, size);
+    HyperLogLog hll2 = build(14, EncodingType.SPARSE, size / 2, size + size / 2);
+    double threshold = size > 40000 ? longRangeTolerance : shortRangeTolerance;
+    double delta = threshold * size / 100;
+    assertEquals((double) size / 2, (double) setOps.intersectionCount(hll1, hll2), 2 * delta);
+    assertEquals(1.0 / 3, setOps.jaccard(hll1, hll2), 0.05);
+  }
+
+  @Test
+  public void testJointEstimation() {
+    HyperLogLogSetOps setOps = new HyperLogLogSetOps();
+    double[] result = new double[3];
+    double threshold = size > 40000 ? longRangeTolerance : shortRangeTolerance;
+
+    // 25% overlap
+    HyperLogLog hll1 = build(14, EncodingType.DENSE, 0, size);
+    HyperLogLog hll2 = build(14, EncodingType.DENSE, 3 * size / 4, 7 * size / 4);
+    setOps.estimateJoint(hll1, hll2, result);
+    assertEquals(0.75 * size, result[0], threshold * size / 100);
+    assertEquals(0.75 * size, result[1], threshold * size / 100);
+    assertEquals(0.25 * size, result[2], threshold * size / 100);
+
+    // disjoint
+    hll2 = build(14, EncodingType.SPARSE, size, 2 * size);
+    setOps.estimateJoint(hll1, hll2, result);
+    assertEquals(size, result[0], threshold * size / 100);
+    assertEquals(size, result[1], threshold * size / 100);
+    assertEquals(0, result[2], threshold * size / 100);
+
+    // identical
+    hll2 = build(14, EncodingType.SPARSE, 0, size);
+    setOps.estimateJoint(hll1, hll2, result);
+    assertEquals(0, result[0], threshold * size / 100);
+    assertEquals(0, result[1], threshold * size / 100);
+    assertEquals(size, result[2], threshold * size / 100);
+  }
+}
@@ -0,0 +1,168 @@
+/**
+ * Copyright 2017 Prasanth Jayachandran
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.prasanthj.hll;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import com.github.prasanthj.hll.HyperLogLog.EncodingType;
+
+public class TestHyperLogLogSnapshot {
+
+  private static void addRange(HyperLogLog hll, int from, int to) {
+    for (int i = from; i < to; i++) {
+      hll.addLong(i);
+    }
+  }
+
+  private static byte[] serialize(HyperLogLog hll) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    HyperLogLogUtils.serializeHLL(out, hll);
+    return out.toByteArray();
+  }
+
+  @Test
+  public void testCopy() {
+    int[] sizes = { 0, 10, 1000, 100000 };
+    for (EncodingType enc : EncodingType.values()) {
+      for (int size : sizes) {
+        HyperLogLog hll = HyperLogLog.builder().setEncoding(enc).build();
+        addRange(hll, 0, size);
+        HyperLogLog copy = hll.copy();
+        assertEquals(hll.getEncoding(), copy.getEncoding());
+        assertEquals(hll, copy);
+        assertEquals(hll.count(), copy.count());
+
+        // copies are independent
+        long count = hll.count();
+        addRange(copy, size, size + 100000);
+        assertEquals(count, hll.count());
+        assertNotEquals(hll, copy);
+      }
+    }
+  }
+
+  @Test
+  public void testDenseSnapshot() throws IOException {
+    HyperLogLog hll = HyperLogLog.builder().setEncoding(EncodingType.DENSE).build();
+    addRange(hll, 0, 10000);
+    HyperLogLog snapshot = hll.snapshot();
+    assertSame(hll.getHLLDenseRegister().getRegister(),
+        snapshot.getHLLDenseRegister().getRegister());
+    byte[] expected = serialize(hll);
+    long count = hll.count();
+
+    // first write after snapshot copies the registers
+    addRange(hll, 10000, 100000);
+    assertNotSame(hll.getHLLDenseRegister().getRegister(),
+        snapshot.getHLLDenseRegister().getRegister());
+    assertEquals(count, snapshot.count());
+    assertEquals(expected.length, serialize(snapshot).length);
+    assertEquals(HyperLogLogUtils.deserializeHLL(new ByteArrayInputStream(expected)),
+        snapshot);
+
+    // reset must not clear the snapshot
+    hll.reset();
+    assertEquals(0, hll.count());
+    assertEquals(count, snapshot.count());
+
+    // writes to snapshot do not affect the source
+    HyperLogLog source = HyperLogLog.builder().setEncoding(EncodingType.DENSE).build();
+    addRange(source, 0, 10000);
+    HyperLogLog snapshot2 = source.snapshot();
+    addRange(snapshot2, 10000, 100000);
+    HyperLogLog expectedSource = HyperLogLog.builder().setEncoding(EncodingType.DENSE).build();
+    addRange(expectedSource, 0, 10000);
+    assertEquals(expectedSource, source);
+  }
+
+  @Test
+  public void testSparseSnapshot() {
+    HyperLogLog hll = HyperLogLog.builder().build();
+    addRange(hll, 0, 500);
+    HyperLogLog snapshot = hll.snapshot();
+    assertEquals(hll, snapshot);
+    long count = hll.count();
+
+    // stays stable when source is updated and switches to DENSE
+    addRange(hll, 500, 1000);
+    assertEquals(EncodingType.SPARSE, hll.getEncoding());
+    assertEquals(count, snapshot.count());
+    addRange(hll, 1000, 100000);
+    assertEquals(EncodingType.DENSE, hll.getEncoding());
+    assertEquals(count, snapshot.count());
+    hll.reset();
+    assertEquals(count, snapshot.count());
+
+    HyperLogLog expected = HyperLogLog.builder().build();
+    addRange(expected, 0, 500);
+    assertEquals(expected, snapshot);
+
+    // merging snapshot into another hyperloglog
+    HyperLogLog target = HyperLogLog.builder().setEncoding(EncodingType.DENSE).build();
+    target.merge(snapshot);
+    expected.merge(HyperLogLog.builder().setEncoding(EncodingType.DENSE).build());
+    assertEquals(expected.count(), target.count());
+    assertEquals(count, snapshot.count());
+  }
+
+  @Test
+  public void testConcurrentReaders() throws InterruptedException, ExecutionException {
+    final HyperLogLog hll = HyperLogLog.builder().build();
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<Long>> futures = new ArrayList<Future<Long>>();
+      List<Long> expected = new ArrayList<Long>();
+      for (int round = 0; round < 20; round++) {
+        addRange(hll, round * 10000, (round + 1) * 10000);
+        final HyperLogLog snapshot = hll.snapshot();
+        expected.add(snapshot.count());
+        futures.add(executor.submit(() -> {
+          // counts must be stable while the writer continues to add
+          long count = snapshot.count();
+          for (int i = 0; i < 10; i++) {
+            HyperLogLog merged = HyperLogLog.builder().build();
+            merged.merge(snapshot);
+            if (merged.count() != count || snapshot.count() != count) {
+              return -1L;
+            }
+          }
+          return count;
+        }));
+      }
+      for (int i = 0; i < futures.size(); i++) {
+        assertEquals(expected.get(i), futures.get(i).get());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,176 @@
+/**
+ * Copyright 2017 Prasanth Jayachandran
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.prasanthj.hll;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.Test;
+
+import com.github.prasanthj.hll.HyperLogLog.EncodingType;
+import com.github.prasanthj.hll.HyperLogLogSubscriber.Update;
+
+public class TestHyperLogLogSubscriber {
+
+  private static long hash(Long val) {
+    return Murmur3.hash64(String.valueOf(val).getBytes());
+  }
+
+  // synchronous publisher of 0 until numElements honoring demand
+  private static class RangePublisher implements HyperLogLogSubscriber.Subscription {
+    final HyperLogLogSubscriber<Long> subscriber;
+    final long numElements;
+    long next;
+    long demand;
+    long maxDemand;
+    boolean cancelled;
+    boolean emitting;
+
+    RangePublisher(HyperLogLogSubscriber<Long> subscriber, long numElements) {
+      this.subscriber = subscriber;
+      this.numElements = numElements;
+      subscriber.onSubscribe(this);
+    }
+
+    @Override
+    public void request(long n) {
+      demand += n;
+      maxDemand = Math.max(maxDemand, demand);
+      if (emitting) {
+        return;
+      }
+      emitting = true;
+      while (demand > 0 && next < numElements && !cancelled) {
+        demand--;
+        subscriber.onNext(next++);
+      }
+      emitting = false;
+      if (next == numElements && !cancelled) {
+        cancelled = true;
+        subscriber.onComplete();
+      }
+    }
+
+    @Override
+    public void cancel() {
+      cancelled = true;
+    }
+  }
+
+  @Test
+  public void testSameAsAdd() throws Exception {
+    final int size = 100000;
+    HyperLogLog expected = HyperLogLog.builder().build();
+    for (long i = 0; i < size; i++) {
+      expected.add(hash(i));
+    }
+    List<Update> updates = new ArrayList<Update>();
+    HyperLogLogSubscriber<Long> subscriber = HyperLogLogSubscriber
+        .<Long> builder(TestHyperLogLogSubscriber::hash)
+        .setBatchSize(1000)
+        .setUpdateDelta(10000)
+        .setDownstream(updates::add)
+        .build();
+    RangePublisher publisher = new RangePublisher(subscriber, size);
+    assertTrue(publisher.maxDemand <= 2000);
+    assertTrue(subscriber.getResult().isDone());
+    HyperLogLog hll = subscriber.getResult().get();
+    assertEquals(expected, hll);
+    assertEquals(size, subscriber.getNumElements());
+
+    assertTrue(updates.size() > 5);
+    assertTrue(updates.size() < 20);
+    Update last = updates.get(updates.size() - 1);
+    assertTrue(last.isLast());
+    assertEquals(expected.count(), last.getCount());
+    assertEquals(size, last.getNumElements());
+    for (int i = 0; i < updates.size() - 1; i++) {
+      assertFalse(updates.get(i).isLast());
+      assertNull(updates.get(i).getSnapshot());
+      assertTrue(updates.get(i).getNumElements() % 1000 == 0);
+    }
+  }
+
+  @Test
+  public void testSnapshots() throws Exception {
+    final int size = 10000;
+    List<Update> updates = new ArrayList<Update>();
+    HyperLogLogSubscriber<Long> subscriber = HyperLogLogSubscriber
+        .<Long> builder(TestHyperLogLogSubscriber::hash)
+        .setHyperLogLog(HyperLogLog.builder().setEncoding(EncodingType.DENSE).build())
+        .setBatchSize(999)
+        .setUpdateDelta(1)
+        .setPublishSnapshots(true)
+        .setDownstream(updates::add)
+        .build();
+    new RangePublisher(subscriber, size);
+    // every full batch and the last partial batch
+    assertEquals(size / 999 + 1, updates.size());
+    HyperLogLog expected = HyperLogLog.builder().setEncoding(EncodingType.DENSE).build();
+    for (long i = 0; i < size; i++) {
+      expected.add(hash(i));
+    }
+    Update last = updates.get(updates.size() - 1);
+    assertEquals(expected, last.getSnapshot());
+    // registers are shared with the snapshot until the next write
+    assertSame(subscriber.getResult().get().getHLLDenseRegister().getRegister(),
+        last.getSnapshot().getHLLDenseRegister().getRegister());
+    // snapshots are not modified by later elements
+    Update first = updates.get(0);
+    assertNotNull(first.getSnapshot());
+    assertEquals(first.getCount(), first.getSnapshot().count());
+    assertTrue(first.getCount() < last.getCount());
+  }
+
+  @Test
+  public void testError() throws Exception {
+    HyperLogLogSubscriber<Long> subscriber = HyperLogLogSubscriber
+        .<Long> builder(TestHyperLogLogSubscriber::hash).build();
+    RangePublisher publisher = new RangePublisher(subscriber, 0);
+    assertTrue(subscriber.getResult().isDone());
+    assertEquals(0, subscriber.getResult().get().count());
+
+    subscriber = HyperLogLogSubscriber.<Long> builder(TestHyperLogLogSubscriber::hash).build();
+    subscriber.onSubscribe(HyperLogLogSubscriber.Subscription.of(n -> { }, () -> { }));
+    // second subscription is cancelled
+    publisher = new RangePublisher(subscriber, 10);
+    assertTrue(publisher.cancelled);
+    subscriber.onNext(1L);
+    subscriber.onError(new IllegalStateException("failed"));
+    assertTrue(subscriber.getResult().isCompletedExceptionally());
+    assertEquals(1, subscriber.getNumElements());
+    try {
+      subscriber.getResult().get();
+      throw new AssertionError("Expected ExecutionException");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IllegalStateException);
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidBatchSize() {
+    HyperLogLogSubscriber.<Long> builder(TestHyperLogLogSubscriber::hash).setBatchSize(0);
+  }
+}
@@ -0,0 +1,133 @@
+/**
+ * Copyright 2017 Prasanth Jayachandran
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.prasanthj.hll;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import com.github.prasanthj.hll.HyperLogLog.EncodingType;
+
+public class TestHyperLogLogs {
+
+  // hyperloglogs of all encodings, p and estimators. Lists created with the
+  // same num are identical, so counts of one can be compared with count() of
+  // the other without countAll() seeing cached counts
+  private static List<HyperLogLog> createHLLs(int num) {
+    Random rand = new Random(num);
+    List<HyperLogLog> hlls = new ArrayList<HyperLogLog>();
+    for (int i = 0; i < num; i++) {
+      int p = HLLConstants.MIN_P_VALUE
+          + rand.nextInt(HLLConstants.MAX_P_VALUE - HLLConstants.MIN_P_VALUE + 1);
+      EncodingType enc = EncodingType.values()[rand.nextInt(EncodingType.values().length)];
+      HyperLogLog.HyperLogLogBuilder builder = HyperLogLog.builder().setNumRegisterIndexBits(p)
+          .setEncoding(enc);
+      switch (rand.nextInt(5)) {
+      case 0:
+        builder.enableNoBias(false);
+        break;
+      case 1:
+        builder.setCardinalityEstimator(new ErtlImprovedEstimator());
+        break;
+      case 2:
+        builder.enableMartingaleEstimator();
+        break;
+      default:
+        break;
+      }
+      HyperLogLog hll = builder.build();
+      int size = rand.nextInt(20000);
+      for (int j = 0; j < size; j++) {
+        hll.addLong(rand.nextLong());
+      }
+      hlls.add(hll);
+    }
+    return hlls;
+  }
+
+  private static long[] expectedCounts(int num) {
+    List<HyperLogLog> hlls = createHLLs(num);
+    long[] expected = new long[hlls.size()];
+    for (int i = 0; i < expected.length; i++) {
+      expected[i] = hlls.get(i).count();
+    }
+    return expected;
+  }
+
+  @Test
+  public void testCountAll() {
+    List<HyperLogLog> hlls = createHLLs(300);
+    long[] out = new long[hlls.size()];
+    HyperLogLogs.countAll(hlls, out);
+    assertArrayEquals(expectedCounts(300), out);
+  }
+
+  @Test
+  public void testCountAllDenseGroups() {
+    // large batches of DENSE hyperloglogs with same p and estimator
+    List<HyperLogLog> hlls = new ArrayList<HyperLogLog>();
+    List<HyperLogLog> expected = new ArrayList<HyperLogLog>();
+    for (int i = 0; i < 100; i++) {
+      for (List<HyperLogLog> list : Arrays.asList(hlls, expected)) {
+        HyperLogLog hll = HyperLogLog.builder().setNumRegisterIndexBits(10 + i % 2)
+            .setEncoding(EncodingType.DENSE).build();
+        for (int j = 0; j < i * 100; j++) {
+          hll.addInt(j);
+        }
+        list.add(hll);
+      }
+    }
+    long[] out = new long[hlls.size()];
+    HyperLogLogs.countAll(hlls, out);
+    for (int i = 0; i < out.length; i++) {
+      assertEquals(expected.get(i).count(), out[i]);
+    }
+  }
+
+  @Test
+  public void testCountAllParallel() {
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      for (int parallelism : new int[] { 1, 3, 4, 500 }) {
+        List<HyperLogLog> hlls = createHLLs(300);
+        long[] out = new long[hlls.size()];
+        HyperLogLogs.countAll(hlls, out, executor, parallelism);
+        assertArrayEquals(expectedCounts(300), out);
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testCountAllSmallOutput() {
+    HyperLogLogs.countAll(createHLLs(2), new long[1]);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testCountAllInvalidParallelism() {
+    HyperLogLogs.countAll(createHLLs(2), new long[2], null, 0);
+  }
+}
@@ -184,4 +184,17 @@ public class TestMurmur3 {
       assertEquals(gl2, m2);
     }
   }
+
+  @Test
+  public void testHashCodesM3_64_primitives() {
+    Random rand = new Random(123);
+    for (int i = 0; i < 1000; i++) {
+      long l = rand.nextLong();
+      int n = rand.nextInt();
+      short s = (short) n;
+      assertEquals(Murmur3.hash64(ByteBuffer.allocate(8).putLong(l).array()), Murmur3.hash64(l));
+      assertEquals(Murmur3.hash64(ByteBuffer.allocate(4).putInt(n).array()), Murmur3.hash64(n));
+      assertEquals(Murmur3.hash64(ByteBuffer.allocate(2).putShort(s).array()), Murmur3.hash64(s));
+    }
+  }
 }
@@ -0,0 +1,157 @@
+/**
+ * Copyright 2017 Prasanth Jayachandran
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.prasanthj.hll;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import com.github.prasanthj.hll.HyperLogLog.EncodingType;
+
+public class TestStripedHyperLogLog {
+
+  @Test
+  public void testSingleWriter() throws IOException {
+    StripedHyperLogLog striped = new StripedHyperLogLog(HyperLogLog.builder(), 4);
+    HyperLogLog expected = HyperLogLog.builder().build();
+    assertEquals(4, striped.getNumShards());
+    assertEquals(0, striped.count());
+    for (int i = 0; i < 100000; i++) {
+      striped.addLong(i);
+      expected.addLong(i);
+      if (i % 10000 == 0) {
+        assertEquals(expected.count(), striped.count());
+      }
+    }
+    for (int i = 0; i < 1000; i++) {
+      striped.addInt(i);
+      expected.addInt(i);
+      striped.addString("key" + i);
+      expected.addString("key" + i);
+    }
+    assertEquals(expected.count(), striped.count());
+    HyperLogLog merged = striped.toHyperLogLog();
+    assertEquals(expected, merged);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    HyperLogLogUtils.serializeHLL(out, merged);
+    assertEquals(expected,
+        HyperLogLogUtils.deserializeHLL(new ByteArrayInputStream(out.toByteArray())));
+
+    // snapshot is not affected by later writes
+    long count = merged.count();
+    for (int i = 100000; i < 200000; i++) {
+      striped.addLong(i);
+    }
+    assertEquals(count, merged.count());
+    assertTrue(striped.count() > count);
+  }
+
+  @Test
+  public void testShardsStaySparse() {
+    StripedHyperLogLog striped = new StripedHyperLogLog(HyperLogLog.builder(), 8);
+    for (int i = 0; i < 100; i++) {
+      striped.addLong(i);
+    }
+    HyperLogLog merged = striped.toHyperLogLog();
+    assertEquals(EncodingType.SPARSE, merged.getEncoding());
+    assertEquals(100, merged.count());
+  }
+
+  @Test
+  public void testConcurrentWriters() throws InterruptedException {
+    final StripedHyperLogLog striped = new StripedHyperLogLog(
+        HyperLogLog.builder().setEncoding(EncodingType.DENSE), 4);
+    final int numThreads = 8;
+    final int perThread = 50000;
+    final CountDownLatch start = new CountDownLatch(1);
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int t = 0; t < numThreads; t++) {
+      final int offset = t * perThread / 2;
+      Thread thread = new Thread(() -> {
+        try {
+          start.await();
+        } catch (InterruptedException e) {
+          return;
+        }
+        // overlapping ranges
+        for (int i = offset; i < offset + perThread; i++) {
+          striped.addLong(i);
+          if (i % 10000 == 0) {
+            striped.count();
+          }
+        }
+      });
+      threads.add(thread);
+      thread.start();
+    }
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    // DENSE registers merge to exactly the same registers as a single hyperloglog
+    HyperLogLog expected = HyperLogLog.builder().setEncoding(EncodingType.DENSE).build();
+    for (int i = 0; i < (numThreads - 1) * perThread / 2 + perThread; i++) {
+      expected.addLong(i);
+    }
+    assertEquals(expected.count(), striped.count());
+    assertEquals(expected, striped.toHyperLogLog());
+  }
+
+  @Test
+  public void testBuilderCopied() throws InterruptedException {
+    HyperLogLog.HyperLogLogBuilder builder = HyperLogLog.builder().setNumRegisterIndexBits(10);
+    final StripedHyperLogLog striped = new StripedHyperLogLog(builder, 2);
+    // shards are created on first write, after the builder is changed
+    builder.setNumRegisterIndexBits(12).setEncoding(EncodingType.DENSE);
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int t = 0; t < 4; t++) {
+      final int offset = t * 10000;
+      Thread thread = new Thread(() -> {
+        for (int i = offset; i < offset + 10000; i++) {
+          striped.addLong(i);
+        }
+      });
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    HyperLogLog expected = HyperLogLog.builder().setNumRegisterIndexBits(10).build();
+    for (int i = 0; i < 40000; i++) {
+      expected.addLong(i);
+    }
+    HyperLogLog merged = striped.toHyperLogLog();
+    assertEquals(10, merged.getNumRegisterIndexBits());
+    assertEquals(expected, merged);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidNumShards() {
+    new StripedHyperLogLog(HyperLogLog.builder(), 0);
+  }
+}
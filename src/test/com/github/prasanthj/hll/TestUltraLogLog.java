@@ -0,0 +1,184 @@
+/**
+ * Copyright 2017 Prasanth Jayachandran
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.prasanthj.hll;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.github.prasanthj.hll.HyperLogLog.EncodingType;
+
+public class TestUltraLogLog {
+
+  @Test
+  public void testPackUnpack() {
+    assertEquals(0, UltraLogLog.unpack((byte) 0));
+    assertEquals(0, UltraLogLog.pack(0));
+    for (int u = 1; u <= 61; u++) {
+      for (int bits = 0; bits < 4; bits++) {
+        if (u < 3 && (bits & (3 >>> u)) != 0) {
+          // update values below 1 do not exist
+          continue;
+        }
+        byte value = (byte) ((u << 2) | bits);
+        assertEquals(value, UltraLogLog.pack(UltraLogLog.unpack(value)));
+      }
+    }
+    // update values 5, 3 and 2 seen
+    assertEquals((byte) ((5 << 2) | 0x1), UltraLogLog.pack((1L << 5) | (1L << 3) | (1L << 2)));
+  }
+
+  @Test
+  public void testAccuracy() {
+    final int p = 10;
+    final int trials = 50;
+    final int size = 20000;
+    Random rand = new Random(p);
+    double ullSquaredError = 0;
+    double hllSquaredError = 0;
+    for (int t = 0; t < trials; t++) {
+      UltraLogLog ull = UltraLogLog.builder().setNumRegisterIndexBits(p).build();
+      HyperLogLog hll = HyperLogLog.builder().setNumRegisterIndexBits(p)
+          .setEncoding(EncodingType.DENSE).build();
+      for (int i = 0; i < size; i++) {
+        long hashcode = rand.nextLong();
+        ull.add(hashcode);
+        hll.add(hashcode);
+      }
+      double ullError = (ull.count() - size) / (double) size;
+      double hllError = (hll.count() - size) / (double) size;
+      assertTrue(Math.abs(ullError) < 4 * ull.getStandardError());
+      ullSquaredError += ullError * ullError;
+      hllSquaredError += hllError * hllError;
+    }
+    assertTrue(ullSquaredError < hllSquaredError);
+  }
+
+  @Test
+  public void testSmallRange() {
+    UltraLogLog ull = UltraLogLog.builder().build();
+    assertEquals(0, ull.count());
+    for (int i = 0; i < 100; i++) {
+      ull.addInt(i);
+    }
+    assertEquals(100, ull.count());
+    ull.addInt(5);
+    assertEquals(100, ull.count());
+  }
+
+  @Test
+  public void testMerge() {
+    UltraLogLog ull1 = UltraLogLog.builder().setNumRegisterIndexBits(8).build();
+    UltraLogLog ull2 = UltraLogLog.builder().setNumRegisterIndexBits(8).build();
+    UltraLogLog expected = UltraLogLog.builder().setNumRegisterIndexBits(8).build();
+    for (int i = 0; i < 10000; i++) {
+      ull1.addLong(i);
+      ull2.addLong(i + 5000);
+      expected.addLong(i);
+      expected.addLong(i + 5000);
+    }
+    UltraLogLog merged = ull1.copy();
+    merged.merge(ull2);
+    assertEquals(expected, merged);
+    assertEquals(expected.count(), merged.count());
+    merged.merge(ull1);
+    assertEquals(expected, merged);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testMergeDifferentP() {
+    UltraLogLog.builder().setNumRegisterIndexBits(8).build()
+        .merge(UltraLogLog.builder().setNumRegisterIndexBits(9).build());
+  }
+
+  @Test
+  public void testFromHyperLogLog() {
+    for (EncodingType encoding : EncodingType.values()) {
+      HyperLogLog hll = HyperLogLog.builder().setNumRegisterIndexBits(12).setEncoding(encoding)
+          .build();
+      HyperLogLog dense = HyperLogLog.builder().setNumRegisterIndexBits(12)
+          .setEncoding(EncodingType.DENSE).build();
+      UltraLogLog expected = UltraLogLog.builder().setNumRegisterIndexBits(12).build();
+      int size = encoding == EncodingType.EXACT ? 50 : 30000;
+      for (int i = 0; i < size; i++) {
+        hll.addInt(i);
+        dense.addInt(i);
+        expected.addInt(i);
+      }
+      UltraLogLog ull = UltraLogLog.fromHyperLogLog(hll);
+      if (encoding == EncodingType.EXACT) {
+        assertTrue(ull.hasKnownLowerBits());
+        assertEquals(expected, ull);
+        continue;
+      }
+      assertFalse(ull.hasKnownLowerBits());
+      // max update values are same as hyperloglog registers
+      byte[] hllRegister = dense.getHLLDenseRegister().getRegister();
+      byte[] ullRegister = ull.getRegister();
+      byte[] expectedRegister = expected.getRegister();
+      for (int i = 0; i < hllRegister.length; i++) {
+        assertEquals(hllRegister[i], (ullRegister[i] & 0xff) >>> 2);
+        assertEquals(expectedRegister[i] & 0xfc, ullRegister[i] & 0xff);
+      }
+      double err = Math.abs(ull.count() - size) / (double) size;
+      assertTrue(err < 4 * hll.getStandardError());
+
+      // merged sketches ignore the unknown lower bits
+      expected.merge(ull);
+      assertFalse(expected.hasKnownLowerBits());
+      assertEquals(ull.count(), expected.count());
+    }
+  }
+
+  @Test
+  public void testSerialization() throws IOException {
+    UltraLogLog ull = UltraLogLog.builder().setNumRegisterIndexBits(13).build();
+    HyperLogLog hll = HyperLogLog.builder().setNumRegisterIndexBits(14)
+        .setEncoding(EncodingType.DENSE).build();
+    Random rand = new Random(13);
+    for (int i = 0; i < 100000; i++) {
+      long hashcode = rand.nextLong();
+      ull.add(hashcode);
+      hll.add(hashcode);
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    HyperLogLogUtils.serializeULL(out, ull);
+    UltraLogLog deserialized = HyperLogLogUtils.deserializeULL(
+        new ByteArrayInputStream(out.toByteArray()));
+    assertEquals(ull, deserialized);
+    assertEquals(ull.count(), deserialized.count());
+
+    // smaller than hyperloglog with similar standard error
+    assertTrue(ull.getStandardError() < 1.1 * hll.getStandardError());
+    ByteArrayOutputStream hllOut = new ByteArrayOutputStream();
+    HyperLogLogUtils.serializeHLL(hllOut, hll, HyperLogLogUtils.DenseCodec.SMALLEST);
+    assertTrue(out.size() < 0.8 * hllOut.size());
+
+    UltraLogLog converted = UltraLogLog.fromHyperLogLog(hll);
+    out.reset();
+    HyperLogLogUtils.serializeULL(out, converted);
+    assertEquals(converted,
+        HyperLogLogUtils.deserializeULL(new ByteArrayInputStream(out.toByteArray())));
+  }
+}